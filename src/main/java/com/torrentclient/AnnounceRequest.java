@@ -0,0 +1,51 @@
+package com.torrentclient;
+
+import lombok.Data;
+
+@Data
+public class AnnounceRequest {
+
+	private final byte[] infoHash;
+	private final byte[] peerId;
+	private final int port;
+	private long uploaded;
+	private long downloaded;
+	private long left;
+	private Event event = Event.NONE;
+	// -1 leaves the number of peers up to the tracker
+	private int numWant = -1;
+
+	public String toUrl(String announceUrl) {
+		StringBuilder url = new StringBuilder(announceUrl);
+		url.append(announceUrl.contains("?") ? '&' : '?');
+		url.append("info_hash=").append(urlEncode(infoHash));
+		url.append("&peer_id=").append(urlEncode(peerId));
+		url.append("&port=").append(port);
+		url.append("&uploaded=").append(uploaded);
+		url.append("&downloaded=").append(downloaded);
+		url.append("&left=").append(left);
+		url.append("&compact=1");
+		if (numWant >= 0) {
+			url.append("&numwant=").append(numWant);
+		}
+		if (event != Event.NONE) {
+			url.append("&event=").append(event.name().toLowerCase());
+		}
+		return url.toString();
+	}
+
+	private static String urlEncode(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) {
+			sb.append("%").append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	public enum Event {
+		NONE,
+		STARTED,
+		COMPLETED,
+		STOPPED
+	}
+}
@@ -0,0 +1,32 @@
+package com.torrentclient;
+
+import java.util.List;
+
+import com.torrentclient.exceptions.TrackerException;
+
+import lombok.Data;
+import unet.bencode.variables.BencodeObject;
+
+@Data
+public class AnnounceResponse {
+
+	private final List<Peer> peers;
+	private final int interval;
+	private final int minInterval;
+
+	public static AnnounceResponse fromBencode(byte[] body) throws TrackerException {
+		BencodeObject bencode;
+		try {
+			bencode = new BencodeObject(body);
+		} catch (RuntimeException e) {
+			throw new TrackerException("tracker response is not bencoded");
+		}
+		if (bencode.containsKey("failure reason")) {
+			throw new TrackerException("tracker refused the announce: " + bencode.getString("failure reason"));
+		}
+		int interval = bencode.containsKey("interval") ? bencode.getInteger("interval") : 0;
+		int minInterval = bencode.containsKey("min interval") ? bencode.getInteger("min interval") : 0;
+		List<Peer> peers = bencode.containsKey("peers") ? Peer.makePeerList(bencode) : List.of();
+		return new AnnounceResponse(peers, interval, minInterval);
+	}
+}
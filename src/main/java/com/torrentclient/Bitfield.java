@@ -3,25 +3,50 @@ package com.torrentclient;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class Bitfield {
     
     private BitSet bits;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
     
     public Bitfield(byte[] bitfield) {
         this.bits = byteArrayToBitSet(bitfield);
     }
     
+    public static Bitfield withAllPieces(int pieceCount) {
+        byte[] bytes = new byte[(pieceCount + 7) / 8];
+        for (int i = 0; i < pieceCount; i++) {
+            bytes[i / 8] |= 1 << (7 - i % 8);
+        }
+        return new Bitfield(bytes);
+    }
+    
     public boolean hasPiece(int index) {
-        return bits.get(index);
+        lock.readLock().lock();
+        try {
+            return bits.get(index);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
     
     public void setPiece(int index) {
-        bits.set(index);
+        lock.writeLock().lock();
+        try {
+            bits.set(index);
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     public int cardinality() {
-        return bits.cardinality();
+        lock.readLock().lock();
+        try {
+            return bits.cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     private BitSet byteArrayToBitSet(byte[] bytes) {
@@ -35,6 +60,22 @@ public class Bitfield {
     }
     
     public byte[] toByteArray() {
+        lock.readLock().lock();
+        try {
+            return toByteArrayUnlocked();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public byte[] toByteArray(int pieceCount) {
+        byte[] bytes = new byte[(pieceCount + 7) / 8];
+        byte[] setBits = toByteArray();
+        System.arraycopy(setBits, 0, bytes, 0, Math.min(setBits.length, bytes.length));
+        return bytes;
+    }
+
+    private byte[] toByteArrayUnlocked() {
         byte[] bytes = new byte[(bits.length() + 7) / 8];
         for (int i = 0; i < bits.length(); i++) {
             if (bits.get(i)) {
@@ -45,12 +86,17 @@ public class Bitfield {
     }
     
     public List<Integer> getMissingPieces() {
-        List<Integer> missingPieces = new ArrayList<>();
-        for (int i = 0; i < bits.length(); i++) {
-            if (!bits.get(i)) {
-                missingPieces.add(i);
+        lock.readLock().lock();
+        try {
+            List<Integer> missingPieces = new ArrayList<>();
+            for (int i = 0; i < bits.length(); i++) {
+                if (!bits.get(i)) {
+                    missingPieces.add(i);
+                }
             }
+            return missingPieces;
+        } finally {
+            lock.readLock().unlock();
         }
-        return missingPieces;
     }
 }
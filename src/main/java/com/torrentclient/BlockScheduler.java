@@ -0,0 +1,173 @@
+package com.torrentclient;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+import java.util.function.IntSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Hands out blocks rather than whole pieces. A piece in progress is assembled in one buffer, so any peer that has
+// it can take the blocks nobody asked for yet, and blocks a choked or lost peer owed go back for others.
+// Peers read blocks into buffers of their own; a block is copied into the piece under the lock, and only while
+// still wanted, so once a piece completes nothing writes to its buffer again and it belongs to whoever got it.
+// In endgame, blocks already in flight are asked of a few more peers and the first copy to arrive wins; the same
+// happens early for pieces whose deadline has passed
+public class BlockScheduler {
+
+	public static final int MAX_ENDGAME_REQUESTS = 3;
+	private static final Logger logger = LoggerFactory.getLogger(BlockScheduler.class);
+
+	private final Torrent torrent;
+	private final int blockSize;
+	private final PiecePicker piecePicker;
+	// Oldest first, so peers finish pieces that were started before opening new ones
+	private final Map<Integer, PieceState> inProgress = new LinkedHashMap<>();
+	private volatile boolean endgame;
+	private volatile boolean duplicated;
+
+	public BlockScheduler(Torrent torrent, int blockSize, PiecePicker piecePicker) {
+		this.torrent = torrent;
+		this.blockSize = blockSize;
+		this.piecePicker = piecePicker;
+	}
+
+	// Up to count blocks for the peer: unrequested blocks of started pieces, then blocks of pieces newPiece opens,
+	// then copies of blocks other peers have not delivered yet, of overdue pieces or of any piece in endgame
+	public synchronized List<BlockRequest> request(Client client, int count, IntSupplier newPiece) {
+		List<BlockRequest> requests = new ArrayList<>();
+		Bitfield peerPieces = client.getBitfield();
+		if (peerPieces == null || count <= 0) {
+			return requests;
+		}
+		for (PieceState piece : startedPieces()) {
+			if (requests.size() >= count) {
+				return requests;
+			}
+			if (piece.getUnrequestedBlocks() > 0 && canRequest(client, peerPieces, piece)) {
+				takeUnrequested(piece, count, requests);
+			}
+		}
+		while (requests.size() < count) {
+			int pieceIndex = newPiece.getAsInt();
+			if (pieceIndex < 0) {
+				break;
+			}
+			PieceState piece = new PieceState(pieceIndex, torrent.getPieceSize(pieceIndex), blockSize);
+			inProgress.put(pieceIndex, piece);
+			takeUnrequested(piece, count, requests);
+		}
+		if (requests.size() < count && piecePicker.hasDeadlines()) {
+			long now = System.currentTimeMillis();
+			requestDuplicates(client, peerPieces, count, requests, piece -> isOverdue(piece, now));
+		}
+		if (requests.size() < count && !piecePicker.hasWantedPieces()) {
+			int before = requests.size();
+			requestDuplicates(client, peerPieces, count, requests, piece -> true);
+			if (requests.size() > before && !endgame) {
+				endgame = true;
+				logger.info("Entering endgame, remaining blocks are requested from several peers");
+			}
+		}
+		return requests;
+	}
+
+	// False once some peer delivered the block, or its piece is no longer in progress
+	public synchronized boolean isNeeded(BlockRequest block) {
+		PieceState piece = inProgress.get(block.getPieceIndex());
+		return piece != null && piece.isWanted(block.getBegin() / blockSize);
+	}
+
+	// The first copy of a block to arrive is kept, later ones are dropped. Returns the piece once its last block
+	// arrived; it leaves the scheduler then, whatever its hash turns out to be
+	public synchronized PieceState onBlockReceived(Client client, BlockRequest block, ByteBuffer data) {
+		PieceState piece = inProgress.get(block.getPieceIndex());
+		int blockIndex = block.getBegin() / blockSize;
+		if (piece == null || !piece.isWanted(blockIndex)) {
+			return null;
+		}
+		piece.writeBlock(blockIndex, data);
+		piece.markBlockReceived(blockIndex, client);
+		if (!piece.isPieceComplete()) {
+			return null;
+		}
+		inProgress.remove(block.getPieceIndex());
+		return piece;
+	}
+
+	// Requests that will not be answered, after a choke, a reject or a disconnect
+	public synchronized void returnRequests(Collection<BlockRequest> requests) {
+		for (BlockRequest block : requests) {
+			PieceState piece = inProgress.get(block.getPieceIndex());
+			if (piece == null) {
+				continue;
+			}
+			piece.markReturned(block.getBegin() / blockSize);
+			if (piece.isUntouched()) {
+				inProgress.remove(block.getPieceIndex());
+				piecePicker.release(block.getPieceIndex());
+			}
+		}
+	}
+
+	// Whether any block was ever requested from more than one peer, so some requests may need cancelling
+	public boolean hasDuplicateRequests() {
+		return duplicated;
+	}
+
+	// Pieces with a deadline come first, earliest first; the rest oldest first
+	private Collection<PieceState> startedPieces() {
+		if (!piecePicker.hasDeadlines()) {
+			return inProgress.values();
+		}
+		List<PieceState> pieces = new ArrayList<>(inProgress.values());
+		pieces.sort(Comparator.comparingLong(piece -> {
+			long deadline = piecePicker.getDeadline(piece.getPieceIndex());
+			return deadline == 0 ? Long.MAX_VALUE : deadline;
+		}));
+		return pieces;
+	}
+
+	private boolean isOverdue(int pieceIndex, long now) {
+		long deadline = piecePicker.getDeadline(pieceIndex);
+		return deadline != 0 && deadline <= now;
+	}
+
+	private static boolean canRequest(Client client, Bitfield peerPieces, PieceState piece) {
+		return peerPieces.hasPiece(piece.getPieceIndex()) && client.canRequest(piece.getPieceIndex());
+	}
+
+	private void takeUnrequested(PieceState piece, int count, List<BlockRequest> requests) {
+		for (int block = 0; block < piece.getTotalBlocks() && requests.size() < count && piece.getUnrequestedBlocks() > 0; block++) {
+			if (piece.isWanted(block) && piece.getRequestCounts()[block] == 0) {
+				piece.markRequested(block);
+				requests.add(piece.toRequest(block));
+			}
+		}
+	}
+
+	private void requestDuplicates(Client client, Bitfield peerPieces, int count, List<BlockRequest> requests, IntPredicate eligible) {
+		for (PieceState piece : startedPieces()) {
+			if (!eligible.test(piece.getPieceIndex()) || !canRequest(client, peerPieces, piece)) {
+				continue;
+			}
+			for (int block = 0; block < piece.getTotalBlocks() && requests.size() < count; block++) {
+				if (!piece.isWanted(block) || piece.getRequestCounts()[block] >= MAX_ENDGAME_REQUESTS) {
+					continue;
+				}
+				BlockRequest request = piece.toRequest(block);
+				if (!client.outstandingRequests.contains(request) && !requests.contains(request)) {
+					piece.markRequested(block);
+					requests.add(request);
+					duplicated = true;
+				}
+			}
+		}
+	}
+}
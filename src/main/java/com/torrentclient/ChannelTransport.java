@@ -0,0 +1,170 @@
+package com.torrentclient;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+public class ChannelTransport implements PeerTransport, ReadThrottle {
+
+	private final SocketChannel channel;
+	private final Deque<PendingWrite> pendingWrites = new ArrayDeque<>();
+	private SelectionKey key;
+	private volatile int readTimeout = 5000;
+	private volatile long lastActivity = System.currentTimeMillis();
+	private volatile boolean readsPaused;
+
+	public ChannelTransport(SocketChannel channel) {
+		this.channel = channel;
+	}
+
+	void attach(SelectionKey key) {
+		this.key = key;
+	}
+
+	@Override
+	public synchronized void write(ByteBuffer... buffers) throws IOException {
+		if (pendingWrites.isEmpty()) {
+			channel.write(buffers);
+		}
+		for (ByteBuffer buffer : buffers) {
+			if (buffer.hasRemaining()) {
+				ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+				copy.put(buffer).flip();
+				pendingWrites.add(new BufferWrite(copy));
+			}
+		}
+		requestWriteInterestIfPending();
+	}
+
+	@Override
+	public synchronized void transferFrom(FileChannel source, long position, long count) throws IOException {
+		FileWrite fileWrite = new FileWrite(source, position, count);
+		if (!pendingWrites.isEmpty() || !fileWrite.writeTo(channel)) {
+			pendingWrites.add(fileWrite);
+		}
+		requestWriteInterestIfPending();
+	}
+
+	private void requestWriteInterestIfPending() {
+		if (!pendingWrites.isEmpty()) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			key.selector().wakeup();
+		}
+	}
+
+	synchronized void flushPendingWrites() throws IOException {
+		while (!pendingWrites.isEmpty()) {
+			if (!pendingWrites.peek().writeTo(channel)) {
+				return;
+			}
+			pendingWrites.poll();
+		}
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+	}
+
+	// Interest ops change under the same lock as for writes, other threads pause and resume reads
+	@Override
+	public synchronized void pauseReads() {
+		readsPaused = true;
+		if (key.isValid()) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+	}
+
+	@Override
+	public synchronized void resumeReads() {
+		readsPaused = false;
+		markActivity();
+		if (key.isValid()) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			key.selector().wakeup();
+		}
+	}
+
+	@Override
+	public void setReadTimeout(int timeoutMillis) {
+		this.readTimeout = timeoutMillis;
+	}
+
+	@Override
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	void markActivity() {
+		lastActivity = System.currentTimeMillis();
+	}
+
+	// A peer is not read while the disk catches up, that is no fault of its own
+	boolean isReadTimedOut(long now) {
+		return !readsPaused && readTimeout > 0 && now - lastActivity > readTimeout;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	@Override
+	public String toString() {
+		return channel.toString();
+	}
+
+	private interface PendingWrite {
+		boolean writeTo(SocketChannel channel) throws IOException;
+	}
+
+	private static class BufferWrite implements PendingWrite {
+
+		private final ByteBuffer buffer;
+
+		BufferWrite(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public boolean writeTo(SocketChannel channel) throws IOException {
+			channel.write(buffer);
+			return !buffer.hasRemaining();
+		}
+	}
+
+	private static class FileWrite implements PendingWrite {
+
+		private final FileChannel source;
+		private long position;
+		private long remaining;
+
+		FileWrite(FileChannel source, long position, long count) {
+			this.source = source;
+			this.position = position;
+			this.remaining = count;
+		}
+
+		@Override
+		public boolean writeTo(SocketChannel channel) throws IOException {
+			while (remaining > 0) {
+				long bytes = source.transferTo(position, remaining, channel);
+				if (bytes == 0) {
+					if (position >= source.size()) {
+						throw new EOFException("Source ended with " + remaining + " bytes left to send");
+					}
+					return false;
+				}
+				position += bytes;
+				remaining -= bytes;
+			}
+			return true;
+		}
+	}
+}
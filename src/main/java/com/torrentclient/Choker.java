@@ -0,0 +1,201 @@
+package com.torrentclient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Tit-for-tat upload slots. Every round the interested peers that gave us the most in the last round are unchoked
+// and the rest choked; one more slot goes to a random choked peer and moves on every few rounds, so newcomers get
+// a chance to show what they give back. Once seeding, peers are ranked by how fast they take from us instead
+public class Choker {
+
+	private static final int RECHOKE_INTERVAL_SECONDS = 10;
+	private static final int OPTIMISTIC_ROUNDS = 3;
+	private static final Logger logger = LoggerFactory.getLogger(Choker.class);
+
+	private final List<Client> activeClients;
+	private final int uploadSlots;
+	private final BooleanSupplier seeding;
+	private final ScheduledExecutorService chokeExecutor;
+	// Byte counters at the start of the round and the rates measured over the last one, in bytes per second
+	private final Map<Client, Long> lastBytes = new IdentityHashMap<>();
+	private final Map<Client, Long> rates = new IdentityHashMap<>();
+	// Kept here rather than read off activeClients, a peer may say it is interested before it is listed there
+	private final Set<Client> unchoked = Collections.newSetFromMap(new IdentityHashMap<>());
+	private long lastRound = System.nanoTime();
+	private boolean lastSeeding;
+	private int round;
+	private Client optimistic;
+
+	public Choker(List<Client> activeClients, int uploadSlots, BooleanSupplier seeding) {
+		this.activeClients = activeClients;
+		this.uploadSlots = Math.max(1, uploadSlots);
+		this.seeding = seeding;
+		this.chokeExecutor = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	public void start() {
+		chokeExecutor.scheduleAtFixedRate(this::rechoke, RECHOKE_INTERVAL_SECONDS, RECHOKE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+
+	public void stop() {
+		chokeExecutor.shutdownNow();
+	}
+
+	// A newly interested peer gets a slot straight away if one is free rather than waiting for the next round
+	public synchronized void onPeerInterestChanged(Client client) {
+		if (client.isPeerInterested()) {
+			if (client.isAmChoking() && unchokedPeers() < uploadSlots) {
+				unchoke(client);
+			}
+		} else if (!client.isAmChoking()) {
+			choke(client);
+			fillFreeSlots();
+		}
+	}
+
+	public synchronized void onPeerDisconnected(Client client) {
+		lastBytes.remove(client);
+		rates.remove(client);
+		if (client == optimistic) {
+			optimistic = null;
+		}
+		if (unchoked.remove(client)) {
+			fillFreeSlots();
+		}
+	}
+
+	private synchronized void rechoke() {
+		try {
+			measureRates();
+			List<Client> candidates = interestedPeers();
+			candidates.sort(Comparator.comparingLong(this::rateOf).reversed());
+			Set<Client> unchoke = Collections.newSetFromMap(new IdentityHashMap<>());
+			unchoke.addAll(candidates.subList(0, Math.min(uploadSlots - 1, candidates.size())));
+			// An optimistic peer that lost interest or earned a regular slot frees the optimistic one
+			if (optimistic != null && (!optimistic.isPeerInterested() || !optimistic.isSocketOpen() || unchoke.contains(optimistic))) {
+				optimistic = null;
+			}
+			if (optimistic == null || round % OPTIMISTIC_ROUNDS == 0) {
+				optimistic = pickOptimistic(candidates, unchoke);
+			}
+			if (optimistic != null) {
+				unchoke.add(optimistic);
+			}
+			round++;
+			for (Client client : new ArrayList<>(unchoked)) {
+				if (!unchoke.contains(client)) {
+					choke(client);
+				}
+			}
+			for (Client client : unchoke) {
+				if (client.isAmChoking()) {
+					unchoke(client);
+				}
+			}
+			logger.debug("Rechoked, {} of {} interested peers unchoked", unchoke.size(), candidates.size());
+		} catch (RuntimeException e) {
+			// An exception would cancel the schedule for good
+			logger.warn("Rechoke failed", e);
+		}
+	}
+
+	private void measureRates() {
+		long now = System.nanoTime();
+		double seconds = Math.max(1e-3, (now - lastRound) / 1e9);
+		lastRound = now;
+		boolean byUpload = seeding.getAsBoolean();
+		// Counters switch meaning when seeding starts, the first round after that measures from scratch
+		if (byUpload != lastSeeding) {
+			lastSeeding = byUpload;
+			lastBytes.clear();
+		}
+		rates.clear();
+		Map<Client, Long> current = new IdentityHashMap<>();
+		for (Client client : activeClients) {
+			long bytes = byUpload ? client.getBytesUploaded() : client.getBytesDownloaded();
+			Long previous = lastBytes.get(client);
+			current.put(client, bytes);
+			rates.put(client, (long) ((bytes - (previous != null ? previous : bytes)) / seconds));
+		}
+		lastBytes.clear();
+		lastBytes.putAll(current);
+	}
+
+	private static Client pickOptimistic(List<Client> candidates, Set<Client> unchoke) {
+		List<Client> choked = new ArrayList<>();
+		for (Client candidate : candidates) {
+			if (!unchoke.contains(candidate)) {
+				choked.add(candidate);
+			}
+		}
+		if (choked.isEmpty()) {
+			return null;
+		}
+		return choked.get(ThreadLocalRandom.current().nextInt(choked.size()));
+	}
+
+	// Between rounds free slots go to the best peers of the last round without choking anyone
+	private void fillFreeSlots() {
+		List<Client> candidates = interestedPeers();
+		candidates.sort(Comparator.comparingLong(this::rateOf).reversed());
+		for (Client candidate : candidates) {
+			if (unchokedPeers() >= uploadSlots) {
+				return;
+			}
+			if (candidate.isAmChoking()) {
+				unchoke(candidate);
+			}
+		}
+	}
+
+	private List<Client> interestedPeers() {
+		List<Client> interested = new ArrayList<>();
+		for (Client client : activeClients) {
+			if (client.isPeerInterested() && client.isSocketOpen()) {
+				interested.add(client);
+			}
+		}
+		return interested;
+	}
+
+	private long rateOf(Client client) {
+		return rates.getOrDefault(client, 0L);
+	}
+
+	private int unchokedPeers() {
+		unchoked.removeIf(client -> !client.isSocketOpen());
+		return unchoked.size();
+	}
+
+	private void unchoke(Client client) {
+		unchoked.add(client);
+		try {
+			client.unchokePeer();
+		} catch (IOException e) {
+			logger.debug("Could not unchoke peer " + client.getPeer().getIpAddress(), e);
+		}
+	}
+
+	private void choke(Client client) {
+		unchoked.remove(client);
+		try {
+			client.chokePeer();
+		} catch (IOException e) {
+			logger.debug("Could not choke peer " + client.getPeer().getIpAddress(), e);
+		}
+	}
+}
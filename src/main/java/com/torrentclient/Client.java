@@ -2,21 +2,19 @@ package com.torrentclient;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Queue;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,6 +29,10 @@ public class Client {
 	
     private final PieceMessageCallback pieceMessageCallback;
     private final ClientExceptionCallback clientExceptionCallback;
+    private final UploadCallback uploadCallback;
+    private final ExtensionMessageCallback extensionMessageCallback;
+    private final DhtPortCallback dhtPortCallback;
+    private final PieceAvailabilityCallback availabilityCallback;
     
 	private Peer peer;
 	private Handshake handshake;
@@ -38,78 +40,104 @@ public class Client {
 	private byte[] peerId;
 	private boolean handshakeCompleted;
 	private boolean isChoked=true;
+	private boolean amInterested;
+	private volatile boolean amChoking=true;
+	private volatile boolean peerInterested;
 	private Bitfield bitfield;
 	private boolean clientSetSuccessfully;
-	private Socket socket;
+	private boolean inbound;
+	private boolean fastExtension;
+	private boolean extensionProtocol;
+	private boolean dht;
+	// BEP 10 state learned from the peer's extended handshake
+	private int peerPexId;
+	private int peerListenPort;
+	private PeerTransport transport;
+	// Blocking sessions read from here, nio connections are read by the selector loop and leave it null
+	private InputStream inputStream;
 	private Torrent torrent;
 	
-    public Queue<BlockRequest> workQueue;
-    public int currentOutstandingRequests;
-    public final static int MAX_OUTSTANDING_REQUESTS = 5; 
     public Set<BlockRequest> outstandingRequests;
-	public Map<Integer,ByteBuffer> pieceBuffers;
+	public final Deque<BlockRequest> uploadQueue;
+	// Fast extension: pieces the peer lets us request while choked, pieces we let it request, and its hints
+	private final Set<Integer> allowedFastPieces = ConcurrentHashMap.newKeySet();
+	private final Set<Integer> allowedFastForPeer = ConcurrentHashMap.newKeySet();
+	private final Set<Integer> suggestedPieces = ConcurrentHashMap.newKeySet();
+	private final Set<Peer> advertisedPeers = ConcurrentHashMap.newKeySet();
+	private final AtomicLong bytesUploaded = new AtomicLong();
+	private final AtomicLong bytesDownloaded = new AtomicLong();
+	private final RequestPipeline requestPipeline;
+	private final byte[] frameHeader = new byte[8];
+	// Blocks are read in here and copied into the piece only if no other peer's copy won meanwhile
+	private final ByteBuffer blockBuffer = ByteBuffer.allocate(BLOCK_SIZE);
+	private ByteBuffer outboundBuffer = ByteBuffer.allocate(OUTBOUND_BUFFER_SIZE);
+	private final ReentrantLock outboundLock = new ReentrantLock();
+	private static final int OUTBOUND_BUFFER_SIZE = 1024;
 
     private static final Logger logger = LoggerFactory.getLogger(Client.class);
+    private static final int BLOCK_SIZE = 16384;
+    public static final int MAX_UPLOAD_QUEUE = 64;
 
-	public Client(Torrent torrent, Peer peer, Handshake handshake, PieceMessageCallback pieceMessageCallback, ClientExceptionCallback clientExceptionCallback) {
+	public Client(Torrent torrent, Peer peer, Handshake handshake, PieceMessageCallback pieceMessageCallback, ClientExceptionCallback clientExceptionCallback, UploadCallback uploadCallback, ExtensionMessageCallback extensionMessageCallback, DhtPortCallback dhtPortCallback, PieceAvailabilityCallback availabilityCallback) {
 		this.torrent = torrent;
 		this.pieceMessageCallback = pieceMessageCallback;
 		this.clientExceptionCallback = clientExceptionCallback;
+		this.uploadCallback = uploadCallback;
+		this.extensionMessageCallback = extensionMessageCallback;
+		this.dhtPortCallback = dhtPortCallback;
+		this.availabilityCallback = availabilityCallback;
 		this.peer = peer;
 		this.handshake=handshake;
-        this.workQueue = new ConcurrentLinkedQueue<>(); 
-        this.currentOutstandingRequests = 0;
-        this.outstandingRequests = Collections.synchronizedSet(new HashSet<>());
-        this.pieceBuffers = new HashMap<>();
+        this.outstandingRequests = ConcurrentHashMap.newKeySet();
+        this.requestPipeline = new RequestPipeline(BLOCK_SIZE);
+        this.uploadQueue = new ConcurrentLinkedDeque<>();
+	}
+
+	public int getMaxOutstandingRequests() {
+		return requestPipeline.getDepth();
 	}
 
 
-	public boolean initializeConnection() {
+	public boolean initializeFromHandshake(StreamTransport transport, byte[] handshakeResponse) {
+	    this.transport = transport;
 	    try {
-	        connectToPeer();
-	        socket.setSoTimeout(5000);
-	        
-	        if (performHandshake()) {
-	            if (receiveBitfield()) {
-	                clientSetSuccessfully = true;
-	            }
+	        this.inputStream = transport.getInputStream();
+	        transport.setReadTimeout(5000);
+	        if (processHandshakeResponse(handshakeResponse) && receiveBitfield()) {
+	            clientSetSuccessfully = true;
 	        }
-	        
-	    } catch (SocketTimeoutException e) {
-	        logger.debug("Socket timeout occurred during communication in initializeConnection");
 	    } catch (IOException e) {
-	        logger.debug("IO exception in initializeConnection");	
+	        logger.debug("IO exception in initializeFromHandshake");
 	    } finally {
 	        adjustSocketTimeout(10000);
 	    }
-	    
 	    return clientSetSuccessfully;
 	}
 
 	private void adjustSocketTimeout(int timeout) {
+	    if (transport == null) {
+	        return;
+	    }
 	    try {
-	        socket.setSoTimeout(timeout);
-	    } catch (SocketException e) {
+	        transport.setReadTimeout(timeout);
+	    } catch (IOException e) {
 	        logger.debug("Connection with peer closed");
 	    }
 	}
 
-	private boolean performHandshake() throws IOException {
-		sendHandshake();
-		byte[] response = receiveHandshake();
-
-		if (response != null) {
-			Response parsedResponse = new Response(response);
-			if (parsedResponse.isHandshake()) {
-				Handshake receivedHandshake = Handshake.fromBytes(response);
-				this.peerId = receivedHandshake.getPeerId();
-				this.infoHash = receivedHandshake.getInfoHash();
-				this.handshakeCompleted = true;
-			}
-			logger.debug("HANDSHAKE COMPLETE: " + this.handshakeCompleted);
-			return true;
+	public boolean processHandshakeResponse(byte[] response) {
+		Response parsedResponse = new Response(response);
+		if (parsedResponse.isHandshake()) {
+			Handshake receivedHandshake = Handshake.fromBytes(response);
+			this.peerId = receivedHandshake.getPeerId();
+			this.infoHash = receivedHandshake.getInfoHash();
+			this.fastExtension = handshake.supportsFastExtension() && receivedHandshake.supportsFastExtension();
+			this.extensionProtocol = handshake.supportsExtensionProtocol() && receivedHandshake.supportsExtensionProtocol();
+			this.dht = handshake.supportsDht() && receivedHandshake.supportsDht();
+			this.handshakeCompleted = true;
 		}
-		return false;
+		logger.debug("HANDSHAKE COMPLETE: " + this.handshakeCompleted);
+		return this.handshakeCompleted;
 	}
 
 	private boolean receiveBitfield() {
@@ -141,39 +169,6 @@ public class Client {
 
 
 
-	private void connectToPeer() throws IOException {
-		String peerIP = this.peer.getIpAddress();
-		int peerPort = this.peer.getPort();
-		this.socket = new Socket();
-		socket.connect(new InetSocketAddress(peerIP, peerPort), 3000);
-		logger.debug("Connected to peer Ip: " + peerIP);
-	}
-
-	private void sendHandshake() throws IOException {
-		OutputStream outputStream = socket.getOutputStream();
-		byte[] handshakeMessage = handshake.createHandshake();
-		outputStream.write(handshakeMessage);
-		outputStream.flush();
-	}
-	private byte[] receiveHandshake() throws IOException {
-	    InputStream inputStream = socket.getInputStream();
-	    byte[] buffer = new byte[68];
-	    int totalBytesRead = 0;
-
-	    // Read up to 68 bytes for the handshake
-	    while (totalBytesRead < 68) {
-	        int bytesRead = inputStream.read(buffer, totalBytesRead, 68 - totalBytesRead);
-	        if (bytesRead == -1) {
-	            // Connection closed prematurely
-	            return null;
-	        }
-	        totalBytesRead += bytesRead;
-	    }
-
-	    logger.debug("Received handshake: " + Arrays.toString(buffer));
-	    return buffer;
-	}
-	
 	public Message receiveAndParseMessage() throws IOException, SocketException {
 	    byte[] data = this.receiveMessage();
 
@@ -189,7 +184,6 @@ public class Client {
 	public byte[] receiveMessage() throws IOException, SocketException {
 		
 		logger.debug("Trying to receive message");
-	    InputStream inputStream = socket.getInputStream();
 
 	    byte[] lengthBuffer = new byte[4];
 	    int bytesRead = inputStream.read(lengthBuffer);
@@ -229,44 +223,227 @@ public class Client {
 
 	    return message;
 	}
-	
-	public void sendRequestMessage(int index, int begin, int length) throws IOException {
-		Message requestMessage = Message.createRequestMessage(index, begin, length);
-		sendMessage(requestMessage);
+
+	public void receiveAndHandleMessage() throws IOException {
+	    readFully(inputStream, frameHeader, 0, 4);
+	    int length = ByteBuffer.wrap(frameHeader, 0, 4).getInt();
+
+	    if (length == 0) {
+	        handleMessage(Message.createMessageObject(null));
+	        return;
+	    }
+	    if (length < 0) {
+	        throw new IOException("Invalid message length: " + length);
+	    }
+
+	    int typeByte = inputStream.read();
+	    if (typeByte == -1) {
+	        throw new IOException("Connection closed prematurely.");
+	    }
+	    if (typeByte == MessageType.PIECE.getValue() && length >= 9) {
+	        readFully(inputStream, frameHeader, 0, 8);
+	        ByteBuffer header = ByteBuffer.wrap(frameHeader, 0, 8);
+	        receiveBlock(inputStream, header.getInt(), header.getInt(), length - 9);
+	        return;
+	    }
+
+	    byte[] payload = new byte[length - 1];
+	    readFully(inputStream, payload, 0, payload.length);
+	    MessageType type;
+	    try {
+	        type = MessageType.fromValue(typeByte);
+	    } catch (IllegalArgumentException e) {
+	        logger.debug("Ignoring message with unknown type: " + typeByte);
+	        return;
+	    }
+	    handleMessage(new Message(type, payload));
 	}
-	
-	public void sendRequestMessage(BlockRequest blockRequest) throws IOException {
-		int index = blockRequest.getPieceIndex();
-		int begin = blockRequest.getBegin();
-		int length = blockRequest.getBlockLength();
-		Message requestMessage = Message.createRequestMessage(index, begin, length);
-		sendMessage(requestMessage);
+
+	// Reads the block payload into the block buffer instead of copying it through a message array
+	private void receiveBlock(InputStream inputStream, int pieceIndex, int begin, int blockLength) throws IOException {
+	    ByteBuffer target = beginBlock(pieceIndex, begin, blockLength);
+	    if (target == null) {
+	        inputStream.skipNBytes(blockLength);
+	        return;
+	    }
+	    readFully(inputStream, target.array(), target.arrayOffset(), blockLength);
+	    completeBlock(pieceIndex, begin, target);
 	}
-	
-	public void sendUnchokeMessage() throws IOException {
-		Message unchokeMessage = Message.createUnchokeMessage();
-		sendMessage(unchokeMessage);
+
+	// Where to read a block we still want, or null to skip it. Only blocks requested of this peer are wanted,
+	// so their bounds were checked when the request was made
+	public ByteBuffer beginBlock(int pieceIndex, int begin, int blockLength) {
+	    if (!pieceMessageCallback.isBlockWanted(this, new BlockRequest(pieceIndex, begin, blockLength))) {
+	        logger.debug("Discarding unexpected block for piece {} at offset {}", pieceIndex, begin);
+	        return null;
+	    }
+	    ByteBuffer target = blockLength <= blockBuffer.capacity() ? blockBuffer : ByteBuffer.allocate(blockLength);
+	    target.clear().limit(blockLength);
+	    return target;
+	}
+
+	// data holds the whole block from its position on
+	public void completeBlock(int pieceIndex, int begin, ByteBuffer data) throws IOException {
+	    int blockLength = data.remaining();
+	    transport.setReadTimeout(15000);
+	    bytesDownloaded.addAndGet(blockLength);
+	    pieceMessageCallback.onBlockReceived(this, new PieceMessageInfo(pieceIndex, begin, blockLength), data);
+	}
+
+	private static void readFully(InputStream inputStream, byte[] buffer, int offset, int length) throws IOException {
+	    int totalBytesRead = 0;
+	    while (totalBytesRead < length) {
+	        int bytesRead = inputStream.read(buffer, offset + totalBytesRead, length - totalBytesRead);
+	        if (bytesRead == -1) {
+	            throw new IOException("Connection closed prematurely after reading " + totalBytesRead + " of " + length + " bytes.");
+	        }
+	        totalBytesRead += bytesRead;
+	    }
 	}
 	
-	public void sendInterestedMessage() throws IOException {
-		Message interestedMessage = Message.createInterestedMessage();
-		sendMessage(interestedMessage);
+	public void queueRequestMessage(BlockRequest blockRequest) {
+		outboundLock.lock();
+		try {
+			ensureOutboundCapacity(Message.REQUEST_FRAME_LENGTH);
+			Message.encodeRequest(outboundBuffer, blockRequest.getPieceIndex(), blockRequest.getBegin(), blockRequest.getBlockLength());
+		} finally {
+			outboundLock.unlock();
+		}
+	}
+
+	public void queueInterestedMessage() {
+		queueMessage(Message.createInterestedMessage());
+		amInterested = true;
 	}
 	
+	public void queueHaveMessage(int pieceIndex) {
+		queueMessage(Message.createHaveMessage(pieceIndex));
+	}
+
+	public void chokePeer() throws IOException {
+		amChoking = true;
+		// Without the fast extension a choke silently drops everything queued, with it each dropped request is rejected
+		Iterator<BlockRequest> iterator = uploadQueue.iterator();
+		while (iterator.hasNext()) {
+			BlockRequest request = iterator.next();
+			if (!fastExtension || !allowedFastForPeer.contains(request.getPieceIndex())) {
+				iterator.remove();
+				if (fastExtension) {
+					queueMessage(Message.createRejectRequestMessage(request));
+				}
+			}
+		}
+		sendMessage(Message.createChokeMessage());
+	}
+
+	public void grantAllowedFast(Set<Integer> pieceIndexes) {
+		for (int pieceIndex : pieceIndexes) {
+			if (allowedFastForPeer.add(pieceIndex)) {
+				queueMessage(Message.createAllowedFastMessage(pieceIndex));
+			}
+		}
+	}
+
+	// Accepted peers connect from an ephemeral port, only their extended handshake tells us where they listen
+	public Peer getListenAddress() {
+		if (!inbound) {
+			return peer;
+		}
+		return peerListenPort > 0 ? new Peer(peer.getIpAddress(), peerListenPort) : null;
+	}
+
+	public boolean canRequest(int pieceIndex) {
+		return !isChoked || allowedFastPieces.contains(pieceIndex);
+	}
+
+	public boolean canUpload(int pieceIndex) {
+		return !amChoking || allowedFastForPeer.contains(pieceIndex);
+	}
+
+	public void unchokePeer() throws IOException {
+		amChoking = false;
+		sendMessage(Message.createUnchokeMessage());
+	}
+
+	// The header goes out through the outbound buffer, the block itself straight from the file
+	public void sendBlock(BlockRequest request, FileChannel source, long position) throws IOException {
+		outboundLock.lock();
+		try {
+			ensureOutboundCapacity(Message.PIECE_HEADER_LENGTH);
+			Message.encodePieceHeader(outboundBuffer, request.getPieceIndex(), request.getBegin(), request.getBlockLength());
+			flush();
+			transport.transferFrom(source, position, request.getBlockLength());
+		} finally {
+			outboundLock.unlock();
+		}
+		bytesUploaded.addAndGet(request.getBlockLength());
+	}
+
+	// For blocks that cannot be sent straight from a file, such as one spanning two files of a torrent
+	public void sendBlock(BlockRequest request, ByteBuffer block) throws IOException {
+		outboundLock.lock();
+		try {
+			ensureOutboundCapacity(Message.PIECE_HEADER_LENGTH + block.remaining());
+			Message.encodePieceHeader(outboundBuffer, request.getPieceIndex(), request.getBegin(), request.getBlockLength());
+			outboundBuffer.put(block);
+			flush();
+		} finally {
+			outboundLock.unlock();
+		}
+		bytesUploaded.addAndGet(request.getBlockLength());
+	}
 
 	private void sendMessage(Message message) throws IOException {
-		OutputStream outputStream = socket.getOutputStream();
-		byte[] messageBytes = message.serialize();
-		outputStream.write(messageBytes);
-		logger.debug(bytesToHex(messageBytes));
-		outputStream.flush();
+		queueMessage(message);
+		flush();
+	}
+
+	public void queueMessage(Message message) {
+		outboundLock.lock();
+		try {
+			ensureOutboundCapacity(message.getFrameLength());
+			message.encodeTo(outboundBuffer);
+		} finally {
+			outboundLock.unlock();
+		}
+	}
+
+	// Everything queued since the last flush leaves in a single write
+	public void flush() throws IOException {
+		outboundLock.lock();
+		try {
+			if (outboundBuffer.position() == 0) {
+				return;
+			}
+			outboundBuffer.flip();
+			if (logger.isDebugEnabled()) {
+				logger.debug(bytesToHex(outboundBuffer));
+			}
+			try {
+				transport.write(outboundBuffer);
+			} finally {
+				outboundBuffer.clear();
+			}
+		} finally {
+			outboundLock.unlock();
+		}
+	}
+
+	private void ensureOutboundCapacity(int frameLength) {
+		if (outboundBuffer.remaining() >= frameLength) {
+			return;
+		}
+		ByteBuffer larger = ByteBuffer.allocate(Math.max(outboundBuffer.capacity() * 2, outboundBuffer.position() + frameLength));
+		outboundBuffer.flip();
+		larger.put(outboundBuffer);
+		outboundBuffer = larger;
 	}
 	
 	
-	private static String bytesToHex(byte[] bytes) {
+	private static String bytesToHex(ByteBuffer buffer) {
 	    StringBuilder sb = new StringBuilder();
-	    for (byte b : bytes) {
-	        sb.append(String.format("%02X ", b));
+	    for (int i = buffer.position(); i < buffer.limit(); i++) {
+	        sb.append(String.format("%02X ", buffer.get(i)));
 	    }
 	    return sb.toString();
 	}
@@ -277,30 +454,73 @@ public class Client {
 		try {
 			switch (message.getType()) {
 			case KEEP_ALIVE:
-				socket.setSoTimeout(5000);
+				transport.setReadTimeout(5000);
 				logger.debug("Got keep alive");
 				break;
 			case BITFIELD:
 				this.bitfield = new Bitfield(message.getPayload());
+				availabilityCallback.onPeerBitfield(this, bitfield);
+				break;
+			case HAVE_ALL:
+				this.bitfield = Bitfield.withAllPieces(torrent.getPieceHashes().length);
+				availabilityCallback.onPeerBitfield(this, bitfield);
+				break;
+			case HAVE_NONE:
+				this.bitfield = new Bitfield(new byte[(torrent.getPieceHashes().length + 7) / 8]);
+				availabilityCallback.onPeerBitfield(this, bitfield);
 				break;
 			case CHOKE:
 				logger.debug("GOT CHOKE MESSAGE");
-				socket.setSoTimeout(5000);
+				transport.setReadTimeout(5000);
 				this.isChoked=true;
-				sendUnchokeMessage();
+				if (!fastExtension) {
+					// Nothing outstanding will be answered, put it back to be requested again on unchoke
+					pieceMessageCallback.onRequestsRejected(this, new ArrayList<>(outstandingRequests));
+				}
+				requestPipeline.onRequestsDropped();
+				break;
+			case REJECT_REQUEST:
+				pieceMessageCallback.onRequestsRejected(this, Arrays.asList(Message.parseRequestMessage(message)));
+				break;
+			case ALLOWED_FAST:
+				allowedFastPieces.add(Message.parsePieceIndex(message));
+				break;
+			case SUGGEST_PIECE:
+				suggestedPieces.add(Message.parsePieceIndex(message));
+				break;
+			case EXTENDED:
+				handleExtendedMessage(message);
+				break;
+			case PORT:
+				if (dht) {
+					dhtPortCallback.onDhtPort(this, Message.parsePortMessage(message));
+				}
 				break;
 			case UNCHOKE:
 				logger.debug("GOT UNCHOKED MESSAGE");
-				socket.setSoTimeout(15000);
+				transport.setReadTimeout(15000);
 				this.isChoked=false;
 				break;
 			case PIECE:
-				socket.setSoTimeout(15000);
-			    pieceMessageCallback.onPieceMessageReceived(message, this);
+			    handlePieceMessage(message);
 			    break;
 			case HAVE:
 				handleHaveMessage(message);
 				break;
+			case INTERESTED:
+				peerInterested = true;
+				uploadCallback.onPeerInterestChanged(this);
+				break;
+			case NOT_INTERESTED:
+				peerInterested = false;
+				uploadCallback.onPeerInterestChanged(this);
+				break;
+			case REQUEST:
+				handleRequestMessage(message);
+				break;
+			case CANCEL:
+				uploadQueue.remove(Message.parseRequestMessage(message));
+				break;
 			default:
 				logger.debug("Got a message of type: " + message.getType());
 				break;
@@ -312,20 +532,64 @@ public class Client {
 
 	
 
-	private void handleHaveMessage(Message message) throws WrongMessageTypeException, WrongPayloadLengthException {
+	private void handlePieceMessage(Message message) throws IOException, WrongPayloadLengthException {
+		byte[] payload = message.getPayload();
+		if (payload.length < 8) {
+			throw new WrongPayloadLengthException("Expected piece payload of at least 8 bytes.");
+		}
+		ByteBuffer header = ByteBuffer.wrap(payload, 0, 8);
+		int pieceIndex = header.getInt();
+		int begin = header.getInt();
+		int blockLength = payload.length - 8;
+		completeBlock(pieceIndex, begin, ByteBuffer.wrap(payload, 8, blockLength));
+	}
+
+	private void handleRequestMessage(Message message) throws WrongMessageTypeException, WrongPayloadLengthException {
+		BlockRequest request = Message.parseRequestMessage(message);
+		if (canUpload(request.getPieceIndex()) && uploadQueue.size() < MAX_UPLOAD_QUEUE
+				&& uploadCallback.onBlockRequested(this, request)) {
+			uploadQueue.offer(request);
+			return;
+		}
+		logger.debug("Refusing request {} from peer {}", request, peer.getIpAddress());
+		if (fastExtension) {
+			queueMessage(Message.createRejectRequestMessage(request));
+		}
+	}
+
+	private void handleExtendedMessage(Message message) throws WrongPayloadLengthException {
+		byte[] payload = message.getPayload();
+		if (payload.length < 1) {
+			throw new WrongPayloadLengthException("Expected an extended message id.");
+		}
+		if (extensionProtocol) {
+			extensionMessageCallback.onExtendedMessage(this, payload[0] & 0xFF, Arrays.copyOfRange(payload, 1, payload.length));
+		}
+	}
+
+	private void handleHaveMessage(Message message) throws IOException, WrongMessageTypeException, WrongPayloadLengthException {
 		int index = Message.parseHaveMessage(message);
+		// Checked before the bitfield grows to fit it, a peer sending one is broken or hostile and is dropped
+		if (index < 0 || index >= torrent.getPieceHashes().length) {
+			throw new IOException("HAVE for piece " + index + " out of range");
+		}
+		if (bitfield == null) {
+			// Peers with nothing may skip the bitfield and go straight to HAVE
+			this.bitfield = new Bitfield(new byte[(torrent.getPieceHashes().length + 7) / 8]);
+		}
 		this.bitfield.setPiece(index);
+		availabilityCallback.onPeerHave(this, index);
 	}
 	
 
 	public boolean isSocketOpen() {
-	    return socket != null && !socket.isClosed();
+	    return transport != null && transport.isOpen();
 	}
 	
     public void closeConnection() {
         try {
-            if (socket != null) {
-                socket.close();
+            if (transport != null) {
+                transport.close();
             }
             logger.debug("Connection successfully closed.");
         } catch (IOException e) {
@@ -336,21 +600,25 @@ public class Client {
 
 	@Override
 	public String toString() {
-		int socketTimeout = -1;
-		try {
-			socketTimeout = this.getSocket().getSoTimeout();
-		} catch (SocketException e) {
-			e.printStackTrace();
-		}
+		int socketTimeout = transport != null ? transport.getReadTimeout() : -1;
 		
 		return "Client [peer=" + peer + ", isChoked=" + isChoked + ", socket timeout="  + socketTimeout
-				+ ", clientSetSuccessfully=" + clientSetSuccessfully + ", socket=" + socket 
-				+ ", workQueue=" + workQueue + ", currentOutstandingRequests=" + currentOutstandingRequests
-				+ ", outstandingRequests=" + outstandingRequests + ", pieceBuffers=" + pieceBuffers.size() + "]";
+				+ ", clientSetSuccessfully=" + clientSetSuccessfully + ", transport=" + transport 
+				+ ", maxOutstandingRequests=" + getMaxOutstandingRequests()
+				+ ", outstandingRequests=" + outstandingRequests
+				+ ", amChoking=" + amChoking + ", uploadQueue=" + uploadQueue.size() + "]";
+	}
+
+	public long getBytesUploaded() {
+		return bytesUploaded.get();
+	}
+
+	public long getBytesDownloaded() {
+		return bytesDownloaded.get();
 	}
 
 
     public boolean isIdle() {
-        return (workQueue.isEmpty() && outstandingRequests.size() == 0) || isChoked;
+        return outstandingRequests.isEmpty() || isChoked;
     }
 }
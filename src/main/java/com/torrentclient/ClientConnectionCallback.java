@@ -0,0 +1,7 @@
+package com.torrentclient;
+
+public interface ClientConnectionCallback {
+	void onClientReady(Client client);
+	void onClientMessage(Client client);
+	void onClientClosed(Client client);
+}
@@ -0,0 +1,60 @@
+package com.torrentclient;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import lombok.Data;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "torrent")
+public class ClientSettings {
+
+	private Engine engine = Engine.BLOCKING;
+	private Storage storage = Storage.FRAGMENTS;
+	private int diskThreads = 2;
+	private int diskQueueMb = 64;
+	private int ioThreads = 2;
+	private ThreadMode threadMode = ThreadMode.PLATFORM;
+	private int connectionThreads = 8;
+	private int maxConnections = 50;
+	private int maxPendingConnects = 30;
+	private int listenPort = 12345;
+	private int listenBacklog = 50;
+	private int maxInboundConnections = 20;
+	private boolean utp;
+	private int trackerTimeout = 10;
+	private int numWant = 50;
+	private int minPeers = 10;
+	private boolean dht;
+	private int dhtPort = 6881;
+	private List<String> dhtBootstrapNodes = new ArrayList<>(List.of(
+			"router.bittorrent.com:6881", "dht.transmissionbt.com:6881", "router.utorrent.com:6881"));
+	private String dhtStateFile = "dht.dat";
+	private int uploadSlots = 4;
+	private boolean seed;
+	private boolean streaming;
+	private int streamPort = 8080;
+	private int streamWindow = 16;
+	private List<String> filePriorities = new ArrayList<>();
+
+	public enum Engine {
+		BLOCKING,
+		NIO
+	}
+
+	public enum Storage {
+		FRAGMENTS,
+		PREALLOCATED,
+		MAPPED,
+		MEMORY
+	}
+
+	public enum ThreadMode {
+		PLATFORM,
+		VIRTUAL
+	}
+}
@@ -0,0 +1,5 @@
+package com.torrentclient;
+
+public interface DhtPortCallback {
+	void onDhtPort(Client client, int port);
+}
@@ -0,0 +1,5 @@
+package com.torrentclient;
+
+public interface DiskWriteCallback {
+	void onPieceWritten(int pieceIndex, boolean written);
+}
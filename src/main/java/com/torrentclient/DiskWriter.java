@@ -0,0 +1,239 @@
+package com.torrentclient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Verified pieces are written by dedicated threads, so a slow disk never holds up the thread reading a peer.
+// Pending pieces are written lowest offset first, which keeps writes moving forward through the files. Together they
+// may hold at most a byte budget; a thread handing off a piece beyond it waits, and stops reading its peer meanwhile.
+// A thread serving many peers never waits, the piece goes in past the budget and only that peer stops being read
+public class DiskWriter {
+
+	private static final long STOP_TIMEOUT_SECONDS = 30;
+	private static final Logger logger = LoggerFactory.getLogger(DiskWriter.class);
+
+	private final FileManager fileManager;
+	private final DiskWriteCallback diskWriteCallback;
+	private final long maxQueuedBytes;
+	private final List<Thread> threads = new ArrayList<>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition hasRoom = lock.newCondition();
+	private final PriorityQueue<PendingWrite> queue = new PriorityQueue<>(Comparator.comparingInt(write -> write.pieceIndex));
+	private final List<ReadThrottle> paused = new ArrayList<>();
+	private long queuedBytes;
+	private boolean stopped;
+	// From hand-off until the piece is on disk, queueing included
+	private final AtomicLong writes = new AtomicLong();
+	private final AtomicLong totalLatencyNanos = new AtomicLong();
+	private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+	public DiskWriter(FileManager fileManager, DiskWriteCallback diskWriteCallback, int threadCount, long maxQueuedBytes) {
+		this.fileManager = fileManager;
+		this.diskWriteCallback = diskWriteCallback;
+		this.maxQueuedBytes = maxQueuedBytes;
+		for (int i = 0; i < Math.max(1, threadCount); i++) {
+			Thread thread = new Thread(this::writeLoop, "disk-writer-" + (i + 1));
+			thread.setDaemon(true);
+			threads.add(thread);
+		}
+	}
+
+	public void start() {
+		for (Thread thread : threads) {
+			thread.start();
+		}
+	}
+
+	// Waits while the queue is over its budget; a piece larger than the whole budget still goes once the queue is empty.
+	// The callback hears from a writer thread whether the piece made it to disk. False if the writer was stopped and
+	// the piece not taken
+	public boolean submit(int pieceIndex, byte[] data) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (!stopped && queuedBytes > 0 && queuedBytes + data.length > maxQueuedBytes) {
+				hasRoom.await();
+			}
+			if (stopped) {
+				return false;
+			}
+			enqueue(pieceIndex, data);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Never waits. Once the queue is over its budget the throttle pauses reads, and a writer thread resumes them when
+	// the queue is back within it. False if the writer was stopped and the piece not taken
+	public boolean offer(int pieceIndex, byte[] data, ReadThrottle throttle) {
+		lock.lock();
+		try {
+			if (stopped) {
+				return false;
+			}
+			enqueue(pieceIndex, data);
+			if (queuedBytes > maxQueuedBytes && !paused.contains(throttle)) {
+				throttle.pauseReads();
+				paused.add(throttle);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void enqueue(int pieceIndex, byte[] data) {
+		queue.add(new PendingWrite(pieceIndex, data, System.nanoTime()));
+		queuedBytes += data.length;
+		notEmpty.signal();
+	}
+
+	// Pieces already handed off are still written; a download that stops half way keeps everything it verified
+	public void stop() {
+		lock.lock();
+		try {
+			stopped = true;
+			notEmpty.signalAll();
+			hasRoom.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		resumePaused();
+		for (Thread thread : threads) {
+			if (thread == Thread.currentThread()) {
+				continue;
+			}
+			try {
+				thread.join(TimeUnit.SECONDS.toMillis(STOP_TIMEOUT_SECONDS));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	// Pieces waiting for a writer thread
+	public int getQueueDepth() {
+		lock.lock();
+		try {
+			return queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Bytes of pieces waiting or being written
+	public long getQueuedBytes() {
+		lock.lock();
+		try {
+			return queuedBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getWrites() {
+		return writes.get();
+	}
+
+	public double getAverageLatencyMillis() {
+		long count = writes.get();
+		return count == 0 ? 0 : totalLatencyNanos.get() / 1e6 / count;
+	}
+
+	public double getMaxLatencyMillis() {
+		return maxLatencyNanos.get() / 1e6;
+	}
+
+	private void writeLoop() {
+		PendingWrite write;
+		while ((write = take()) != null) {
+			boolean written = true;
+			try {
+				fileManager.savePieceToDisk(write.pieceIndex, write.data);
+			} catch (IOException e) {
+				logger.error("Error writing piece {} to disk", write.pieceIndex, e);
+				written = false;
+			}
+			long latency = System.nanoTime() - write.submitted;
+			writes.incrementAndGet();
+			totalLatencyNanos.addAndGet(latency);
+			maxLatencyNanos.accumulateAndGet(latency, Math::max);
+			release(write);
+			try {
+				diskWriteCallback.onPieceWritten(write.pieceIndex, written);
+			} catch (RuntimeException e) {
+				logger.warn("Handling written piece {} failed", write.pieceIndex, e);
+			}
+		}
+	}
+
+	// Null once stopped and drained
+	private PendingWrite take() {
+		lock.lock();
+		try {
+			while (queue.isEmpty()) {
+				if (stopped) {
+					return null;
+				}
+				notEmpty.awaitUninterruptibly();
+			}
+			return queue.poll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// The budget is freed only once the bytes are on disk, queued and in-flight pieces both count against it
+	private void release(PendingWrite write) {
+		lock.lock();
+		try {
+			queuedBytes -= write.data.length;
+			hasRoom.signalAll();
+			if (queuedBytes > maxQueuedBytes) {
+				return;
+			}
+		} finally {
+			lock.unlock();
+		}
+		resumePaused();
+	}
+
+	private void resumePaused() {
+		List<ReadThrottle> resumed;
+		lock.lock();
+		try {
+			resumed = new ArrayList<>(paused);
+			paused.clear();
+		} finally {
+			lock.unlock();
+		}
+		for (ReadThrottle throttle : resumed) {
+			throttle.resumeReads();
+		}
+	}
+
+	private static class PendingWrite {
+
+		private final int pieceIndex;
+		private final byte[] data;
+		private final long submitted;
+
+		PendingWrite(int pieceIndex, byte[] data, long submitted) {
+			this.pieceIndex = pieceIndex;
+			this.data = data;
+			this.submitted = submitted;
+		}
+	}
+}
@@ -0,0 +1,5 @@
+package com.torrentclient;
+
+public interface ExtensionMessageCallback {
+	void onExtendedMessage(Client client, int extendedId, byte[] payload);
+}
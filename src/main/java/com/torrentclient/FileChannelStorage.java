@@ -0,0 +1,120 @@
+package com.torrentclient;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Each piece is written straight to its place in the torrent's files with positional writes, so there is nothing to
+// merge. Files are created at full length on first use; a restart finds the pieces already there by their hashes
+public class FileChannelStorage implements PieceStorage {
+
+	private final String storagePath;
+	private final Torrent torrent;
+	private final Map<Integer, FileChannel> channels = new ConcurrentHashMap<>();
+
+	public FileChannelStorage(String storagePath, Torrent torrent) {
+		this.storagePath = storagePath;
+		this.torrent = torrent;
+	}
+
+	@Override
+	public boolean hasPiece(int pieceIndex) {
+		return FileManager.filesExist(storagePath, torrent, pieceIndex) && FileManager.matchesHash(this, torrent, pieceIndex);
+	}
+
+	@Override
+	public void write(int pieceIndex, int begin, ByteBuffer data) throws IOException {
+		for (FileSpan span : torrent.getFileSpans(pieceIndex, begin, data.remaining())) {
+			ByteBuffer source = FileManager.sliceSpan(data, begin, span);
+			FileChannel channel = getChannel(span.getFile());
+			long position = span.getFileOffset();
+			while (source.hasRemaining()) {
+				position += channel.write(source, position);
+			}
+		}
+		data.position(data.limit());
+	}
+
+	@Override
+	public void read(int pieceIndex, int begin, ByteBuffer destination) throws IOException {
+		int limit = destination.limit();
+		try {
+			for (FileSpan span : torrent.getFileSpans(pieceIndex, begin, destination.remaining())) {
+				destination.limit(destination.position() + span.getLength());
+				FileManager.readFully(getChannel(span.getFile()), span.getFileOffset(), destination);
+			}
+		} finally {
+			destination.limit(limit);
+		}
+	}
+
+	// Blocks spanning two files have no single position to send from
+	@Override
+	public FileRegion getRegion(int pieceIndex, int begin, int length) throws IOException {
+		List<FileSpan> spans = torrent.getFileSpans(pieceIndex, begin, length);
+		if (spans.size() != 1) {
+			return null;
+		}
+		return new FileRegion(getChannel(spans.get(0).getFile()), spans.get(0).getFileOffset());
+	}
+
+	@Override
+	public void flush() throws IOException {
+		for (FileChannel channel : channels.values()) {
+			channel.force(false);
+		}
+	}
+
+	// Empty files have no pieces that would have created them
+	@Override
+	public void finish() throws IOException {
+		flush();
+		for (TorrentFile file : torrent.getFiles()) {
+			if (file.getLength() == 0) {
+				getChannel(file);
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		FileManager.closeAll(channels.values());
+		channels.clear();
+	}
+
+	FileChannel getChannel(TorrentFile file) throws IOException {
+		try {
+			return channels.computeIfAbsent(file.getIndex(), index -> {
+				try {
+					return openPreallocated(FileManager.filePath(storagePath, torrent, file), file.getLength());
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	// Growing the file with setLength leaves the unwritten part sparse on file systems that support it
+	static FileChannel openPreallocated(Path path, long length) throws IOException {
+		Path parent = path.toAbsolutePath().getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+			if (raf.length() != length) {
+				raf.setLength(length);
+			}
+		}
+		return FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+}
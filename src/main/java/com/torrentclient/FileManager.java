@@ -1,81 +1,135 @@
 package com.torrentclient;
 
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+// Stores verified pieces in the configured PieceStorage and reads them back for seeding and streaming
 public class FileManager {
 
     private static final Logger logger = LoggerFactory.getLogger(FileManager.class);
-    private final String storagePath;
-    private final String torrentName;
-    private boolean isMerged;
+    private final PieceStorage storage;
+    private volatile boolean isMerged;
 
-    public FileManager(String storagePath, String torrentName) {
-        this.storagePath = storagePath;
-        this.torrentName = torrentName;
+    public FileManager(String storagePath, Torrent torrent, ClientSettings.Storage storage) {
+        this.storage = createStorage(storagePath, torrent, storage);
     }
 
-    public void savePieceToDisk(int pieceIndex, byte[] pieceData) {
-        String fragmentFileName = storagePath + File.separator + torrentName + ".piece." + pieceIndex;
-        logger.debug("Saving piece {}", pieceIndex);
-
-        File file = new File(fragmentFileName);
-        File parentDir = file.getParentFile();
-        if (!parentDir.exists()) {
-            parentDir.mkdirs();
+    static PieceStorage createStorage(String storagePath, Torrent torrent, ClientSettings.Storage storage) {
+        switch (storage) {
+            case PREALLOCATED:
+                return new FileChannelStorage(storagePath, torrent);
+            case MAPPED:
+                return new MappedStorage(storagePath, torrent, MappedStorage.DEFAULT_WINDOW_SIZE);
+            case MEMORY:
+                return new MemoryStorage(torrent);
+            default:
+                return new FragmentStorage(storagePath, torrent);
         }
+    }
 
-        try (FileOutputStream fos = new FileOutputStream(fragmentFileName)) {
-            fos.write(pieceData);
-        } catch (IOException e) {
-            logger.error("Error writing piece to disk", e);
-        }
+    // Read side for seeding. Null when the block cannot be sent straight from a file, readBlock copies those instead
+    public FileRegion getBlockRegion(int pieceIndex, int begin, int length) throws IOException {
+        return storage.getRegion(pieceIndex, begin, length);
     }
 
-    public void mergeFiles(int numberOfPieces, long torrentLength) {
-        String outputFile = storagePath + File.separator + torrentName;
-        System.out.println("\nMerging files");
-        // Merge process
-        try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-            for (int i = 0; i < numberOfPieces; i++) {
-                File pieceFile = new File(storagePath + File.separator + torrentName + ".piece." + i);
-                Files.copy(pieceFile.toPath(), fos);
-            }
+    // Fills what remains of destination with the piece's bytes from begin on
+    public void readBlock(int pieceIndex, int begin, ByteBuffer destination) throws IOException {
+        storage.read(pieceIndex, begin, destination);
+    }
+
+    public void savePieceToDisk(int pieceIndex, byte[] pieceData) throws IOException {
+        storage.write(pieceIndex, 0, ByteBuffer.wrap(pieceData));
+    }
+
+    // Puts the files in their final form, which for fragments means merging them
+    public void mergeFiles() {
+        System.out.println();
+        try {
+            storage.finish();
         } catch (IOException e) {
-            logger.debug("Merging failed"); 
-            return;  
-        }
-        File mergedFile = new File(outputFile);
-        long expectedSize = torrentLength;
-        isMerged=true;
-        if (mergedFile.length() == expectedSize) {
-        	System.out.println("Merging success, deleting parts");
-            for (int i = 0; i < numberOfPieces; i++) {
-                File pieceFile = new File(storagePath + File.separator + torrentName + ".piece." + i);
-                try {
-                    Files.deleteIfExists(pieceFile.toPath());
-                } catch (IOException e) {
-                	System.out.println("Failed to delete piece file: " + pieceFile.getName());
-                }
-            }
-        } else {
-            logger.warn("Merged file size doesn't match expected size. Not deleting piece files.");
+            logger.debug("Merging failed", e);
+            return;
         }
+        isMerged = true;
         System.out.println("Download succesfull, closing app");
     }
-    
+
     public boolean isPieceDownloaded(int pieceIndex) {
-        String pieceFileName = storagePath + File.separator + torrentName + ".piece." + pieceIndex;
-        File pieceFile = new File(pieceFileName);
-        return pieceFile.exists();
+        return storage.hasPiece(pieceIndex);
     }
-    
+
     public boolean isFileMerged() {
     	return isMerged;
     }
+
+    public void close() {
+        storage.close();
+    }
+
+    static Path filePath(String storagePath, Torrent torrent, TorrentFile file) {
+        Path root = Paths.get(storagePath).resolve(torrent.getName());
+        return torrent.isMultiFile() ? root.resolve(file.getPath()) : root;
+    }
+
+    // Whether every file the piece touches is on disk, so checking it creates none
+    static boolean filesExist(String storagePath, Torrent torrent, int pieceIndex) {
+        for (FileSpan span : torrent.getFileSpans(pieceIndex)) {
+            if (!Files.isRegularFile(filePath(storagePath, torrent, span.getFile()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Files written in place hold zeros where pieces are missing, only the hash tells whether a piece is there
+    static boolean matchesHash(PieceStorage storage, Torrent torrent, int pieceIndex) {
+        ByteBuffer piece = ByteBuffer.allocate(torrent.getPieceSize(pieceIndex));
+        try {
+            storage.read(pieceIndex, 0, piece);
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return Arrays.equals(sha1.digest(piece.array()), torrent.getPieceHash(pieceIndex));
+        } catch (IOException | NoSuchAlgorithmException e) {
+            return false;
+        }
+    }
+
+    // The part of data, which starts at begin within the piece, that belongs in the span
+    static ByteBuffer sliceSpan(ByteBuffer data, int begin, FileSpan span) {
+        ByteBuffer slice = data.duplicate();
+        slice.position(data.position() + span.getPieceOffset() - begin);
+        slice.limit(slice.position() + span.getLength());
+        return slice;
+    }
+
+    static void readFully(FileChannel channel, long position, ByteBuffer destination) throws IOException {
+        while (destination.hasRemaining()) {
+            int read = channel.read(destination, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file at " + position);
+            }
+            position += read;
+        }
+    }
+
+    static void closeAll(Collection<FileChannel> channels) {
+        for (FileChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug("Error closing channel", e);
+            }
+        }
+    }
 }
@@ -0,0 +1,77 @@
+package com.torrentclient;
+
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Declared from lowest to highest; a piece shared by several files gets the highest of their priorities
+public enum FilePriority {
+	SKIP,
+	LOW,
+	NORMAL,
+	HIGH;
+
+	private static final Logger logger = LoggerFactory.getLogger(FilePriority.class);
+
+	// Rules look like "glob=priority" and are matched against each file's path inside the torrent, first match wins
+	public static FilePriority[] forFiles(List<TorrentFile> files, List<String> rules) {
+		List<PathMatcher> matchers = new ArrayList<>();
+		List<FilePriority> rulePriorities = new ArrayList<>();
+		for (String rule : rules) {
+			int equals = rule.lastIndexOf('=');
+			try {
+				if (equals < 0) {
+					throw new IllegalArgumentException(rule);
+				}
+				FilePriority priority = valueOf(rule.substring(equals + 1).trim().toUpperCase());
+				matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + rule.substring(0, equals).trim()));
+				rulePriorities.add(priority);
+			} catch (IllegalArgumentException e) {
+				logger.warn("Ignoring file priority rule {}, expected glob=skip|low|normal|high", rule);
+			}
+		}
+		FilePriority[] priorities = new FilePriority[files.size()];
+		for (TorrentFile file : files) {
+			priorities[file.getIndex()] = NORMAL;
+			for (int i = 0; i < matchers.size(); i++) {
+				if (matches(matchers.get(i), file.getPath())) {
+					priorities[file.getIndex()] = rulePriorities.get(i);
+					break;
+				}
+			}
+		}
+		return priorities;
+	}
+
+	public static FilePriority[] forPieces(Torrent torrent, FilePriority[] filePriorities) {
+		FilePriority[] priorities = new FilePriority[torrent.getPieceHashes().length];
+		Arrays.fill(priorities, SKIP);
+		for (TorrentFile file : torrent.getFiles()) {
+			if (file.getLength() == 0) {
+				continue;
+			}
+			FilePriority priority = filePriorities[file.getIndex()];
+			for (int piece = torrent.getFirstPiece(file); piece <= torrent.getLastPiece(file); piece++) {
+				if (priority.compareTo(priorities[piece]) > 0) {
+					priorities[piece] = priority;
+				}
+			}
+		}
+		return priorities;
+	}
+
+	private static boolean matches(PathMatcher matcher, String path) {
+		try {
+			return matcher.matches(Paths.get(path));
+		} catch (InvalidPathException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package com.torrentclient;
+
+import java.nio.channels.FileChannel;
+
+import lombok.Data;
+
+// Where a block can be read from directly, so it can go out with transferTo
+@Data
+public class FileRegion {
+	private final FileChannel channel;
+	private final long position;
+
+	public FileRegion(FileChannel channel, long position) {
+		this.channel = channel;
+		this.position = position;
+	}
+}
@@ -0,0 +1,19 @@
+package com.torrentclient;
+
+import lombok.Data;
+
+// The part of a piece that lies in one file
+@Data
+public class FileSpan {
+	private final TorrentFile file;
+	private final long fileOffset;
+	private final int pieceOffset;
+	private final int length;
+
+	public FileSpan(TorrentFile file, long fileOffset, int pieceOffset, int length) {
+		this.file = file;
+		this.fileOffset = fileOffset;
+		this.pieceOffset = pieceOffset;
+		this.length = length;
+	}
+}
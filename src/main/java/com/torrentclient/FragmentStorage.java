@@ -0,0 +1,214 @@
+package com.torrentclient;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Pieces are kept in fragment files while downloading and merged into the torrent's files once complete.
+// A multi-file torrent is merged into a directory named after it
+public class FragmentStorage implements PieceStorage {
+
+    private static final Logger logger = LoggerFactory.getLogger(FragmentStorage.class);
+    private final String storagePath;
+    private final String torrentName;
+    private final Torrent torrent;
+    // Reads the merged files once there are some
+    private final FileChannelStorage merged;
+    private volatile boolean isMerged;
+    private final Map<Integer, FileChannel> readChannels = new ConcurrentHashMap<>();
+    // Pieces that also hold bytes of a file left out of the merge keep their fragment to be read from
+    private final Set<Integer> keptFragments = ConcurrentHashMap.newKeySet();
+
+    public FragmentStorage(String storagePath, Torrent torrent) {
+        this.storagePath = storagePath;
+        this.torrentName = torrent.getName();
+        this.torrent = torrent;
+        this.merged = new FileChannelStorage(storagePath, torrent);
+    }
+
+    @Override
+    public boolean hasPiece(int pieceIndex) {
+        File pieceFile = new File(fragmentFileName(pieceIndex));
+        return pieceFile.exists();
+    }
+
+    @Override
+    public void write(int pieceIndex, int begin, ByteBuffer data) throws IOException {
+        String fragmentFileName = fragmentFileName(pieceIndex);
+        logger.debug("Saving piece {}", pieceIndex);
+
+        File file = new File(fragmentFileName);
+        File parentDir = file.getParentFile();
+        if (!parentDir.exists()) {
+            parentDir.mkdirs();
+        }
+
+        try (FileChannel fragment = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long position = begin;
+            while (data.hasRemaining()) {
+                position += fragment.write(data, position);
+            }
+        }
+    }
+
+    @Override
+    public void read(int pieceIndex, int begin, ByteBuffer destination) throws IOException {
+        if (readsFragment(pieceIndex)) {
+            FileManager.readFully(getFragmentChannel(pieceIndex), begin, destination);
+        } else {
+            merged.read(pieceIndex, begin, destination);
+        }
+    }
+
+    // Channels stay open so transferTo can reuse them
+    @Override
+    public FileRegion getRegion(int pieceIndex, int begin, int length) throws IOException {
+        if (readsFragment(pieceIndex)) {
+            return new FileRegion(getFragmentChannel(pieceIndex), begin);
+        }
+        return merged.getRegion(pieceIndex, begin, length);
+    }
+
+    private boolean readsFragment(int pieceIndex) {
+        return !isMerged || keptFragments.contains(pieceIndex);
+    }
+
+    private FileChannel getFragmentChannel(int pieceIndex) throws IOException {
+        try {
+            return readChannels.computeIfAbsent(pieceIndex, k -> openReadChannel(fragmentFileName(pieceIndex)));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private FileChannel openReadChannel(String fileName) {
+        try {
+            return FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private String fragmentFileName(int pieceIndex) {
+        return storagePath + File.separator + torrentName + ".piece." + pieceIndex;
+    }
+
+    // Fragments are written in one go and closed, there is nothing left to flush
+    @Override
+    public void flush() {
+    }
+
+    // Files some of whose pieces were never downloaded, such as skipped ones, are left out
+    @Override
+    public void finish() throws IOException {
+        System.out.println("Merging files");
+        boolean sizesMatch = true;
+        for (TorrentFile file : torrent.getFiles()) {
+            if (!hasAllPieces(file)) {
+                logger.info("Not writing {}, some of its pieces were not downloaded", file.getPath());
+                keepFragments(file);
+                continue;
+            }
+            Path output = FileManager.filePath(storagePath, torrent, file);
+            writeFile(file, output);
+            sizesMatch &= Files.size(output) == file.getLength();
+        }
+        isMerged=true;
+        closeFragments();
+        if (sizesMatch) {
+        	System.out.println("Merging success, deleting parts");
+            for (int i = 0; i < torrent.getPieceHashes().length; i++) {
+                if (keptFragments.contains(i)) {
+                    continue;
+                }
+                File pieceFile = new File(fragmentFileName(i));
+                try {
+                    Files.deleteIfExists(pieceFile.toPath());
+                } catch (IOException e) {
+                	System.out.println("Failed to delete piece file: " + pieceFile.getName());
+                }
+            }
+        } else {
+            logger.warn("Merged file size doesn't match expected size. Not deleting piece files.");
+        }
+    }
+
+    // Each piece overlapping the file contributes the span that lies inside it
+    private void writeFile(TorrentFile file, Path output) throws IOException {
+        Path parent = output.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        try (FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (file.getLength() == 0) {
+                return;
+            }
+            for (int piece = torrent.getFirstPiece(file); piece <= torrent.getLastPiece(file); piece++) {
+                try (FileChannel fragment = FileChannel.open(Paths.get(fragmentFileName(piece)), StandardOpenOption.READ)) {
+                    for (FileSpan span : torrent.getFileSpans(piece)) {
+                        if (span.getFile().getIndex() == file.getIndex()) {
+                            transferFully(fragment, span.getPieceOffset(), span.getLength(), out, span.getFileOffset());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void transferFully(FileChannel source, long position, long count, FileChannel target, long targetPosition) throws IOException {
+        target.position(targetPosition);
+        while (count > 0) {
+            long transferred = source.transferTo(position, count, target);
+            if (transferred <= 0) {
+                throw new EOFException("Fragment ended early");
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+    private boolean hasAllPieces(TorrentFile file) {
+        if (file.getLength() == 0) {
+            return true;
+        }
+        for (int piece = torrent.getFirstPiece(file); piece <= torrent.getLastPiece(file); piece++) {
+            if (!hasPiece(piece)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void keepFragments(TorrentFile file) {
+        if (file.getLength() == 0) {
+            return;
+        }
+        for (int piece = torrent.getFirstPiece(file); piece <= torrent.getLastPiece(file); piece++) {
+            keptFragments.add(piece);
+        }
+    }
+
+    private void closeFragments() {
+        FileManager.closeAll(readChannels.values());
+        readChannels.clear();
+    }
+
+    @Override
+    public void close() {
+        closeFragments();
+        merged.close();
+    }
+}
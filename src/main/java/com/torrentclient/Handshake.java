@@ -7,6 +7,13 @@ import lombok.Data;
 
 @Data
 public class Handshake {
+
+	private static final int FAST_EXTENSION_BYTE = 7;
+	private static final int FAST_EXTENSION_BIT = 0x04;
+	private static final int EXTENSION_PROTOCOL_BYTE = 5;
+	private static final int EXTENSION_PROTOCOL_BIT = 0x10;
+	private static final int DHT_BYTE = 7;
+	private static final int DHT_BIT = 0x01;
 	    
 	private String pstr;
     private byte[] infoHash;
@@ -19,13 +26,15 @@ public class Handshake {
 		this.pstr = "BitTorrent protocol";
 		this.infoHash = infoHash;
 		this.reserved = new byte[8];
+		this.reserved[FAST_EXTENSION_BYTE] |= FAST_EXTENSION_BIT;
+		this.reserved[EXTENSION_PROTOCOL_BYTE] |= EXTENSION_PROTOCOL_BIT;
 		this.peerId = peerId;
 	}
     
 
 	public Handshake(byte[] pstrBytes, byte[] infoHash, byte[] peerId, byte[] reserved) {
 		super();
-		this.pstr = pstrBytes.toString();
+		this.pstr = new String(pstrBytes);
 		this.infoHash = infoHash;
 		this.peerId = peerId;
 		this.reserved = reserved;
@@ -38,13 +47,32 @@ public class Handshake {
 	    ByteBuffer handshakeBuffer = ByteBuffer.allocate(handshakeLength);
 	    handshakeBuffer.put((byte) pstrlen);
 	    handshakeBuffer.put(pstr.getBytes());
-	    handshakeBuffer.put(new byte[8]);
+	    handshakeBuffer.put(reserved);
 	    handshakeBuffer.put(infoHash);
 	    handshakeBuffer.put(peerId); 
 	    return handshakeBuffer.array();
 		
 	}
 	
+	// BEP 6, reserved bit 62
+	public boolean supportsFastExtension() {
+		return (reserved[FAST_EXTENSION_BYTE] & FAST_EXTENSION_BIT) != 0;
+	}
+
+	// BEP 5, reserved bit 63; only set when we run a DHT node to send PORT messages about
+	public void enableDht() {
+		reserved[DHT_BYTE] |= DHT_BIT;
+	}
+
+	public boolean supportsDht() {
+		return (reserved[DHT_BYTE] & DHT_BIT) != 0;
+	}
+
+	// BEP 10, reserved bit 20
+	public boolean supportsExtensionProtocol() {
+		return (reserved[EXTENSION_PROTOCOL_BYTE] & EXTENSION_PROTOCOL_BIT) != 0;
+	}
+
 	public static boolean isHandshake(byte[] responseBytes) {
         byte[] protocolBytes = "BitTorrent protocol".getBytes();
         return Arrays.equals(Arrays.copyOfRange(responseBytes, 1, 20), protocolBytes);
@@ -63,7 +91,7 @@ public class Handshake {
         buffer.get(infoHash);
         byte[] peerId = new byte[20];
         buffer.get(peerId);
-        return new Handshake(pstrBytes, reservedBytes, infoHash, peerId);
+        return new Handshake(pstrBytes, infoHash, peerId, reservedBytes);
     }
     
 
@@ -0,0 +1,135 @@
+package com.torrentclient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Pieces are copied straight into memory-mapped windows of the torrent's files, the page cache takes them without a
+// write call each. Files are mapped a window at a time so multi-GB torrents fit the address space, the most recently
+// used windows stay mapped. Seeding sends from the same page cache with transferTo, no copy passes through us
+public class MappedStorage implements PieceStorage {
+
+	public static final long DEFAULT_WINDOW_SIZE = 64L * 1024 * 1024;
+	private static final int MAX_MAPPED_WINDOWS = 32;
+
+	private final Torrent torrent;
+	private final long windowSize;
+	// Opens and sizes the files, and serves everything that is not a copy through a mapping
+	private final FileChannelStorage files;
+	// Keyed by file index in the high half and window index in the low one, least recently used first. A window
+	// dropped here is unmapped once collected; its dirty pages stay in the page cache and still reach the disk
+	private final Map<Long, MappedByteBuffer> windows = new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+			return size() > MAX_MAPPED_WINDOWS;
+		}
+	};
+
+	public MappedStorage(String storagePath, Torrent torrent, long windowSize) {
+		this.torrent = torrent;
+		this.windowSize = windowSize;
+		this.files = new FileChannelStorage(storagePath, torrent);
+	}
+
+	// Checked through the channel, mapping every file just to hash it would evict the windows worth keeping
+	@Override
+	public boolean hasPiece(int pieceIndex) {
+		return files.hasPiece(pieceIndex);
+	}
+
+	@Override
+	public void write(int pieceIndex, int begin, ByteBuffer data) throws IOException {
+		for (FileSpan span : torrent.getFileSpans(pieceIndex, begin, data.remaining())) {
+			ByteBuffer source = FileManager.sliceSpan(data, begin, span);
+			long position = span.getFileOffset();
+			while (source.hasRemaining()) {
+				ByteBuffer target = window(span.getFile(), position);
+				int chunk = Math.min(source.remaining(), target.remaining());
+				ByteBuffer part = source.duplicate();
+				part.limit(part.position() + chunk);
+				target.put(part);
+				source.position(source.position() + chunk);
+				position += chunk;
+			}
+		}
+		data.position(data.limit());
+	}
+
+	@Override
+	public void read(int pieceIndex, int begin, ByteBuffer destination) throws IOException {
+		for (FileSpan span : torrent.getFileSpans(pieceIndex, begin, destination.remaining())) {
+			long position = span.getFileOffset();
+			int remaining = span.getLength();
+			while (remaining > 0) {
+				ByteBuffer source = window(span.getFile(), position);
+				int chunk = Math.min(remaining, source.remaining());
+				source.limit(source.position() + chunk);
+				destination.put(source);
+				position += chunk;
+				remaining -= chunk;
+			}
+		}
+	}
+
+	@Override
+	public FileRegion getRegion(int pieceIndex, int begin, int length) throws IOException {
+		return files.getRegion(pieceIndex, begin, length);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		List<MappedByteBuffer> mapped;
+		synchronized (windows) {
+			mapped = new ArrayList<>(windows.values());
+		}
+		for (MappedByteBuffer window : mapped) {
+			window.force();
+		}
+		// Also covers pages written through windows that were dropped since
+		files.flush();
+	}
+
+	@Override
+	public void finish() throws IOException {
+		flush();
+		files.finish();
+	}
+
+	// Pieces of an unfinished download are forced out too, so a restart finds them
+	@Override
+	public void close() {
+		try {
+			flush();
+		} catch (IOException e) {
+			// Still in the page cache, the system writes them back on its own
+		}
+		synchronized (windows) {
+			windows.clear();
+		}
+		files.close();
+	}
+
+	// A view of the window holding the position, positioned there and reaching to the end of the window
+	private ByteBuffer window(TorrentFile file, long position) throws IOException {
+		long index = position / windowSize;
+		long key = ((long) file.getIndex() << 32) | index;
+		MappedByteBuffer window;
+		synchronized (windows) {
+			window = windows.get(key);
+			if (window == null) {
+				long start = index * windowSize;
+				long size = Math.min(windowSize, file.getLength() - start);
+				window = files.getChannel(file).map(FileChannel.MapMode.READ_WRITE, start, size);
+				windows.put(key, window);
+			}
+		}
+		ByteBuffer view = window.duplicate();
+		view.position((int) (position - index * windowSize));
+		return view;
+	}
+}
@@ -0,0 +1,58 @@
+package com.torrentclient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Keeps pieces on the heap and never touches the disk, for tests and for measuring the client without it
+public class MemoryStorage implements PieceStorage {
+
+	private final Torrent torrent;
+	private final AtomicReferenceArray<byte[]> pieces;
+
+	public MemoryStorage(Torrent torrent) {
+		this.torrent = torrent;
+		this.pieces = new AtomicReferenceArray<>(torrent.getPieceHashes().length);
+	}
+
+	@Override
+	public boolean hasPiece(int pieceIndex) {
+		return pieces.get(pieceIndex) != null;
+	}
+
+	@Override
+	public void write(int pieceIndex, int begin, ByteBuffer data) {
+		byte[] piece = pieces.get(pieceIndex);
+		if (piece == null) {
+			pieces.compareAndSet(pieceIndex, null, new byte[torrent.getPieceSize(pieceIndex)]);
+			piece = pieces.get(pieceIndex);
+		}
+		data.get(piece, begin, data.remaining());
+	}
+
+	@Override
+	public void read(int pieceIndex, int begin, ByteBuffer destination) throws IOException {
+		byte[] piece = pieces.get(pieceIndex);
+		if (piece == null) {
+			throw new IOException("Piece " + pieceIndex + " is not stored");
+		}
+		destination.put(piece, begin, destination.remaining());
+	}
+
+	@Override
+	public FileRegion getRegion(int pieceIndex, int begin, int length) {
+		return null;
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void finish() {
+	}
+
+	@Override
+	public void close() {
+	}
+}
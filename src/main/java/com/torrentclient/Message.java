@@ -8,6 +8,9 @@ import com.torrentclient.exceptions.WrongMessageTypeException;
 import com.torrentclient.exceptions.WrongPayloadLengthException;
 
 public class Message {
+    public static final int REQUEST_FRAME_LENGTH = 17;
+    public static final int PIECE_HEADER_LENGTH = 13;
+
     private MessageType type;
     private byte[] payload;
 
@@ -43,6 +46,11 @@ public class Message {
     	if (message.getType()!=MessageType.HAVE) {
             throw new WrongMessageTypeException("Expected message type HAVE.");
     	}
+    	return parsePieceIndex(message);
+    }
+
+    // HAVE, SUGGEST_PIECE and ALLOWED_FAST all carry a single piece index
+    public static int parsePieceIndex(Message message) throws WrongPayloadLengthException {
     	if (message.getPayload().length!=4) {
             throw new WrongPayloadLengthException("Expected payload length of 4 bytes.");
     	}
@@ -98,11 +106,60 @@ public class Message {
     }
     
     public static Message createHaveMessage(int index) {
-    	byte[] payload = new byte[12];
+    	byte[] payload = new byte[4];
     	ByteBuffer.wrap(payload, 0, 4).putInt(index);
     	return new Message(MessageType.HAVE,payload);
     }
     
+    public static Message createAllowedFastMessage(int index) {
+    	byte[] payload = new byte[4];
+    	ByteBuffer.wrap(payload, 0, 4).putInt(index);
+    	return new Message(MessageType.ALLOWED_FAST,payload);
+    }
+    
+    public static Message createRejectRequestMessage(BlockRequest request) {
+    	Message message = createRequestMessage(request.getPieceIndex(), request.getBegin(), request.getBlockLength());
+    	return new Message(MessageType.REJECT_REQUEST, message.getPayload());
+    }
+    
+    public static Message createCancelMessage(BlockRequest request) {
+    	Message message = createRequestMessage(request.getPieceIndex(), request.getBegin(), request.getBlockLength());
+    	return new Message(MessageType.CANCEL, message.getPayload());
+    }
+    
+    // BEP 5: the UDP port our DHT node listens on
+    public static Message createPortMessage(int port) {
+    	byte[] payload = new byte[2];
+    	ByteBuffer.wrap(payload).putShort((short) port);
+    	return new Message(MessageType.PORT,payload);
+    }
+
+    public static int parsePortMessage(Message message) throws WrongPayloadLengthException {
+    	if (message.getPayload().length!=2) {
+            throw new WrongPayloadLengthException("Expected payload length of 2 bytes.");
+    	}
+    	return ByteBuffer.wrap(message.getPayload()).getShort() & 0xFFFF;
+    }
+
+    public static Message createExtendedMessage(int extendedId, byte[] body) {
+    	byte[] payload = new byte[body.length + 1];
+    	payload[0] = (byte) extendedId;
+    	System.arraycopy(body, 0, payload, 1, body.length);
+    	return new Message(MessageType.EXTENDED,payload);
+    }
+    
+    public static Message createHaveAllMessage() {
+    	return new Message(MessageType.HAVE_ALL,new byte[0]);
+    }
+    
+    public static Message createHaveNoneMessage() {
+    	return new Message(MessageType.HAVE_NONE,new byte[0]);
+    }
+    
+    public static Message createBitfieldMessage(byte[] bitfield) {
+    	return new Message(MessageType.BITFIELD,bitfield);
+    }
+    
     public static Message createInterestedMessage() {
     	return new Message(MessageType.INTERESTED,new byte[0]);
     }
@@ -115,6 +172,22 @@ public class Message {
     	return new Message(MessageType.UNCHOKE,new byte[0]);
     }
     
+    public static Message createChokeMessage() {
+    	return new Message(MessageType.CHOKE,new byte[0]);
+    }
+
+    public static BlockRequest parseRequestMessage(Message message) throws WrongMessageTypeException, WrongPayloadLengthException {
+    	if (message.getType() != MessageType.REQUEST && message.getType() != MessageType.CANCEL
+    			&& message.getType() != MessageType.REJECT_REQUEST) {
+    		throw new WrongMessageTypeException("Expected message type REQUEST, CANCEL or REJECT_REQUEST.");
+    	}
+    	if (message.getPayload().length != 12) {
+    		throw new WrongPayloadLengthException("Expected payload length of 12 bytes.");
+    	}
+    	ByteBuffer payload = ByteBuffer.wrap(message.getPayload());
+    	return new BlockRequest(payload.getInt(), payload.getInt(), payload.getInt());
+    }
+    
 
 	public MessageType getType() {
         return type;
@@ -124,6 +197,31 @@ public class Message {
         return payload;
     }
     
+    public int getFrameLength() {
+        return 5 + payload.length;
+    }
+
+    public void encodeTo(ByteBuffer buffer) {
+        buffer.putInt(payload.length + 1);
+        buffer.put((byte) type.getValue());
+        buffer.put(payload);
+    }
+
+    public static void encodePieceHeader(ByteBuffer buffer, int index, int begin, int length) {
+        buffer.putInt(9 + length);
+        buffer.put((byte) MessageType.PIECE.getValue());
+        buffer.putInt(index);
+        buffer.putInt(begin);
+    }
+
+    public static void encodeRequest(ByteBuffer buffer, int index, int begin, int length) {
+        buffer.putInt(13);
+        buffer.put((byte) MessageType.REQUEST.getValue());
+        buffer.putInt(index);
+        buffer.putInt(begin);
+        buffer.putInt(length);
+    }
+
     public byte[] serialize() {
         int length = payload.length+1;
         ByteBuffer buffer = ByteBuffer.allocate(4 + length);
@@ -11,7 +11,13 @@ public enum MessageType {
     REQUEST(6),
     PIECE(7),
     CANCEL(8),
-	PORT(9);
+	PORT(9),
+	SUGGEST_PIECE(13),
+	HAVE_ALL(14),
+	HAVE_NONE(15),
+	REJECT_REQUEST(16),
+	ALLOWED_FAST(17),
+	EXTENDED(20);
 
     private int value;
 
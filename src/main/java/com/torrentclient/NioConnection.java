@@ -0,0 +1,201 @@
+package com.torrentclient;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class NioConnection {
+
+	enum State {
+		BITFIELD,
+		ACTIVE
+	}
+
+	private static final int PIECE_HEADER_LENGTH = 13;
+	private static final int INITIAL_BUFFER_SIZE = 32 * 1024;
+	private static final int MAX_MESSAGE_LENGTH = 4 * 1024 * 1024;
+	private static final Logger logger = LoggerFactory.getLogger(NioConnection.class);
+
+	private final Client client;
+	private final SocketChannel channel;
+	private final ChannelTransport transport;
+	private final ClientConnectionCallback connectionCallback;
+	private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private State state = State.BITFIELD;
+	private ByteBuffer pendingBlock;
+	private boolean discardingBlock;
+	private int pendingPieceIndex;
+	private int pendingBegin;
+
+	public NioConnection(Client client, SocketChannel channel, ClientConnectionCallback connectionCallback) {
+		this.client = client;
+		this.channel = channel;
+		this.transport = new ChannelTransport(channel);
+		this.connectionCallback = connectionCallback;
+		client.setTransport(transport);
+	}
+
+	void register(SelectionKey key) {
+		transport.attach(key);
+		transport.markActivity();
+	}
+
+	void onWritable() throws IOException {
+		transport.flushPendingWrites();
+	}
+
+	void onReadable() throws IOException {
+		if (pendingBlock != null) {
+			if (channel.read(pendingBlock) == -1) {
+				throw new EOFException("Connection closed by the other end.");
+			}
+			transport.markActivity();
+			if (pendingBlock.hasRemaining()) {
+				return;
+			}
+			completePendingBlock();
+		}
+		int bytesRead = channel.read(readBuffer);
+		if (bytesRead == -1) {
+			throw new EOFException("Connection closed by the other end.");
+		}
+		transport.markActivity();
+		readBuffer.flip();
+		try {
+			while (channel.isOpen() && decodeNext()) {
+				// keep decoding until the buffer holds no complete frame
+			}
+		} finally {
+			readBuffer.compact();
+		}
+	}
+
+	private boolean decodeNext() throws IOException {
+		if (readBuffer.remaining() < 4) {
+			return false;
+		}
+		int length = readBuffer.getInt(readBuffer.position());
+		if (length < 0 || length > MAX_MESSAGE_LENGTH) {
+			throw new IOException("Invalid message length: " + length);
+		}
+		if (length > PIECE_HEADER_LENGTH - 4 && readBuffer.remaining() > 4
+				&& readBuffer.get(readBuffer.position() + 4) == MessageType.PIECE.getValue()) {
+			return decodePieceFrame(length);
+		}
+		if (readBuffer.remaining() < 4 + length) {
+			growReadBuffer(4 + length);
+			return false;
+		}
+		readBuffer.position(readBuffer.position() + 4);
+		if (length == 0) {
+			client.handleMessage(Message.createMessageObject(null));
+			dispatchStateTransition();
+			return true;
+		}
+		int typeByte = readBuffer.get() & 0xFF;
+		byte[] payload = new byte[length - 1];
+		readBuffer.get(payload);
+		MessageType type;
+		try {
+			type = MessageType.fromValue(typeByte);
+		} catch (IllegalArgumentException e) {
+			logger.debug("Ignoring message with unknown type: " + typeByte);
+			return true;
+		}
+		client.handleMessage(new Message(type, payload));
+		dispatchStateTransition();
+		return true;
+	}
+
+	// Only the 13-byte header is decoded here, the block itself is read straight into the client's block buffer
+	private boolean decodePieceFrame(int length) throws IOException {
+		if (readBuffer.remaining() < PIECE_HEADER_LENGTH) {
+			return false;
+		}
+		readBuffer.position(readBuffer.position() + 5);
+		pendingPieceIndex = readBuffer.getInt();
+		pendingBegin = readBuffer.getInt();
+		int blockLength = length - (PIECE_HEADER_LENGTH - 4);
+		pendingBlock = client.beginBlock(pendingPieceIndex, pendingBegin, blockLength);
+		discardingBlock = pendingBlock == null;
+		if (discardingBlock) {
+			pendingBlock = ByteBuffer.allocate(blockLength);
+		}
+		int available = Math.min(readBuffer.remaining(), blockLength);
+		ByteBuffer chunk = readBuffer.slice();
+		chunk.limit(available);
+		pendingBlock.put(chunk);
+		readBuffer.position(readBuffer.position() + available);
+		if (pendingBlock.hasRemaining()) {
+			return false;
+		}
+		completePendingBlock();
+		return true;
+	}
+
+	private void completePendingBlock() throws IOException {
+		ByteBuffer block = pendingBlock;
+		pendingBlock = null;
+		if (!discardingBlock) {
+			client.completeBlock(pendingPieceIndex, pendingBegin, block.flip());
+		}
+		dispatchStateTransition();
+	}
+
+	private void dispatchStateTransition() {
+		if (state == State.BITFIELD) {
+			if (client.getBitfield() != null) {
+				logger.debug("Got bitfield and handshake from peer: " + client.getPeer().getIpAddress() + ":" + client.getPeer().getPort());
+				state = State.ACTIVE;
+				client.setClientSetSuccessfully(true);
+				connectionCallback.onClientReady(client);
+			}
+		} else {
+			connectionCallback.onClientMessage(client);
+		}
+	}
+
+	private void growReadBuffer(int frameLength) {
+		if (readBuffer.capacity() >= frameLength) {
+			return;
+		}
+		ByteBuffer larger = ByteBuffer.allocate(frameLength);
+		larger.put(readBuffer);
+		larger.flip();
+		readBuffer = larger;
+	}
+
+	boolean isTimedOut(long now) {
+		return transport.isReadTimedOut(now);
+	}
+
+	boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	void close() {
+		client.closeConnection();
+	}
+
+	// Sends what other threads queued for the peer, such as HAVE messages
+	void flushQueued() throws IOException {
+		client.flush();
+	}
+
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	Client getClient() {
+		return client;
+	}
+
+	State getState() {
+		return state;
+	}
+}
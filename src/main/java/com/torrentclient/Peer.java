@@ -1,11 +1,12 @@
 package com.torrentclient;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -27,45 +28,12 @@ public class Peer {
         this.port = port;
     }
 
-    public static byte[] requestResponseWithPeerList(String requestUrl) {
-        HttpURLConnection connection = null;
-        byte response[] = null;
-
-        try {
-            connection = (HttpURLConnection) new URL(requestUrl).openConnection();
-            connection.setRequestMethod("GET");
-
-            int responseCode = connection.getResponseCode();
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                response = readResponse(connection);
-            } else {
-                logger.info("Request failed. Response Code: " + responseCode);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
-            }
-        }
-
-        return response;
-    }
-    
-    private static byte[] readResponse(HttpURLConnection connection) throws IOException {
-        try (InputStream in = connection.getInputStream()) {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            byte[] buffer = new byte[1024];
-            int bytesRead;
-            while ((bytesRead = in.read(buffer)) != -1) {
-                out.write(buffer, 0, bytesRead);
-            }
-            return out.toByteArray();
-        }
-    }
     public static List<Peer> makePeerList(byte[] responseWithPeerList) {
+        return makePeerList(new BencodeObject(responseWithPeerList));
+    }
+
+    public static List<Peer> makePeerList(BencodeObject bencodeResponse) {
         List<Peer> peers = new ArrayList<>();
-        BencodeObject bencodeResponse = new BencodeObject(responseWithPeerList);
         Object peersElement = getApropriateObject(bencodeResponse, "peers");
         if (peersElement instanceof BencodeArray) {
             BencodeArray peersArray = bencodeResponse.getBencodeArray("peers");
@@ -80,27 +48,37 @@ public class Peer {
                 }
             }
         } else if (peersElement instanceof byte[]) {
-            byte[] peersBytes = bencodeResponse.getBytes("peers");
-            for (int i = 0; i < peersBytes.length; i += 6) {
-                String ip = String.format("%d.%d.%d.%d", peersBytes[i] & 0xFF, peersBytes[i+1] & 0xFF, peersBytes[i+2] & 0xFF, peersBytes[i+3] & 0xFF);
-                int port = ((peersBytes[i+4] & 0xFF) << 8) | (peersBytes[i+5] & 0xFF);
-                peers.add(new Peer(ip, port));
-            }
+            peers.addAll(fromCompact(bencodeResponse.getBytes("peers")));
         }
-        logger.info("Peer list created succesfully");
+        logger.debug("Peer list created succesfully");
         return peers;
     }
-    
 
-    
-    public static List<Peer> fetchPeers(List<String> requestUrls) {
-        List<Peer> allPeers = new ArrayList<>();
-        for (String requestUrl : requestUrls) {
-            byte[] responseWithPeerList = requestResponseWithPeerList(requestUrl);
-            List<Peer> peers = makePeerList(responseWithPeerList);
-            allPeers.addAll(peers);
+    // Compact format: 4 bytes of IPv4 address and 2 bytes of port per peer
+    public static List<Peer> fromCompact(byte[] peersBytes) {
+        List<Peer> peers = new ArrayList<>();
+        for (int i = 0; i + 6 <= peersBytes.length; i += 6) {
+            String ip = String.format("%d.%d.%d.%d", peersBytes[i] & 0xFF, peersBytes[i+1] & 0xFF, peersBytes[i+2] & 0xFF, peersBytes[i+3] & 0xFF);
+            int port = ((peersBytes[i+4] & 0xFF) << 8) | (peersBytes[i+5] & 0xFF);
+            peers.add(new Peer(ip, port));
+        }
+        return peers;
+    }
+
+    public static byte[] toCompact(Collection<Peer> peers) {
+        ByteBuffer compact = ByteBuffer.allocate(peers.size() * 6);
+        for (Peer peer : peers) {
+            try {
+                InetAddress address = InetAddress.getByName(peer.getIpAddress());
+                if (address instanceof Inet4Address) {
+                    compact.put(address.getAddress());
+                    compact.putShort((short) peer.getPort());
+                }
+            } catch (UnknownHostException e) {
+                logger.debug("Skipping peer with unresolvable address " + peer.getIpAddress());
+            }
         }
-        return allPeers;
+        return Arrays.copyOf(compact.array(), compact.position());
     }
     
     public static Object getApropriateObject(BencodeObject bencodeObject, String key) {
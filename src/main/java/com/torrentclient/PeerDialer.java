@@ -0,0 +1,261 @@
+package com.torrentclient;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class PeerDialer implements Runnable {
+
+	private static final int HANDSHAKE_LENGTH = 68;
+	private static final int SELECT_INTERVAL = 200;
+	private static final Logger logger = LoggerFactory.getLogger(PeerDialer.class);
+
+	private final int maxPendingConnects;
+	private final int connectTimeout;
+	private final int handshakeTimeout;
+	private final PeerDialerCallback callback;
+	private final Selector selector;
+	private final Thread thread;
+	private final Queue<DialAttempt> queuedAttempts = new ConcurrentLinkedQueue<>();
+	private final Set<DialAttempt> pendingAttempts = new HashSet<>();
+	private final AtomicInteger outstandingAttempts = new AtomicInteger();
+	private volatile boolean running = true;
+
+	public PeerDialer(int maxPendingConnects, int connectTimeout, int handshakeTimeout, PeerDialerCallback callback) throws IOException {
+		this.maxPendingConnects = Math.max(1, maxPendingConnects);
+		this.connectTimeout = connectTimeout;
+		this.handshakeTimeout = handshakeTimeout;
+		this.callback = callback;
+		this.selector = Selector.open();
+		this.thread = new Thread(this, "peer-dialer");
+		this.thread.setDaemon(true);
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	public void dial(Peer peer, byte[] infoHash) {
+		outstandingAttempts.incrementAndGet();
+		queuedAttempts.offer(new DialAttempt(peer, infoHash));
+		selector.wakeup();
+	}
+
+	public void wakeup() {
+		selector.wakeup();
+	}
+
+	public boolean isBusy() {
+		return outstandingAttempts.get() > 0;
+	}
+
+	public int getOutstandingAttempts() {
+		return outstandingAttempts.get();
+	}
+
+	public void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				startQueuedAttempts();
+				selector.select(SELECT_INTERVAL);
+				processSelectedKeys();
+				expireAttempts();
+			} catch (IOException e) {
+				logger.debug("Dialer loop error", e);
+			}
+		}
+		for (DialAttempt attempt : pendingAttempts) {
+			attempt.close();
+		}
+		queuedAttempts.clear();
+		pendingAttempts.clear();
+		outstandingAttempts.set(0);
+		try {
+			selector.close();
+		} catch (IOException e) {
+			logger.debug("Error closing dialer selector");
+		}
+	}
+
+	private void startQueuedAttempts() {
+		while (pendingAttempts.size() < maxPendingConnects && callback.hasConnectionCapacity()) {
+			DialAttempt attempt = queuedAttempts.poll();
+			if (attempt == null) {
+				return;
+			}
+			try {
+				attempt.open();
+				pendingAttempts.add(attempt);
+			} catch (IOException | RuntimeException e) {
+				fail(attempt, "could not connect: " + e.getMessage());
+			}
+		}
+	}
+
+	// Taken out of the selected set first, completing an attempt selects again to let go of its channel
+	private void processSelectedKeys() {
+		List<SelectionKey> keys = new ArrayList<>(selector.selectedKeys());
+		selector.selectedKeys().clear();
+		for (SelectionKey key : keys) {
+			DialAttempt attempt = (DialAttempt) key.attachment();
+			try {
+				if (key.isValid() && key.isConnectable()) {
+					attempt.finishConnect();
+				}
+				if (key.isValid() && key.isWritable()) {
+					attempt.writeOpeningBytes();
+				}
+				if (key.isValid() && key.isReadable()) {
+					attempt.readHandshake();
+				}
+				if (key.isValid() && attempt.isComplete()) {
+					complete(attempt);
+				}
+			} catch (IOException | RuntimeException e) {
+				pendingAttempts.remove(attempt);
+				fail(attempt, e.getMessage());
+			}
+		}
+	}
+
+	private void expireAttempts() {
+		long now = System.currentTimeMillis();
+		Iterator<DialAttempt> iterator = pendingAttempts.iterator();
+		while (iterator.hasNext()) {
+			DialAttempt attempt = iterator.next();
+			if (now > attempt.deadline) {
+				iterator.remove();
+				fail(attempt, "timed out");
+			}
+		}
+	}
+
+	// The attempt stays outstanding until the session holds its slot, so the slot is never free in between
+	private void complete(DialAttempt attempt) throws IOException {
+		pendingAttempts.remove(attempt);
+		attempt.key.cancel();
+		selector.selectNow();
+		if (!callback.hasConnectionCapacity()) {
+			logger.debug("Dropping late handshake from peer " + attempt.peer.getIpAddress() + ", all connection slots are taken");
+			attempt.close();
+			outstandingAttempts.decrementAndGet();
+			callback.onDialCancelled(attempt.peer);
+			return;
+		}
+		callback.onPeerConnected(attempt.peer, attempt.channel, attempt.handshakeResponse.array());
+		outstandingAttempts.decrementAndGet();
+	}
+
+	private void fail(DialAttempt attempt, String reason) {
+		logger.debug("Dial to peer " + attempt.peer.getIpAddress() + ":" + attempt.peer.getPort() + " failed: " + reason);
+		attempt.close();
+		outstandingAttempts.decrementAndGet();
+		callback.onDialFailed(attempt.peer);
+	}
+
+	private class DialAttempt {
+
+		private final Peer peer;
+		private final byte[] infoHash;
+		private ByteBuffer openingBytes;
+		private final ByteBuffer handshakeResponse = ByteBuffer.allocate(HANDSHAKE_LENGTH);
+		private SocketChannel channel;
+		private SelectionKey key;
+		private long deadline;
+
+		DialAttempt(Peer peer, byte[] infoHash) {
+			this.peer = peer;
+			this.infoHash = infoHash;
+		}
+
+		void open() throws IOException {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			deadline = System.currentTimeMillis() + connectTimeout;
+			if (channel.connect(new InetSocketAddress(peer.getIpAddress(), peer.getPort()))) {
+				key = channel.register(selector, 0, this);
+				onConnected();
+			} else {
+				key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+			}
+		}
+
+		void finishConnect() throws IOException {
+			if (channel.finishConnect()) {
+				onConnected();
+			}
+		}
+
+		private void onConnected() throws IOException {
+			logger.debug("Connected to peer Ip: " + peer.getIpAddress());
+			deadline = System.currentTimeMillis() + handshakeTimeout;
+			key.interestOps(SelectionKey.OP_READ);
+			openingBytes = callback.createOpeningBytes();
+			writeOpeningBytes();
+		}
+
+		void writeOpeningBytes() throws IOException {
+			channel.write(openingBytes);
+			if (openingBytes.hasRemaining()) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			} else {
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			}
+		}
+
+		void readHandshake() throws IOException {
+			if (channel.read(handshakeResponse) == -1) {
+				throw new EOFException("connection closed during handshake");
+			}
+			if (handshakeResponse.hasRemaining()) {
+				return;
+			}
+			byte[] response = handshakeResponse.array();
+			if (!Handshake.isHandshake(response)) {
+				throw new IOException("peer did not answer with a BitTorrent handshake");
+			}
+			if (!Arrays.equals(Arrays.copyOfRange(response, 28, 48), infoHash)) {
+				throw new IOException("peer answered with a different info hash");
+			}
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+
+		boolean isComplete() {
+			return !handshakeResponse.hasRemaining() && openingBytes != null && !openingBytes.hasRemaining();
+		}
+
+		void close() {
+			try {
+				if (channel != null) {
+					channel.close();
+				}
+			} catch (IOException e) {
+				logger.debug("Error closing dial attempt");
+			}
+		}
+	}
+}
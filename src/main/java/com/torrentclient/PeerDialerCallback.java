@@ -0,0 +1,14 @@
+package com.torrentclient;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+public interface PeerDialerCallback {
+	boolean hasConnectionCapacity();
+	// Everything we say before a dialled peer answers, asked for once the connect completes so the bitfield is current
+	ByteBuffer createOpeningBytes();
+	void onPeerConnected(Peer peer, SocketChannel channel, byte[] handshakeResponse);
+	void onDialFailed(Peer peer);
+	// The handshake completed but every connection slot was taken by then
+	void onDialCancelled(Peer peer);
+}
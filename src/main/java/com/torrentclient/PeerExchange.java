@@ -0,0 +1,159 @@
+package com.torrentclient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import unet.bencode.variables.BencodeObject;
+
+// BEP 10 extension handshake and BEP 11 ut_pex. Private torrents still send the handshake, which tells peers
+// our listen port, but BEP 27 keeps them from swapping peers so ut_pex is neither offered nor answered
+public class PeerExchange implements ExtensionMessageCallback {
+
+	public static final int EXTENDED_HANDSHAKE_ID = 0;
+	public static final int UT_PEX_ID = 1;
+	private static final String CLIENT_VERSION = "TorrentClient 0.0.1";
+	private static final int MAX_PEERS_PER_MESSAGE = 50;
+	private static final int PEX_INTERVAL_SECONDS = 60;
+	private static final Logger logger = LoggerFactory.getLogger(PeerExchange.class);
+
+	private final List<Client> activeClients;
+	private final int listenPort;
+	private final Consumer<List<Peer>> peersDiscovered;
+	private final boolean pexEnabled;
+	private final ScheduledExecutorService pexExecutor;
+
+	public PeerExchange(List<Client> activeClients, int listenPort, Consumer<List<Peer>> peersDiscovered, boolean pexEnabled) {
+		this.activeClients = activeClients;
+		this.listenPort = listenPort;
+		this.peersDiscovered = peersDiscovered;
+		this.pexEnabled = pexEnabled;
+		this.pexExecutor = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	public void start() {
+		if (!pexEnabled) {
+			return;
+		}
+		pexExecutor.scheduleAtFixedRate(this::broadcastPeers, PEX_INTERVAL_SECONDS, PEX_INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+
+	public void stop() {
+		pexExecutor.shutdownNow();
+	}
+
+	public void onPeerReady(Client client) {
+		if (!client.isExtensionProtocol()) {
+			return;
+		}
+		BencodeObject extensions = new BencodeObject();
+		if (pexEnabled) {
+			extensions.put("ut_pex", UT_PEX_ID);
+		}
+		BencodeObject extendedHandshake = new BencodeObject();
+		extendedHandshake.put("m", extensions);
+		extendedHandshake.put("p", listenPort);
+		extendedHandshake.put("v", CLIENT_VERSION);
+		client.queueMessage(Message.createExtendedMessage(EXTENDED_HANDSHAKE_ID, extendedHandshake.encode()));
+	}
+
+	@Override
+	public void onExtendedMessage(Client client, int extendedId, byte[] payload) {
+		try {
+			if (extendedId == EXTENDED_HANDSHAKE_ID) {
+				handleExtendedHandshake(client, new BencodeObject(payload));
+			} else if (extendedId == UT_PEX_ID && pexEnabled) {
+				handlePexMessage(client, new BencodeObject(payload));
+			} else {
+				logger.debug("Ignoring extended message {} from peer {}", extendedId, client.getPeer().getIpAddress());
+			}
+		} catch (RuntimeException e) {
+			logger.debug("Malformed extended message from peer " + client.getPeer().getIpAddress(), e);
+		}
+	}
+
+	private void handleExtendedHandshake(Client client, BencodeObject extendedHandshake) {
+		BencodeObject extensions = extendedHandshake.getBencodeObject("m");
+		if (pexEnabled && extensions != null && extensions.containsKey("ut_pex")) {
+			client.setPeerPexId(extensions.getInteger("ut_pex"));
+		}
+		if (extendedHandshake.containsKey("p")) {
+			client.setPeerListenPort(extendedHandshake.getInteger("p"));
+		}
+		if (client.getPeerPexId() > 0) {
+			sendPeers(client, connectedPeers());
+		}
+	}
+
+	private void handlePexMessage(Client client, BencodeObject pex) {
+		if (!pex.containsKey("added")) {
+			return;
+		}
+		List<Peer> added = Peer.fromCompact(pex.getBytes("added"));
+		logger.debug("Peer {} told us about {} peers", client.getPeer().getIpAddress(), added.size());
+		if (!added.isEmpty()) {
+			peersDiscovered.accept(added);
+		}
+	}
+
+	private void broadcastPeers() {
+		Set<Peer> connected = connectedPeers();
+		for (Client client : activeClients) {
+			if (client.getPeerPexId() > 0 && client.isSocketOpen()) {
+				sendPeers(client, connected);
+			}
+		}
+	}
+
+	// Each peer only hears about what changed since the last message we sent it
+	private void sendPeers(Client client, Set<Peer> connected) {
+		Peer self = client.getListenAddress();
+		List<Peer> added = new ArrayList<>();
+		for (Peer peer : connected) {
+			if (added.size() < MAX_PEERS_PER_MESSAGE && !peer.equals(self) && !client.getAdvertisedPeers().contains(peer)) {
+				added.add(peer);
+			}
+		}
+		List<Peer> dropped = new ArrayList<>();
+		for (Peer peer : client.getAdvertisedPeers()) {
+			if (dropped.size() < MAX_PEERS_PER_MESSAGE && !connected.contains(peer)) {
+				dropped.add(peer);
+			}
+		}
+		if (added.isEmpty() && dropped.isEmpty()) {
+			return;
+		}
+		BencodeObject pex = new BencodeObject();
+		pex.put("added", Peer.toCompact(added));
+		pex.put("added.f", new byte[added.size()]);
+		pex.put("dropped", Peer.toCompact(dropped));
+		try {
+			client.queueMessage(Message.createExtendedMessage(client.getPeerPexId(), pex.encode()));
+			client.flush();
+			client.getAdvertisedPeers().addAll(added);
+			client.getAdvertisedPeers().removeAll(dropped);
+		} catch (IOException e) {
+			logger.debug("Could not send peer exchange to peer " + client.getPeer().getIpAddress());
+		}
+	}
+
+	private Set<Peer> connectedPeers() {
+		Set<Peer> connected = new HashSet<>();
+		for (Client client : activeClients) {
+			Peer address = client.getListenAddress();
+			if (address != null && client.isSocketOpen()) {
+				connected.add(address);
+			}
+		}
+		return connected;
+	}
+}
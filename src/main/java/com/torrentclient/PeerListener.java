@@ -0,0 +1,249 @@
+package com.torrentclient;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class PeerListener implements Runnable {
+
+	private static final int HANDSHAKE_LENGTH = 68;
+	private static final int SELECT_INTERVAL = 200;
+	private static final Logger logger = LoggerFactory.getLogger(PeerListener.class);
+
+	private final int handshakeTimeout;
+	private final int maxPendingHandshakes;
+	private final ServerSocketChannel serverChannel;
+	private final Selector selector;
+	private final SelectionKey acceptKey;
+	private final Thread thread;
+	private final Map<String, PeerListenerCallback> torrents = new ConcurrentHashMap<>();
+	private final Set<InboundAttempt> pendingAttempts = new HashSet<>();
+	private volatile boolean running = true;
+
+	public PeerListener(int port, int backlog, int handshakeTimeout) throws IOException {
+		this.handshakeTimeout = handshakeTimeout;
+		this.maxPendingHandshakes = Math.max(1, backlog);
+		this.selector = Selector.open();
+		this.serverChannel = ServerSocketChannel.open();
+		SelectionKey key;
+		try {
+			serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			serverChannel.bind(new InetSocketAddress(port), backlog);
+			serverChannel.configureBlocking(false);
+			key = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			serverChannel.close();
+			selector.close();
+			throw e;
+		}
+		this.acceptKey = key;
+		this.thread = new Thread(this, "peer-listener");
+		this.thread.setDaemon(true);
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	public void register(byte[] infoHash, PeerListenerCallback callback) {
+		torrents.put(HexFormat.of().formatHex(infoHash), callback);
+	}
+
+	public void unregister(byte[] infoHash) {
+		torrents.remove(HexFormat.of().formatHex(infoHash));
+	}
+
+	public void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		logger.info("Listening for incoming peers on port {}", getPort());
+		while (running) {
+			try {
+				// Leave further connections in the kernel backlog while too many handshakes are pending
+				acceptKey.interestOps(pendingAttempts.size() < maxPendingHandshakes ? SelectionKey.OP_ACCEPT : 0);
+				selector.select(SELECT_INTERVAL);
+				processSelectedKeys();
+				expireAttempts();
+			} catch (IOException e) {
+				logger.debug("Listener loop error", e);
+			}
+		}
+		for (InboundAttempt attempt : pendingAttempts) {
+			attempt.close();
+		}
+		pendingAttempts.clear();
+		try {
+			serverChannel.close();
+			selector.close();
+		} catch (IOException e) {
+			logger.debug("Error closing listener");
+		}
+	}
+
+	private void processSelectedKeys() {
+		Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+		while (iterator.hasNext()) {
+			SelectionKey key = iterator.next();
+			iterator.remove();
+			if (key.isValid() && key.isAcceptable()) {
+				acceptConnections();
+				continue;
+			}
+			InboundAttempt attempt = (InboundAttempt) key.attachment();
+			try {
+				if (key.isValid() && key.isReadable()) {
+					attempt.readHandshake();
+				}
+				if (key.isValid() && key.isWritable()) {
+					attempt.writeOpeningBytes();
+				}
+				if (key.isValid() && attempt.isComplete()) {
+					complete(attempt);
+				}
+			} catch (IOException | RuntimeException e) {
+				pendingAttempts.remove(attempt);
+				reject(attempt, e.getMessage());
+			}
+		}
+	}
+
+	private void acceptConnections() {
+		while (pendingAttempts.size() < maxPendingHandshakes) {
+			try {
+				SocketChannel channel = serverChannel.accept();
+				if (channel == null) {
+					return;
+				}
+				InboundAttempt attempt = new InboundAttempt(channel);
+				attempt.open();
+				pendingAttempts.add(attempt);
+			} catch (IOException e) {
+				logger.debug("Could not accept incoming connection", e);
+				return;
+			}
+		}
+	}
+
+	private void expireAttempts() {
+		long now = System.currentTimeMillis();
+		Iterator<InboundAttempt> iterator = pendingAttempts.iterator();
+		while (iterator.hasNext()) {
+			InboundAttempt attempt = iterator.next();
+			if (now > attempt.deadline) {
+				iterator.remove();
+				reject(attempt, "timed out");
+			}
+		}
+	}
+
+	private void complete(InboundAttempt attempt) throws IOException {
+		pendingAttempts.remove(attempt);
+		attempt.key.cancel();
+		selector.selectNow();
+		if (!attempt.callback.hasInboundCapacity()) {
+			reject(attempt, "all inbound slots are taken");
+			return;
+		}
+		attempt.callback.onInboundPeer(attempt.peer, attempt.channel, attempt.handshake.array());
+	}
+
+	private void reject(InboundAttempt attempt, String reason) {
+		logger.debug("Rejected incoming peer " + attempt.peer.getIpAddress() + ":" + attempt.peer.getPort() + ": " + reason);
+		attempt.close();
+	}
+
+	private class InboundAttempt {
+
+		private final SocketChannel channel;
+		private final ByteBuffer handshake = ByteBuffer.allocate(HANDSHAKE_LENGTH);
+		private Peer peer;
+		private PeerListenerCallback callback;
+		private ByteBuffer openingBytes;
+		private SelectionKey key;
+		private long deadline;
+
+		InboundAttempt(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		void open() throws IOException {
+			InetSocketAddress address = (InetSocketAddress) channel.getRemoteAddress();
+			peer = new Peer(address.getAddress().getHostAddress(), address.getPort());
+			deadline = System.currentTimeMillis() + handshakeTimeout;
+			try {
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				key = channel.register(selector, SelectionKey.OP_READ, this);
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		void readHandshake() throws IOException {
+			if (channel.read(handshake) == -1) {
+				throw new EOFException("connection closed during handshake");
+			}
+			if (handshake.hasRemaining()) {
+				return;
+			}
+			byte[] request = handshake.array();
+			if (!Handshake.isHandshake(request)) {
+				throw new IOException("not a BitTorrent handshake");
+			}
+			callback = torrents.get(HexFormat.of().formatHex(Handshake.fromBytes(request).getInfoHash()));
+			if (callback == null) {
+				throw new IOException("unknown info hash");
+			}
+			if (!callback.hasInboundCapacity()) {
+				throw new IOException("all inbound slots are taken");
+			}
+			// Our handshake goes out only once we know which torrent the peer wants
+			openingBytes = callback.createOpeningBytes(request);
+			key.interestOps(SelectionKey.OP_WRITE);
+			writeOpeningBytes();
+		}
+
+		void writeOpeningBytes() throws IOException {
+			channel.write(openingBytes);
+			if (!openingBytes.hasRemaining()) {
+				key.interestOps(0);
+			}
+		}
+
+		boolean isComplete() {
+			return openingBytes != null && !openingBytes.hasRemaining();
+		}
+
+		void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.debug("Error closing incoming connection");
+			}
+		}
+	}
+}
@@ -0,0 +1,10 @@
+package com.torrentclient;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+public interface PeerListenerCallback {
+	boolean hasInboundCapacity();
+	ByteBuffer createOpeningBytes(byte[] peerHandshake);
+	void onInboundPeer(Peer peer, SocketChannel channel, byte[] handshake);
+}
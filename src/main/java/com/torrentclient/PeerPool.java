@@ -0,0 +1,155 @@
+package com.torrentclient;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Every peer address we heard of, with what connecting to it taught us. Free connection slots go to the
+// best scored peers; peers that fail wait longer before each retry, and peers sending bad data are banned by IP
+public class PeerPool {
+
+	// Untried peers are ranked as if they delivered this rate, so they get a chance before known slow peers
+	private static final double UNTRIED_RATE = 16 * 1024;
+	private static final double RATE_SMOOTHING = 0.5;
+	private static final double HASH_FAILURE_PENALTY = 64 * 1024;
+	private static final long RECONNECT_DELAY_MILLIS = 5_000;
+	private static final long RETRY_BASE_MILLIS = 30_000;
+	private static final long MAX_RETRY_DELAY_MILLIS = 30 * 60_000;
+	private static final int MAX_HASH_FAILURES = 3;
+	private static final Logger logger = LoggerFactory.getLogger(PeerPool.class);
+
+	private final Map<Peer, PeerRecord> records = new HashMap<>();
+	private final Set<String> bannedAddresses = new HashSet<>();
+	// Keyed by IP so data sent over inbound connections, which arrive from ephemeral ports, counts too
+	private final Map<String, Integer> hashFailures = new HashMap<>();
+
+	// Returns true when the address was not known yet
+	public synchronized boolean add(Peer peer) {
+		if (bannedAddresses.contains(peer.getIpAddress()) || records.containsKey(peer)) {
+			return false;
+		}
+		records.put(peer, new PeerRecord());
+		return true;
+	}
+
+	// Hands out up to count idle peers whose retry delay is over, best first, and marks them as being dialled
+	public synchronized List<Peer> nextCandidates(int count, Predicate<Peer> exclude) {
+		long now = System.currentTimeMillis();
+		List<Peer> eligible = new ArrayList<>();
+		for (Map.Entry<Peer, PeerRecord> entry : records.entrySet()) {
+			PeerRecord record = entry.getValue();
+			if (!record.inUse && record.nextAttemptAt <= now && !exclude.test(entry.getKey())) {
+				eligible.add(entry.getKey());
+			}
+		}
+		eligible.sort(Comparator.comparingDouble(this::score).reversed());
+		List<Peer> candidates = new ArrayList<>(eligible.subList(0, Math.min(count, eligible.size())));
+		for (Peer peer : candidates) {
+			records.get(peer).inUse = true;
+		}
+		return candidates;
+	}
+
+	public synchronized void onConnected(Peer peer) {
+		PeerRecord record = records.computeIfAbsent(peer, key -> new PeerRecord());
+		record.inUse = true;
+		record.attempts++;
+		record.successes++;
+		record.connectedAt = System.currentTimeMillis();
+	}
+
+	// The dial was dropped through no fault of the peer
+	public synchronized void release(Peer peer) {
+		PeerRecord record = records.get(peer);
+		if (record != null) {
+			record.inUse = false;
+		}
+	}
+
+	public synchronized void onConnectFailed(Peer peer) {
+		PeerRecord record = records.get(peer);
+		if (record == null) {
+			return;
+		}
+		record.attempts++;
+		backOff(record);
+	}
+
+	// A session that delivered data may reconnect soon; one that gave us nothing is treated like a failed dial
+	public synchronized void onDisconnected(Peer peer, long bytesDownloaded) {
+		PeerRecord record = records.get(peer);
+		if (record == null || !record.inUse) {
+			return;
+		}
+		record.inUse = false;
+		long now = System.currentTimeMillis();
+		double seconds = Math.max(1, (now - record.connectedAt) / 1000.0);
+		double rate = bytesDownloaded / seconds;
+		record.rate = record.rate < 0 ? rate : RATE_SMOOTHING * rate + (1 - RATE_SMOOTHING) * record.rate;
+		if (bytesDownloaded > 0) {
+			record.consecutiveFailures = 0;
+			record.nextAttemptAt = now + RECONNECT_DELAY_MILLIS;
+		} else {
+			backOff(record);
+		}
+	}
+
+	// Returns true when the peer got banned by this failure
+	public synchronized boolean onHashFailure(Peer peer) {
+		if (hashFailures.merge(peer.getIpAddress(), 1, Integer::sum) >= MAX_HASH_FAILURES) {
+			ban(peer);
+			return true;
+		}
+		return false;
+	}
+
+	public synchronized void ban(Peer peer) {
+		if (bannedAddresses.add(peer.getIpAddress())) {
+			logger.info("Banned peer {}", peer.getIpAddress());
+		}
+		records.keySet().removeIf(known -> known.getIpAddress().equals(peer.getIpAddress()));
+	}
+
+	public synchronized boolean isBanned(Peer peer) {
+		return bannedAddresses.contains(peer.getIpAddress());
+	}
+
+	public synchronized int size() {
+		return records.size();
+	}
+
+	// Measured throughput, scaled by how often the peer completes a handshake, minus a penalty for bad pieces
+	private double score(Peer peer) {
+		PeerRecord record = records.get(peer);
+		double successRatio = (record.successes + 1.0) / (record.attempts + 1.0);
+		double expectedRate = record.rate < 0 ? UNTRIED_RATE : record.rate;
+		return expectedRate * successRatio - hashFailures.getOrDefault(peer.getIpAddress(), 0) * HASH_FAILURE_PENALTY;
+	}
+
+	private static void backOff(PeerRecord record) {
+		record.inUse = false;
+		record.consecutiveFailures++;
+		long delay = Math.min(RETRY_BASE_MILLIS << Math.min(record.consecutiveFailures - 1, 10), MAX_RETRY_DELAY_MILLIS);
+		record.nextAttemptAt = System.currentTimeMillis() + delay;
+	}
+
+	private static class PeerRecord {
+
+		private boolean inUse;
+		private int attempts;
+		private int successes;
+		private int consecutiveFailures;
+		private long nextAttemptAt;
+		private long connectedAt;
+		// Bytes per second over recent sessions, negative until a session ends
+		private double rate = -1;
+	}
+}
@@ -0,0 +1,14 @@
+package com.torrentclient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public interface PeerTransport {
+	void write(ByteBuffer... buffers) throws IOException;
+	void transferFrom(FileChannel source, long position, long count) throws IOException;
+	void setReadTimeout(int timeoutMillis) throws IOException;
+	int getReadTimeout();
+	boolean isOpen();
+	void close() throws IOException;
+}
@@ -0,0 +1,6 @@
+package com.torrentclient;
+
+public interface PieceAvailabilityCallback {
+	void onPeerBitfield(Client client, Bitfield bitfield);
+	void onPeerHave(Client client, int pieceIndex);
+}
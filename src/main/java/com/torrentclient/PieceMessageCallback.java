@@ -1,5 +1,11 @@
 package com.torrentclient;
 
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
 public interface PieceMessageCallback {
-	void onPieceMessageReceived(Message message, Client client);
+	// Whether a block arriving from the client is still worth reading, rather than skipping
+	boolean isBlockWanted(Client client, BlockRequest block);
+	void onBlockReceived(Client client, PieceMessageInfo info, ByteBuffer data);
+	void onRequestsRejected(Client client, Collection<BlockRequest> requests);
 }
\ No newline at end of file
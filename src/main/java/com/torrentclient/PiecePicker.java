@@ -0,0 +1,272 @@
+package com.torrentclient;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Rarest-first piece selection. Pieces nobody is downloading sit in buckets by how many connected peers have them,
+// so a pick looks at the rarest bucket first and usually takes the first piece there the peer has.
+// Pieces given a deadline, such as the ones a stream is about to read, go before all others, earliest first.
+// Each priority has its own buckets and higher priorities are picked first; skipped pieces are never picked
+public class PiecePicker implements PieceAvailabilityCallback {
+
+	private static final int WANTED = 0;
+	private static final int IN_PROGRESS = 1;
+	private static final int DONE = 2;
+	private static final int SKIPPED = 3;
+
+	private final int pieceCount;
+	private final int[] availability;
+	private final int[] state;
+	// Index of each wanted piece inside its bucket, so moving it to another bucket is a swap-remove
+	private final int[] bucketPosition;
+	private final FilePriority[] priorities;
+	// Rarity buckets per priority, indexed by ordinal
+	private final List<List<Bucket>> buckets = new ArrayList<>();
+	// What each peer has been counted for, so a disconnect takes back exactly that
+	private final Map<Client, BitSet> counted = new IdentityHashMap<>();
+	// Zero for pieces without a deadline
+	private final long[] deadlines;
+	private final TreeSet<Integer> urgent;
+	private int wantedCount;
+	private int inProgressCount;
+
+	public PiecePicker(int pieceCount, Bitfield downloaded) {
+		this(pieceCount, downloaded, null);
+	}
+
+	// Without priorities every piece is NORMAL
+	public PiecePicker(int pieceCount, Bitfield downloaded, FilePriority[] priorities) {
+		this.pieceCount = pieceCount;
+		this.availability = new int[pieceCount];
+		this.state = new int[pieceCount];
+		this.bucketPosition = new int[pieceCount];
+		this.deadlines = new long[pieceCount];
+		this.urgent = new TreeSet<>(Comparator.<Integer>comparingLong(piece -> deadlines[piece]).thenComparingInt(piece -> piece));
+		this.priorities = new FilePriority[pieceCount];
+		for (int i = 0; i < FilePriority.values().length; i++) {
+			buckets.add(new ArrayList<>(List.of(new Bucket())));
+		}
+		for (int piece = 0; piece < pieceCount; piece++) {
+			this.priorities[piece] = priorities != null ? priorities[piece] : FilePriority.NORMAL;
+			if (downloaded.hasPiece(piece)) {
+				state[piece] = DONE;
+			} else if (this.priorities[piece] == FilePriority.SKIP) {
+				state[piece] = SKIPPED;
+			} else {
+				state[piece] = WANTED;
+				addToBucket(piece);
+				wantedCount++;
+			}
+		}
+	}
+
+	// Takes the rarest wanted piece of the highest priority the peer has, ties broken at random; -1 when it has none we want
+	public synchronized int pick(Bitfield peerPieces) {
+		if (peerPieces == null || wantedCount == 0) {
+			return -1;
+		}
+		for (int piece : urgent) {
+			if (state[piece] == WANTED && peerPieces.hasPiece(piece)) {
+				take(piece);
+				return piece;
+			}
+		}
+		for (int priority = FilePriority.HIGH.ordinal(); priority > FilePriority.SKIP.ordinal(); priority--) {
+			List<Bucket> rarity = buckets.get(priority);
+			for (int level = 1; level < rarity.size(); level++) {
+				int piece = pickFrom(rarity.get(level), peerPieces);
+				if (piece >= 0) {
+					return piece;
+				}
+			}
+			// Pieces we have not counted anyone for, such as from a peer whose bitfield we never saw
+			int piece = pickFrom(rarity.get(0), peerPieces);
+			if (piece >= 0) {
+				return piece;
+			}
+		}
+		return -1;
+	}
+
+	// Takes a specific piece, such as one the peer suggested, if it is not started yet
+	public synchronized boolean pick(int piece, Bitfield peerPieces) {
+		if (piece < 0 || piece >= pieceCount || state[piece] != WANTED || peerPieces == null || !peerPieces.hasPiece(piece)) {
+			return false;
+		}
+		take(piece);
+		return true;
+	}
+
+	// The piece is wanted again, after a bad hash or when it was dropped before any of it arrived
+	public synchronized void release(int piece) {
+		if (state[piece] != IN_PROGRESS) {
+			return;
+		}
+		state[piece] = WANTED;
+		inProgressCount--;
+		wantedCount++;
+		addToBucket(piece);
+	}
+
+	public synchronized void complete(int piece) {
+		if (state[piece] == WANTED) {
+			removeFromBucket(piece);
+			wantedCount--;
+		} else if (state[piece] == IN_PROGRESS) {
+			inProgressCount--;
+		}
+		state[piece] = DONE;
+		clearDeadline(piece);
+	}
+
+	// Milliseconds since the epoch by which the piece should be in; it is picked before pieces without one
+	public synchronized void setDeadline(int piece, long deadline) {
+		if (piece < 0 || piece >= pieceCount || state[piece] == DONE || state[piece] == SKIPPED) {
+			return;
+		}
+		clearDeadline(piece);
+		deadlines[piece] = deadline;
+		urgent.add(piece);
+	}
+
+	public synchronized long getDeadline(int piece) {
+		return deadlines[piece];
+	}
+
+	public synchronized boolean hasDeadlines() {
+		return !urgent.isEmpty();
+	}
+
+	public synchronized boolean hasWantedPieces() {
+		return wantedCount > 0;
+	}
+
+	public synchronized boolean hasUnfinishedPieces() {
+		return wantedCount > 0 || inProgressCount > 0;
+	}
+
+	public synchronized int getAvailability(int piece) {
+		return availability[piece];
+	}
+
+	// A later bitfield, HAVE_ALL or HAVE_NONE replaces whatever the peer told us before
+	@Override
+	public synchronized void onPeerBitfield(Client client, Bitfield bitfield) {
+		BitSet previous = counted.remove(client);
+		if (previous != null) {
+			for (int piece = previous.nextSetBit(0); piece >= 0; piece = previous.nextSetBit(piece + 1)) {
+				changeAvailability(piece, -1);
+			}
+		}
+		BitSet pieces = new BitSet(pieceCount);
+		for (int piece = 0; piece < pieceCount; piece++) {
+			if (bitfield.hasPiece(piece)) {
+				pieces.set(piece);
+				changeAvailability(piece, 1);
+			}
+		}
+		counted.put(client, pieces);
+	}
+
+	@Override
+	public synchronized void onPeerHave(Client client, int piece) {
+		if (piece < 0 || piece >= pieceCount) {
+			return;
+		}
+		BitSet pieces = counted.computeIfAbsent(client, key -> new BitSet(pieceCount));
+		if (!pieces.get(piece)) {
+			pieces.set(piece);
+			changeAvailability(piece, 1);
+		}
+	}
+
+	public synchronized void onPeerGone(Client client) {
+		BitSet pieces = counted.remove(client);
+		if (pieces == null) {
+			return;
+		}
+		for (int piece = pieces.nextSetBit(0); piece >= 0; piece = pieces.nextSetBit(piece + 1)) {
+			changeAvailability(piece, -1);
+		}
+	}
+
+	public synchronized void clearDeadline(int piece) {
+		if (deadlines[piece] != 0) {
+			urgent.remove(piece);
+			deadlines[piece] = 0;
+		}
+	}
+
+	// Scans from a random offset so peers asking at the same time spread over equally rare pieces
+	private int pickFrom(Bucket bucket, Bitfield peerPieces) {
+		if (bucket.size == 0) {
+			return -1;
+		}
+		int start = ThreadLocalRandom.current().nextInt(bucket.size);
+		for (int i = 0; i < bucket.size; i++) {
+			int piece = bucket.pieces[(start + i) % bucket.size];
+			if (peerPieces.hasPiece(piece)) {
+				take(piece);
+				return piece;
+			}
+		}
+		return -1;
+	}
+
+	private void take(int piece) {
+		removeFromBucket(piece);
+		state[piece] = IN_PROGRESS;
+		wantedCount--;
+		inProgressCount++;
+	}
+
+	private void changeAvailability(int piece, int delta) {
+		boolean wanted = state[piece] == WANTED;
+		if (wanted) {
+			removeFromBucket(piece);
+		}
+		availability[piece] = Math.max(0, availability[piece] + delta);
+		if (wanted) {
+			addToBucket(piece);
+		}
+	}
+
+	private void addToBucket(int piece) {
+		List<Bucket> rarity = buckets.get(priorities[piece].ordinal());
+		while (rarity.size() <= availability[piece]) {
+			rarity.add(new Bucket());
+		}
+		Bucket bucket = rarity.get(availability[piece]);
+		bucketPosition[piece] = bucket.size;
+		bucket.add(piece);
+	}
+
+	private void removeFromBucket(int piece) {
+		Bucket bucket = buckets.get(priorities[piece].ordinal()).get(availability[piece]);
+		int position = bucketPosition[piece];
+		int last = bucket.pieces[bucket.size - 1];
+		bucket.pieces[position] = last;
+		bucketPosition[last] = position;
+		bucket.size--;
+	}
+
+	private static class Bucket {
+
+		private int[] pieces = new int[16];
+		private int size;
+
+		void add(int piece) {
+			if (size == pieces.length) {
+				pieces = Arrays.copyOf(pieces, size * 2);
+			}
+			pieces[size++] = piece;
+		}
+	}
+}
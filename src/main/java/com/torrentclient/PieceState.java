@@ -1,44 +1,97 @@
 package com.torrentclient;
 
+import java.nio.ByteBuffer;
 import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 
-import lombok.Data;
-@Data
+import lombok.Getter;
+
+// A piece being assembled: one buffer the blocks of every peer are copied into, how many copies of each
+// block are in flight, and who supplied the ones we have. Guarded by the BlockScheduler that owns it
+@Getter
 public class PieceState {
 	private final int pieceIndex;
+	private final int pieceSize;
+	private final int blockSize;
+	private final int totalBlocks;
+	private final ByteBuffer buffer;
     private final BitSet blocksReceived;
-    private final int totalBlocks;
-    private boolean isComplete;
-    
-    
-    public PieceState(int totalBlocks, int pieceIndex) {
+    private final int[] requestCounts;
+    private final Client[] suppliers;
+    private int unrequestedBlocks;
+
+
+    public PieceState(int pieceIndex, int pieceSize, int blockSize) {
     	this.pieceIndex = pieceIndex;
+    	this.pieceSize = pieceSize;
+    	this.blockSize = blockSize;
+        this.totalBlocks = (pieceSize + blockSize - 1) / blockSize;
+        this.buffer = ByteBuffer.allocate(pieceSize);
         this.blocksReceived = new BitSet(totalBlocks);
-        this.totalBlocks = totalBlocks;
-        this.isComplete = false;
+        this.requestCounts = new int[totalBlocks];
+        this.suppliers = new Client[totalBlocks];
+        this.unrequestedBlocks = totalBlocks;
+    }
+
+    public BlockRequest toRequest(int blockIndex) {
+    	int begin = blockIndex * blockSize;
+    	return new BlockRequest(pieceIndex, begin, Math.min(blockSize, pieceSize - begin));
+    }
+
+    public boolean isWanted(int blockIndex) {
+    	return !blocksReceived.get(blockIndex);
+    }
+
+    public void markRequested(int blockIndex) {
+    	if (requestCounts[blockIndex]++ == 0) {
+    		unrequestedBlocks--;
+    	}
     }
 
-    public void markBlockReceived(int blockIndex) {
+    // A request that will not be answered; the block is up for grabs again once no copy is in flight
+    public void markReturned(int blockIndex) {
+    	if (blocksReceived.get(blockIndex) || requestCounts[blockIndex] == 0) {
+    		return;
+    	}
+    	if (--requestCounts[blockIndex] == 0) {
+    		unrequestedBlocks++;
+    	}
+    }
+
+    public void writeBlock(int blockIndex, ByteBuffer data) {
+    	buffer.put(blockIndex * blockSize, data, data.position(), data.remaining());
+    }
+
+    public void markBlockReceived(int blockIndex, Client supplier) {
+    	if (requestCounts[blockIndex] == 0) {
+    		unrequestedBlocks--;
+    	}
         blocksReceived.set(blockIndex);
-        if (isPieceComplete()) markComplete();
+        suppliers[blockIndex] = supplier;
     }
 
     public boolean isPieceComplete() {
         return blocksReceived.cardinality() == totalBlocks;
     }
 
-	public int getPieceIndex() {
-		return pieceIndex;
-	}
-	
+    // Nothing received and nothing in flight, so dropping the piece loses no work
+    public boolean isUntouched() {
+    	return unrequestedBlocks == totalBlocks && blocksReceived.isEmpty();
+    }
+
 	public int getNumBlocksReceived() {
 		return blocksReceived.cardinality();
 	}
 
-	public void markComplete() {
-		isComplete = true;
-		
+	public Set<Client> getDistinctSuppliers() {
+		Set<Client> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (Client supplier : suppliers) {
+			if (supplier != null) {
+				distinct.add(supplier);
+			}
+		}
+		return distinct;
 	}
-
-
-}
\ No newline at end of file
+}
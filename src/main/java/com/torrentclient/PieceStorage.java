@@ -0,0 +1,19 @@
+package com.torrentclient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Where verified pieces are kept. Offsets are within a piece, each backend maps them onto the torrent's files its own way
+public interface PieceStorage {
+	// Whether the piece is already stored, such as from an earlier run
+	boolean hasPiece(int pieceIndex);
+	void write(int pieceIndex, int begin, ByteBuffer data) throws IOException;
+	// Fills what remains of destination with the piece's bytes from begin on
+	void read(int pieceIndex, int begin, ByteBuffer destination) throws IOException;
+	// A file position the block can be sent from with transferTo, or null when it has to be read
+	FileRegion getRegion(int pieceIndex, int begin, int length) throws IOException;
+	void flush() throws IOException;
+	// Called once the download completes, with every piece not skipped stored
+	void finish() throws IOException;
+	void close();
+}
@@ -0,0 +1,6 @@
+package com.torrentclient;
+
+public interface ReadThrottle {
+	void pauseReads();
+	void resumeReads();
+}
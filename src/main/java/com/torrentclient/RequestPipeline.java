@@ -0,0 +1,112 @@
+package com.torrentclient;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+@Getter
+public class RequestPipeline {
+
+	public static final int INITIAL_DEPTH = 5;
+	public static final int MIN_DEPTH = 2;
+	public static final int MAX_DEPTH = 250;
+	private static final long QUEUE_TIME_FLOOR_MILLIS = 1000;
+	private static final long MIN_RATE_WINDOW_MILLIS = 250;
+	private static final double RTT_GAIN = 0.125;
+	private static final double RATE_GAIN = 0.3;
+	private static final double SLOW_START_EXIT_GROWTH = 1.1;
+
+	private final int blockSize;
+	@Getter(AccessLevel.NONE)
+	private final LongSupplier clock;
+	private volatile int depth = INITIAL_DEPTH;
+	// Round trip of a request with nothing queued ahead of it at the peer
+	private volatile double baseRttMillis;
+	private volatile double bytesPerSecond;
+	private boolean slowStart = true;
+
+	@Getter(AccessLevel.NONE)
+	private final Map<BlockRequest, Long> sentAt = new HashMap<>();
+	// The first request sent onto an empty pipeline, its round trip has no queueing in it
+	@Getter(AccessLevel.NONE)
+	private BlockRequest probe;
+	@Getter(AccessLevel.NONE)
+	private long rateWindowStart;
+	@Getter(AccessLevel.NONE)
+	private long rateWindowBytes;
+
+	public RequestPipeline(int blockSize) {
+		this(blockSize, System::currentTimeMillis);
+	}
+
+	RequestPipeline(int blockSize, LongSupplier clock) {
+		this.blockSize = blockSize;
+		this.clock = clock;
+	}
+
+	public synchronized void onRequestSent(BlockRequest request) {
+		long now = clock.getAsLong();
+		if (sentAt.isEmpty()) {
+			rateWindowStart = now;
+			rateWindowBytes = 0;
+			probe = request;
+		}
+		sentAt.put(request, now);
+	}
+
+	public synchronized void onBlockReceived(BlockRequest request, int bytes) {
+		long now = clock.getAsLong();
+		Long requestedAt = sentAt.remove(request);
+		// Other requests also wait behind our own earlier ones, so only the probe is timed
+		if (requestedAt != null && request.equals(probe)) {
+			double sample = now - requestedAt;
+			baseRttMillis = baseRttMillis == 0 ? sample : baseRttMillis + RTT_GAIN * (sample - baseRttMillis);
+			probe = null;
+		}
+		rateWindowBytes += bytes;
+		long elapsed = now - rateWindowStart;
+		if (elapsed >= Math.max(MIN_RATE_WINDOW_MILLIS, (long) baseRttMillis)) {
+			updateRate(rateWindowBytes * 1000.0 / elapsed);
+			rateWindowStart = now;
+			rateWindowBytes = 0;
+		}
+		if (slowStart) {
+			// one extra request per block delivered doubles the depth every round trip
+			depth = Math.min(MAX_DEPTH, depth + 1);
+		}
+	}
+
+	private void updateRate(double sample) {
+		double previous = bytesPerSecond;
+		bytesPerSecond = previous == 0 ? sample : previous + RATE_GAIN * (sample - previous);
+		if (slowStart && previous > 0 && bytesPerSecond < previous * SLOW_START_EXIT_GROWTH) {
+			slowStart = false;
+		}
+		if (!slowStart) {
+			depth = targetDepth();
+		}
+	}
+
+	// Bandwidth-delay product over at least two base round trips, so a request is always queued at the peer
+	private int targetDepth() {
+		double queueTimeMillis = Math.max(QUEUE_TIME_FLOOR_MILLIS, 2 * baseRttMillis);
+		int target = (int) Math.ceil(bytesPerSecond * queueTimeMillis / 1000.0 / blockSize);
+		return Math.max(MIN_DEPTH, Math.min(MAX_DEPTH, target));
+	}
+
+	// Also called from other peers' threads as they cancel a copy of a block that already arrived
+	public synchronized void onRequestRejected(BlockRequest request) {
+		sentAt.remove(request);
+		if (request.equals(probe)) {
+			probe = null;
+		}
+	}
+
+	public synchronized void onRequestsDropped() {
+		sentAt.clear();
+		probe = null;
+	}
+}
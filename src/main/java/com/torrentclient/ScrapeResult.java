@@ -0,0 +1,11 @@
+package com.torrentclient;
+
+import lombok.Data;
+
+@Data
+public class ScrapeResult {
+
+	private final int seeders;
+	private final int completed;
+	private final int leechers;
+}
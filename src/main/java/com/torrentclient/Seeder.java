@@ -0,0 +1,141 @@
+package com.torrentclient;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class Seeder implements UploadCallback {
+
+	private static final int MAX_BLOCK_LENGTH = 128 * 1024;
+	private static final int UPLOADS_PER_ITERATION = 4;
+	private static final int ALLOWED_FAST_SET_SIZE = 10;
+	private static final Logger logger = LoggerFactory.getLogger(Seeder.class);
+
+	private final Torrent torrent;
+	private final FileManager fileManager;
+	private final Bitfield downloadedPiecesBitfield;
+	private final List<Client> activeClients;
+	private final Choker choker;
+	private final AtomicLong uploadedBytes = new AtomicLong();
+
+	public Seeder(Torrent torrent, FileManager fileManager, Bitfield downloadedPiecesBitfield, List<Client> activeClients, Choker choker) {
+		this.torrent = torrent;
+		this.fileManager = fileManager;
+		this.downloadedPiecesBitfield = downloadedPiecesBitfield;
+		this.activeClients = activeClients;
+		this.choker = choker;
+	}
+
+	@Override
+	public void onPeerInterestChanged(Client client) {
+		choker.onPeerInterestChanged(client);
+	}
+
+	// Lets a fast-extension peer fetch a few pieces from us before it gets an upload slot
+	public void onPeerReady(Client client) {
+		if (!client.isFastExtension() || downloadedPiecesBitfield.cardinality() == 0) {
+			return;
+		}
+		Set<Integer> allowedFast = new LinkedHashSet<>();
+		for (int pieceIndex : computeAllowedFastSet(client.getPeer().getIpAddress())) {
+			if (downloadedPiecesBitfield.hasPiece(pieceIndex)) {
+				allowedFast.add(pieceIndex);
+			}
+		}
+		client.grantAllowedFast(allowedFast);
+	}
+
+	// Canonical allowed fast set from BEP 6, so peers see the same pieces from every client they meet
+	Set<Integer> computeAllowedFastSet(String ipAddress) {
+		Set<Integer> allowedFast = new LinkedHashSet<>();
+		int pieceCount = torrent.getPieceHashes().length;
+		try {
+			InetAddress address = InetAddress.getByName(ipAddress);
+			if (!(address instanceof Inet4Address)) {
+				return allowedFast;
+			}
+			byte[] x = new byte[24];
+			System.arraycopy(address.getAddress(), 0, x, 0, 3);
+			System.arraycopy(torrent.getInfoHash(), 0, x, 4, 20);
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			int size = Math.min(ALLOWED_FAST_SET_SIZE, pieceCount);
+			while (allowedFast.size() < size) {
+				x = sha1.digest(x);
+				for (int i = 0; i < 5 && allowedFast.size() < size; i++) {
+					long y = ByteBuffer.wrap(x, i * 4, 4).getInt() & 0xFFFFFFFFL;
+					allowedFast.add((int) (y % pieceCount));
+				}
+			}
+		} catch (IOException | NoSuchAlgorithmException e) {
+			logger.debug("Could not compute allowed fast set for peer " + ipAddress, e);
+		}
+		return allowedFast;
+	}
+
+	public void onPeerDisconnected(Client client) {
+		choker.onPeerDisconnected(client);
+	}
+
+	@Override
+	public boolean onBlockRequested(Client client, BlockRequest request) {
+		int pieceIndex = request.getPieceIndex();
+		if (pieceIndex < 0 || pieceIndex >= torrent.getPieceHashes().length || !downloadedPiecesBitfield.hasPiece(pieceIndex)) {
+			logger.debug("Peer {} requested piece {} which we cannot serve", client.getPeer().getIpAddress(), pieceIndex);
+			return false;
+		}
+		int pieceSize = torrent.getPieceSize(pieceIndex);
+		return request.getBegin() >= 0 && request.getBlockLength() > 0 && request.getBlockLength() <= MAX_BLOCK_LENGTH
+				&& request.getBegin() + request.getBlockLength() <= pieceSize;
+	}
+
+	public void serviceUploads(Client client) throws IOException {
+		BlockRequest request;
+		int served = 0;
+		while (served < UPLOADS_PER_ITERATION && (request = client.uploadQueue.poll()) != null) {
+			if (!client.canUpload(request.getPieceIndex())) {
+				continue;
+			}
+			FileRegion region;
+			ByteBuffer block = null;
+			try {
+				region = fileManager.getBlockRegion(request.getPieceIndex(), request.getBegin(), request.getBlockLength());
+				if (region == null) {
+					block = ByteBuffer.allocate(request.getBlockLength());
+					fileManager.readBlock(request.getPieceIndex(), request.getBegin(), block);
+					block.flip();
+				}
+			} catch (IOException e) {
+				logger.debug("Cannot read piece {} for upload", request.getPieceIndex());
+				continue;
+			}
+			if (region != null) {
+				client.sendBlock(request, region.getChannel(), region.getPosition());
+			} else {
+				client.sendBlock(request, block);
+			}
+			uploadedBytes.addAndGet(request.getBlockLength());
+			served++;
+		}
+	}
+
+	// Only queued, each connection's own thread sends it with its next flush; the caller is a disk thread
+	public void broadcastHave(int pieceIndex) {
+		for (Client client : activeClients) {
+			client.queueHaveMessage(pieceIndex);
+		}
+	}
+
+	public long getUploadedBytes() {
+		return uploadedBytes.get();
+	}
+}
@@ -0,0 +1,181 @@
+package com.torrentclient;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class SelectorEngine {
+
+	private static final int SELECT_INTERVAL = 500;
+	private static final Logger logger = LoggerFactory.getLogger(SelectorEngine.class);
+
+	private final ClientConnectionCallback connectionCallback;
+	private final IoLoop[] ioLoops;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	private final AtomicInteger liveConnections = new AtomicInteger();
+
+	public SelectorEngine(int ioThreads, ClientConnectionCallback connectionCallback) throws IOException {
+		this.connectionCallback = connectionCallback;
+		this.ioLoops = new IoLoop[Math.max(1, ioThreads)];
+		for (int i = 0; i < ioLoops.length; i++) {
+			ioLoops[i] = new IoLoop(i);
+		}
+	}
+
+	public void start() {
+		for (IoLoop ioLoop : ioLoops) {
+			ioLoop.thread.start();
+		}
+	}
+
+	// Takes over a connected channel whose handshake has already been exchanged
+	public void adopt(Client client, SocketChannel channel) {
+		try {
+			channel.configureBlocking(false);
+		} catch (IOException e) {
+			logger.debug("Could not switch channel to non-blocking mode for peer " + client.getPeer().getIpAddress());
+			client.closeConnection();
+			connectionCallback.onClientClosed(client);
+			return;
+		}
+		liveConnections.incrementAndGet();
+		nextIoLoop().register(new NioConnection(client, channel, connectionCallback));
+	}
+
+	public int getLiveConnections() {
+		return liveConnections.get();
+	}
+
+	public void stop() {
+		for (IoLoop ioLoop : ioLoops) {
+			ioLoop.running = false;
+			ioLoop.selector.wakeup();
+		}
+	}
+
+	private IoLoop nextIoLoop() {
+		return ioLoops[Math.floorMod(nextLoop.getAndIncrement(), ioLoops.length)];
+	}
+
+	private void onConnectionFinished(NioConnection connection) {
+		liveConnections.decrementAndGet();
+		connectionCallback.onClientClosed(connection.getClient());
+	}
+
+	private class IoLoop implements Runnable {
+
+		private final Selector selector;
+		private final Thread thread;
+		private final Queue<NioConnection> pendingRegistrations = new ConcurrentLinkedQueue<>();
+		private final Set<NioConnection> connections = new HashSet<>();
+		private volatile boolean running = true;
+
+		IoLoop(int index) throws IOException {
+			this.selector = Selector.open();
+			this.thread = new Thread(this, "nio-io-" + index);
+			this.thread.setDaemon(true);
+		}
+
+		void register(NioConnection connection) {
+			pendingRegistrations.offer(connection);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					selector.select(SELECT_INTERVAL);
+					registerPending();
+					processSelectedKeys();
+					flushQueuedMessages();
+					expireConnections();
+				} catch (IOException e) {
+					logger.debug("Selector loop error", e);
+				}
+			}
+			for (NioConnection connection : connections) {
+				connection.close();
+				onConnectionFinished(connection);
+			}
+			connections.clear();
+			try {
+				selector.close();
+			} catch (IOException e) {
+				logger.debug("Error closing selector");
+			}
+		}
+
+		private void registerPending() {
+			NioConnection connection;
+			while ((connection = pendingRegistrations.poll()) != null) {
+				try {
+					SelectionKey key = connection.getChannel().register(selector, SelectionKey.OP_READ, connection);
+					connection.register(key);
+					connections.add(connection);
+				} catch (IOException e) {
+					connection.close();
+					onConnectionFinished(connection);
+				}
+			}
+		}
+
+		private void processSelectedKeys() {
+			Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+			while (iterator.hasNext()) {
+				SelectionKey key = iterator.next();
+				iterator.remove();
+				NioConnection connection = (NioConnection) key.attachment();
+				try {
+					if (key.isValid() && key.isWritable()) {
+						connection.onWritable();
+					}
+					if (key.isValid() && key.isReadable()) {
+						connection.onReadable();
+					}
+				} catch (IOException | RuntimeException e) {
+					logger.debug("Connection error with peer " + connection.getClient().getPeer().getIpAddress() + ": " + e.getMessage());
+					connection.close();
+				}
+			}
+		}
+
+		private void flushQueuedMessages() {
+			for (NioConnection connection : connections) {
+				try {
+					connection.flushQueued();
+				} catch (IOException e) {
+					logger.debug("Connection error with peer " + connection.getClient().getPeer().getIpAddress() + ": " + e.getMessage());
+					connection.close();
+				}
+			}
+		}
+
+		private void expireConnections() {
+			long now = System.currentTimeMillis();
+			Iterator<NioConnection> iterator = connections.iterator();
+			while (iterator.hasNext()) {
+				NioConnection connection = iterator.next();
+				if (connection.isOpen()) {
+					if (!connection.isTimedOut(now)) {
+						continue;
+					}
+					logger.debug("Peer " + connection.getClient().getPeer().getIpAddress() + " timed out in state " + connection.getState());
+					connection.close();
+				}
+				iterator.remove();
+				onConnectionFinished(connection);
+			}
+		}
+	}
+}
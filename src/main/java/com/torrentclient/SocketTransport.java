@@ -0,0 +1,93 @@
+package com.torrentclient;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+public class SocketTransport implements StreamTransport {
+
+	private final Socket socket;
+
+	public SocketTransport(Socket socket) {
+		this.socket = socket;
+	}
+
+	public static SocketTransport connect(Peer peer, int timeoutMillis) throws IOException {
+		Socket socket = new Socket();
+		socket.setTcpNoDelay(true);
+		socket.connect(new InetSocketAddress(peer.getIpAddress(), peer.getPort()), timeoutMillis);
+		return new SocketTransport(socket);
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return socket.getInputStream();
+	}
+
+	@Override
+	public void write(ByteBuffer... buffers) throws IOException {
+		OutputStream outputStream = socket.getOutputStream();
+		for (ByteBuffer buffer : buffers) {
+			if (buffer.hasArray()) {
+				outputStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+				buffer.position(buffer.limit());
+			} else {
+				byte[] bytes = new byte[buffer.remaining()];
+				buffer.get(bytes);
+				outputStream.write(bytes);
+			}
+		}
+		outputStream.flush();
+	}
+
+	// Sockets created from a SocketChannel get a real zero-copy transferTo, plain sockets go through the stream
+	@Override
+	public void transferFrom(FileChannel source, long position, long count) throws IOException {
+		WritableByteChannel target = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+		long transferred = 0;
+		while (transferred < count) {
+			long bytes = source.transferTo(position + transferred, count - transferred, target);
+			if (bytes <= 0) {
+				throw new EOFException("Source ended after " + transferred + " of " + count + " bytes");
+			}
+			transferred += bytes;
+		}
+	}
+
+	@Override
+	public void setReadTimeout(int timeoutMillis) throws SocketException {
+		socket.setSoTimeout(timeoutMillis);
+	}
+
+	@Override
+	public int getReadTimeout() {
+		try {
+			return socket.getSoTimeout();
+		} catch (SocketException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return !socket.isClosed();
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	@Override
+	public String toString() {
+		return socket.toString();
+	}
+}
@@ -3,6 +3,7 @@ package com.torrentclient;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -10,19 +11,23 @@ import org.slf4j.LoggerFactory;
 public class SpeedLogger {
 
     private long startTime;
-    private long bytesDownloaded = 0;
+    private final AtomicLong bytesDownloaded = new AtomicLong();
     private long previousDownloaded = 0;
     private int numberOfPieces;
     private long totalBytes;
     private ScheduledExecutorService speedLoggerScheduler;
     private Bitfield downloadedPiecesBitfield;
+    private DiskWriter diskWriter;
+    // Only set on the nio engine
+    private volatile SelectorEngine selectorEngine;
     private static final Logger logger = LoggerFactory.getLogger(SpeedLogger.class);
     private static final int INTERVAL = 2; //logger interval in seconds
 
-    public SpeedLogger(int numberOfPieces, Bitfield downloadedPiecesBitfield, long totalBytes) {
+    public SpeedLogger(int numberOfPieces, Bitfield downloadedPiecesBitfield, long totalBytes, DiskWriter diskWriter) {
         this.numberOfPieces = numberOfPieces;
         this.downloadedPiecesBitfield = downloadedPiecesBitfield;
         this.totalBytes = totalBytes;
+        this.diskWriter = diskWriter;
     }
 
     public void start() {
@@ -39,6 +44,7 @@ public class SpeedLogger {
 
 
     private void logDownloadStatus() {
+        long bytesDownloaded = this.bytesDownloaded.get();
         long currentTime = System.currentTimeMillis();
         long totalElapsedTime = currentTime - startTime;
 
@@ -88,11 +94,22 @@ public class SpeedLogger {
         System.out.flush();
 
         this.previousDownloaded = bytesDownloaded;
+        logger.debug("Disk queue: {} pieces, {} KB, write latency {} ms average, {} ms max over {} writes",
+            diskWriter.getQueueDepth(), diskWriter.getQueuedBytes() / 1024, String.format("%.1f", diskWriter.getAverageLatencyMillis()),
+            String.format("%.1f", diskWriter.getMaxLatencyMillis()), diskWriter.getWrites());
+        SelectorEngine engine = selectorEngine;
+        if (engine != null) {
+            logger.debug("Nio engine: {} live connections", engine.getLiveConnections());
+        }
+    }
+
+    public void setSelectorEngine(SelectorEngine selectorEngine) {
+        this.selectorEngine = selectorEngine;
     }
     
 
-    public synchronized void addBytesDownloaded(long bytes) {
-        this.bytesDownloaded += bytes;
+    public void addBytesDownloaded(long bytes) {
+        this.bytesDownloaded.addAndGet(bytes);
     }
     
     public void stop() {
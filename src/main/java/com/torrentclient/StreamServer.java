@@ -0,0 +1,198 @@
+package com.torrentclient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+// Serves the torrent's content over HTTP while it downloads, a multi-file torrent's files under their paths.
+// A response starts right away and each piece it covers is written as soon as it is verified; reading a piece
+// moves the stream window there first
+public class StreamServer {
+
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+	private static final Logger logger = LoggerFactory.getLogger(StreamServer.class);
+
+	private final Torrent torrent;
+	private final FileManager fileManager;
+	private final StreamWindow streamWindow;
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	public StreamServer(int port, Torrent torrent, FileManager fileManager, StreamWindow streamWindow) throws IOException {
+		this.torrent = torrent;
+		this.fileManager = fileManager;
+		this.streamWindow = streamWindow;
+		this.server = HttpServer.create(new InetSocketAddress(port), 0);
+		AtomicInteger threads = new AtomicInteger();
+		// Readers block on missing pieces, so every open request gets its own thread
+		this.executor = Executors.newCachedThreadPool(task -> {
+			Thread thread = new Thread(task, "stream-" + threads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		server.createContext("/", this::handle);
+		server.setExecutor(executor);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public void stop() {
+		streamWindow.close();
+		server.stop(0);
+		// Not shutdownNow: an interrupt during a read would close file channels the seeder shares
+		executor.shutdown();
+	}
+
+	private void handle(HttpExchange exchange) {
+		try {
+			String method = exchange.getRequestMethod();
+			if (!method.equals("GET") && !method.equals("HEAD")) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			TorrentFile file = findFile(exchange.getRequestURI().getPath());
+			if (file == null) {
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			}
+			long length = file.getLength();
+			long[] range = parseRange(exchange.getRequestHeaders().getFirst("Range"), length);
+			exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+			exchange.getResponseHeaders().set("Content-Type", contentType(file.getPath()));
+			if (range == null) {
+				exchange.getResponseHeaders().set("Content-Range", "bytes */" + length);
+				exchange.sendResponseHeaders(416, -1);
+				return;
+			}
+			long start = range[0];
+			long end = range[1];
+			boolean partial = start != 0 || end != length - 1;
+			if (partial) {
+				exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + length);
+			}
+			boolean head = method.equals("HEAD");
+			// -1 means no body, where 0 would mean one of unknown length
+			exchange.sendResponseHeaders(partial ? 206 : 200, head || end < start ? -1 : end - start + 1);
+			if (!head) {
+				writeRange(exchange.getResponseBody(), file.getOffset() + start, file.getOffset() + end);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			// Players drop connections all the time when they seek
+			logger.debug("Stream request ended early: {}", e.getMessage());
+		} finally {
+			exchange.close();
+		}
+	}
+
+	// Returns {start, end} inclusive, the whole file when there is no usable Range header,
+	// or null when the range lies past the end. Only the first of several ranges is served
+	static long[] parseRange(String header, long length) {
+		long[] whole = { 0, length - 1 };
+		if (header == null || !header.startsWith("bytes=")) {
+			return whole;
+		}
+		String spec = header.substring("bytes=".length()).split(",")[0].trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0) {
+			return whole;
+		}
+		try {
+			String first = spec.substring(0, dash).trim();
+			String last = spec.substring(dash + 1).trim();
+			if (first.isEmpty()) {
+				// Suffix range: the final bytes
+				long suffix = Long.parseLong(last);
+				return suffix <= 0 || length == 0 ? null : new long[] { Math.max(0, length - suffix), length - 1 };
+			}
+			long start = Long.parseLong(first);
+			long end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+			if (start >= length) {
+				return null;
+			}
+			return end < start ? whole : new long[] { start, end };
+		} catch (NumberFormatException e) {
+			return whole;
+		}
+	}
+
+	private void writeRange(OutputStream body, long start, long end) throws IOException, InterruptedException {
+		long pieceLength = torrent.getPieceLength();
+		ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+		StreamWindow.Reader reader = streamWindow.open();
+		try {
+			long position = start;
+			while (position <= end) {
+				int pieceIndex = (int) (position / pieceLength);
+				reader.moveTo(pieceIndex);
+				if (!streamWindow.awaitPiece(pieceIndex)) {
+					return;
+				}
+				long pieceEnd = Math.min(end, (pieceIndex + 1) * pieceLength - 1);
+				copyFromPiece(pieceIndex, position - pieceIndex * pieceLength, pieceEnd - position + 1, buffer, body);
+				position = pieceEnd + 1;
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	// Piece files are swapped for the merged file when the download completes, so a read racing that goes again once
+	private void copyFromPiece(int pieceIndex, long offset, long count, ByteBuffer buffer, OutputStream body) throws IOException {
+		long copied = 0;
+		boolean retried = false;
+		while (copied < count) {
+			int chunk = (int) Math.min(buffer.capacity(), count - copied);
+			buffer.clear().limit(chunk);
+			try {
+				fileManager.readBlock(pieceIndex, (int) (offset + copied), buffer);
+			} catch (ClosedChannelException e) {
+				if (retried) {
+					throw e;
+				}
+				retried = true;
+				continue;
+			}
+			body.write(buffer.array(), 0, chunk);
+			copied += chunk;
+		}
+	}
+
+	// A single-file torrent is served at any path
+	private TorrentFile findFile(String requestPath) {
+		if (!torrent.isMultiFile()) {
+			return torrent.getFiles().get(0);
+		}
+		String path = requestPath.startsWith("/") ? requestPath.substring(1) : requestPath;
+		for (TorrentFile file : torrent.getFiles()) {
+			if (file.getPath().equals(path)) {
+				return file;
+			}
+		}
+		return null;
+	}
+
+	private static String contentType(String path) {
+		String type = URLConnection.guessContentTypeFromName(path);
+		return type != null ? type : "application/octet-stream";
+	}
+}
@@ -0,0 +1,9 @@
+package com.torrentclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+// A transport read by a thread blocking on its stream, as opposed to the selector loop reading channel transports
+public interface StreamTransport extends PeerTransport {
+	InputStream getInputStream() throws IOException;
+}
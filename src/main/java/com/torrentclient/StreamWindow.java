@@ -0,0 +1,122 @@
+package com.torrentclient;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+// The pieces just ahead of where a stream reads get deadlines, the next one due now and each later one a step
+// after, so the picker fetches them in reading order. Every open request has a window of its own and a piece
+// gets the earliest deadline any of them gives it. Readers wait here until the piece they need is verified
+public class StreamWindow {
+
+	private static final long DEADLINE_STEP_MILLIS = 1000;
+	private static final long WAIT_MILLIS = 1000;
+
+	private final PiecePicker piecePicker;
+	private final Bitfield downloadedPieces;
+	private final int pieceCount;
+	private final int windowSize;
+	private final Set<Reader> readers = new HashSet<>();
+	// Fetches the start of the content before anyone reads it, until the first request takes over
+	private Reader prefetch;
+	private volatile boolean closed;
+
+	public StreamWindow(PiecePicker piecePicker, Bitfield downloadedPieces, int pieceCount, int windowSize) {
+		this.piecePicker = piecePicker;
+		this.downloadedPieces = downloadedPieces;
+		this.pieceCount = pieceCount;
+		this.windowSize = Math.max(1, windowSize);
+	}
+
+	public synchronized void prefetch(int piece) {
+		prefetch = open();
+		prefetch.moveTo(piece);
+	}
+
+	// A window for one request, to be closed when the request ends
+	public synchronized Reader open() {
+		if (prefetch != null) {
+			prefetch.close();
+			prefetch = null;
+		}
+		Reader reader = new Reader();
+		readers.add(reader);
+		return reader;
+	}
+
+	// Returns false when the window was closed before the piece arrived
+	public synchronized boolean awaitPiece(int piece) throws InterruptedException {
+		while (!downloadedPieces.hasPiece(piece)) {
+			if (closed) {
+				return false;
+			}
+			wait(WAIT_MILLIS);
+		}
+		return true;
+	}
+
+	public synchronized void onPieceVerified(int piece) {
+		notifyAll();
+	}
+
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	// Hands the picker the earliest deadline still wanted for each of the pieces
+	private void updateDeadlines(Set<Integer> pieces) {
+		for (int piece : pieces) {
+			long earliest = 0;
+			for (Reader reader : readers) {
+				Long deadline = reader.deadlines.get(piece);
+				if (deadline != null && (earliest == 0 || deadline < earliest)) {
+					earliest = deadline;
+				}
+			}
+			if (earliest == 0) {
+				piecePicker.clearDeadline(piece);
+			} else {
+				piecePicker.setDeadline(piece, earliest);
+			}
+		}
+	}
+
+	public class Reader {
+
+		private Map<Integer, Long> deadlines = new HashMap<>();
+		private int windowStart = -1;
+
+		// Pieces still ahead keep the deadline they had, so reading on never pushes the next piece back
+		public void moveTo(int piece) {
+			synchronized (StreamWindow.this) {
+				if (piece == windowStart || !readers.contains(this)) {
+					return;
+				}
+				windowStart = piece;
+				Map<Integer, Long> previous = deadlines;
+				deadlines = new HashMap<>();
+				long now = System.currentTimeMillis();
+				int end = Math.min(pieceCount, piece + windowSize);
+				for (int next = piece, step = 0; next < end; next++) {
+					if (!downloadedPieces.hasPiece(next)) {
+						long deadline = now + step++ * DEADLINE_STEP_MILLIS;
+						deadlines.put(next, Math.min(deadline, previous.getOrDefault(next, Long.MAX_VALUE)));
+					}
+				}
+				Set<Integer> changed = new HashSet<>(previous.keySet());
+				changed.addAll(deadlines.keySet());
+				updateDeadlines(changed);
+			}
+		}
+
+		public void close() {
+			synchronized (StreamWindow.this) {
+				if (readers.remove(this)) {
+					updateDeadlines(deadlines.keySet());
+				}
+			}
+		}
+	}
+}
@@ -15,6 +15,7 @@ import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -33,6 +34,7 @@ public class Torrent {
 
     private String announce;
     private List<String> announceList;
+    private List<List<String>> announceTiers;
     private String name;
     private String comment;
     private String createdBy;
@@ -42,6 +44,8 @@ public class Torrent {
     private long pieceLength;
     private byte[] pieces;
     private byte[][] pieceHashes;
+    private List<TorrentFile> files;
+    private boolean multiFile;
     private boolean isPrivate;
     private byte[] infoHash;
     private String peerId;
@@ -50,26 +54,83 @@ public class Torrent {
 
     public Torrent(BencodeObject bencode) {
         this.announce = bencode.getString("announce");
-        this.announceList = createAnnounceList(bencode.getBencodeArray("announce-list"));
+        this.announceTiers = createAnnounceTiers(bencode.containsKey("announce-list") ? bencode.getBencodeArray("announce-list") : null);
+        this.announceList = createAnnounceList(announceTiers);
         this.comment = bencode.getString("comment");
         this.createdBy = bencode.getString("created by");
         long creationDate = bencode.getLong("creation date");
         this.creationDate = LocalDateTime.ofInstant(Instant.ofEpochSecond(creationDate), ZoneOffset.UTC);
         BencodeObject infoDict = bencode.getBencodeObject("info");
-        this.length = infoDict.getLong("length");
         this.name = infoDict.getString("name");
+        this.multiFile = infoDict.containsKey("files");
+        this.files = multiFile ? createFiles(infoDict.getBencodeArray("files")) : List.of(new TorrentFile(0, name, infoDict.getLong("length"), 0));
+        this.length = files.isEmpty() ? 0 : files.get(files.size() - 1).getOffset() + files.get(files.size() - 1).getLength();
         this.pieceLength = infoDict.getLong("piece length");
         this.pieces = infoDict.getBytes("pieces");
+        // BEP 27: private torrents only get peers from their trackers
+        this.isPrivate = infoDict.containsKey("private") && infoDict.getLong("private") == 1;
         byte[] bytesInfo = infoDict.encode();
         this.infoHash = calculateInfoHash(bytesInfo);
         this.pieceHashes = splitPiecesIntoHashes(pieces);
         this.peerId = generatePeerId();
     }
     
-    public List<String> createAnnounceList(BencodeArray announceListArray){
-    	this.announceList = new ArrayList<>();
-        announceList.add(this.announce);
-        return announceList;
+    // Multi-file torrents list their files in the order their content is concatenated in
+    private static List<TorrentFile> createFiles(BencodeArray filesArray) {
+    	List<TorrentFile> files = new ArrayList<>();
+    	long offset = 0;
+    	for (int i = 0; i < filesArray.size(); i++) {
+    		BencodeObject fileDict = filesArray.getBencodeObject(i);
+    		long fileLength = fileDict.getLong("length");
+    		files.add(new TorrentFile(i, createFilePath(fileDict.getBencodeArray("path")), fileLength, offset));
+    		offset += fileLength;
+    	}
+    	return files;
+    }
+
+    // Path elements come from the torrent, so ones that would leave the download directory are dropped
+    private static String createFilePath(BencodeArray pathArray) {
+    	List<String> elements = new ArrayList<>();
+    	for (int i = 0; i < pathArray.size(); i++) {
+    		String element = pathArray.getString(i).replace('/', '_').replace('\\', '_');
+    		if (!element.isEmpty() && !element.equals(".") && !element.equals("..")) {
+    			elements.add(element);
+    		}
+    	}
+    	if (elements.isEmpty()) {
+    		throw new IllegalArgumentException("File without a usable path");
+    	}
+    	return String.join("/", elements);
+    }
+
+    // BEP 12: each tier is shuffled once, and a torrent without announce-list has its announce URL as the only tier
+    public List<List<String>> createAnnounceTiers(BencodeArray announceListArray) {
+    	List<List<String>> tiers = new ArrayList<>();
+    	if (announceListArray != null) {
+    		for (int i = 0; i < announceListArray.size(); i++) {
+    			BencodeArray tierArray = announceListArray.getBencodeArray(i);
+    			List<String> tier = new ArrayList<>();
+    			for (int j = 0; j < tierArray.size(); j++) {
+    				tier.add(tierArray.getString(j));
+    			}
+    			if (!tier.isEmpty()) {
+    				Collections.shuffle(tier);
+    				tiers.add(tier);
+    			}
+    		}
+    	}
+    	if (tiers.isEmpty() && announce != null) {
+    		tiers.add(new ArrayList<>(List.of(announce)));
+    	}
+    	return tiers;
+    }
+
+    public List<String> createAnnounceList(List<List<String>> tiers) {
+    	List<String> announceList = new ArrayList<>();
+    	for (List<String> tier : tiers) {
+    		announceList.addAll(tier);
+    	}
+    	return announceList;
     }
     
     public static Torrent fromFile(String filePath) {
@@ -96,23 +157,6 @@ public class Torrent {
     	return sb.toString();
 	}
 
-	public List<String> createRequestURLs() {
-        String encodedInfoHash = urlEncode(infoHash);
-        int port = 12345;
-        long uploaded = 0;
-        long downloaded = 0;
-        long left = this.length;
-        
-        List<String> requestUrls = new ArrayList<>();
-        for (String announce : announceList) {
-            String query = String.format("%s?info_hash=%s&peer_id=%s&port=%d&uploaded=%d&downloaded=%d&left=%d",
-                    announce, encodedInfoHash, this.peerId, port, uploaded, downloaded, left);
-            requestUrls.add(query);
-        } 
-        return requestUrls;
-
-    }
-    
     private byte[] calculateInfoHash(byte[] infoDictBytes) {
         try {
             MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
@@ -132,14 +176,6 @@ public class Torrent {
         return hashes;
     }
     
-    private String urlEncode(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : bytes) {
-            sb.append("%").append(String.format("%02x", b));
-        }
-        return sb.toString();
-    }
-    
     public byte[] getPeerIdBytes() {
     	return this.peerId.getBytes();
     }
@@ -179,4 +215,50 @@ public class Torrent {
 	public byte[] getPieceHash(int pieceIndex) {
 		return pieceHashes[pieceIndex];
 	}
+
+	// The files a byte range of a piece lands in, in order; empty files hold no bytes and never show up
+	public List<FileSpan> getFileSpans(int pieceIndex, int begin, int rangeLength) {
+		List<FileSpan> spans = new ArrayList<>();
+		long start = pieceIndex * pieceLength + begin;
+		long end = start + rangeLength;
+		for (int i = findFile(start); i < files.size() && start < end; i++) {
+			TorrentFile file = files.get(i);
+			long fileEnd = file.getOffset() + file.getLength();
+			if (fileEnd <= start) {
+				continue;
+			}
+			int spanLength = (int) (Math.min(end, fileEnd) - start);
+			spans.add(new FileSpan(file, start - file.getOffset(), (int) (start - pieceIndex * pieceLength), spanLength));
+			start += spanLength;
+		}
+		return spans;
+	}
+
+	public List<FileSpan> getFileSpans(int pieceIndex) {
+		return getFileSpans(pieceIndex, 0, getPieceSize(pieceIndex));
+	}
+
+	// Pieces holding any byte of the file; none for an empty file
+	public int getFirstPiece(TorrentFile file) {
+		return (int) (file.getOffset() / pieceLength);
+	}
+
+	public int getLastPiece(TorrentFile file) {
+		return (int) ((file.getOffset() + file.getLength() - 1) / pieceLength);
+	}
+
+	// Last file starting at or before the position
+	private int findFile(long position) {
+		int low = 0;
+		int high = files.size() - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (files.get(middle).getOffset() <= position) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
 }
\ No newline at end of file
@@ -7,6 +7,11 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
 @SpringBootApplication
 public class TorrentClientApplication implements CommandLineRunner {
 	
+	private final ClientSettings settings;
+
+	public TorrentClientApplication(ClientSettings settings) {
+		this.settings = settings;
+	}
 
 	public static void main(String[] args) {
 		SpringApplication.run(TorrentClientApplication.class, args);
@@ -22,7 +27,7 @@ public class TorrentClientApplication implements CommandLineRunner {
 	    String torrentFilePath = args[0];
 	    String savePath = args[1];
 
-	    UserClient userClient = new UserClient(torrentFilePath, savePath);
+	    UserClient userClient = new UserClient(torrentFilePath, savePath, settings);
 	    userClient.start();
 	}
 }
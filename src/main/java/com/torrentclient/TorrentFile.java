@@ -0,0 +1,19 @@
+package com.torrentclient;
+
+import lombok.Data;
+
+// One file of the torrent, placed at offset in the concatenated content of all files
+@Data
+public class TorrentFile {
+	private final int index;
+	private final String path;
+	private final long length;
+	private final long offset;
+
+	public TorrentFile(int index, String path, long length, long offset) {
+		this.index = index;
+		this.path = path;
+		this.length = length;
+		this.offset = offset;
+	}
+}
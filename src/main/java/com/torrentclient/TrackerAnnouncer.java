@@ -0,0 +1,280 @@
+package com.torrentclient;
+
+import java.net.SocketException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.torrentclient.exceptions.TrackerException;
+
+// Announces to every BEP 12 tier at once. Within a tier trackers are tried in order, and the first to answer
+// moves to the front so the next announce asks it first. Each tier then re-announces on its tracker's interval
+public class TrackerAnnouncer {
+
+	private static final int DEFAULT_INTERVAL_SECONDS = 1800;
+	private static final int DEFAULT_MIN_INTERVAL_SECONDS = 60;
+	private static final int RETRY_SECONDS = 60;
+	private static final int PEER_CHECK_SECONDS = 5;
+	private static final int STOPPED_ANNOUNCE_WAIT_SECONDS = 2;
+	private static final Logger logger = LoggerFactory.getLogger(TrackerAnnouncer.class);
+
+	private final List<Tier> tiers = new ArrayList<>();
+	private final Duration trackerTimeout;
+	private final HttpClient httpClient;
+	private final Supplier<AnnounceRequest> requestFactory;
+	private final Consumer<AnnounceResponse> onResponse;
+	private final BooleanSupplier needsPeers;
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+	private UdpTrackerClient udpTrackerClient;
+	private final AtomicBoolean completedAnnounced = new AtomicBoolean();
+	private volatile boolean stopped;
+
+	// requestFactory supplies the current transfer statistics; needsPeers is polled to announce before the interval is up
+	public TrackerAnnouncer(List<List<String>> announceTiers, Duration trackerTimeout, Supplier<AnnounceRequest> requestFactory,
+			Consumer<AnnounceResponse> onResponse, BooleanSupplier needsPeers) {
+		for (List<String> trackers : announceTiers) {
+			tiers.add(new Tier(trackers));
+		}
+		this.trackerTimeout = trackerTimeout;
+		this.requestFactory = requestFactory;
+		this.onResponse = onResponse;
+		this.needsPeers = needsPeers;
+		this.httpClient = HttpClient.newBuilder()
+				.connectTimeout(trackerTimeout)
+				.followRedirects(HttpClient.Redirect.NORMAL)
+				.build();
+	}
+
+	// Completes once every tier has answered the started announce or run out of trackers
+	public CompletableFuture<Void> start() {
+		List<CompletableFuture<Void>> firstAnnounces = new ArrayList<>();
+		for (Tier tier : tiers) {
+			firstAnnounces.add(announceTier(tier, AnnounceRequest.Event.STARTED));
+		}
+		scheduler.scheduleWithFixedDelay(this::checkPeers, PEER_CHECK_SECONDS, PEER_CHECK_SECONDS, TimeUnit.SECONDS);
+		return CompletableFuture.allOf(firstAnnounces.toArray(new CompletableFuture<?>[0]));
+	}
+
+	public void announceCompleted() {
+		if (!completedAnnounced.compareAndSet(false, true)) {
+			return;
+		}
+		for (Tier tier : tiers) {
+			announceTier(tier, AnnounceRequest.Event.COMPLETED);
+		}
+	}
+
+	// Trackers that answered hear that we are leaving; waits briefly so the announces get out before shutdown
+	public void stop() {
+		if (stopped) {
+			return;
+		}
+		stopped = true;
+		scheduler.shutdownNow();
+		List<CompletableFuture<AnnounceResponse>> stoppedAnnounces = new ArrayList<>();
+		for (Tier tier : tiers) {
+			String tracker;
+			synchronized (tier) {
+				if (tier.next != null) {
+					tier.next.cancel(false);
+				}
+				if (!tier.answered) {
+					continue;
+				}
+				tracker = tier.trackers.get(0);
+			}
+			AnnounceRequest request = requestFactory.get();
+			request.setEvent(AnnounceRequest.Event.STOPPED);
+			stoppedAnnounces.add(announceTo(tracker, request));
+		}
+		try {
+			CompletableFuture.allOf(stoppedAnnounces.toArray(new CompletableFuture<?>[0]))
+					.get(STOPPED_ANNOUNCE_WAIT_SECONDS, TimeUnit.SECONDS);
+		} catch (Exception e) {
+			logger.debug("Not every tracker confirmed the stopped announce");
+		}
+		synchronized (this) {
+			if (udpTrackerClient != null) {
+				udpTrackerClient.stop();
+			}
+		}
+	}
+
+	// Runs every few seconds; a tier is only asked early once its tracker's min interval has passed
+	private void checkPeers() {
+		if (!needsPeers.getAsBoolean()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		for (Tier tier : tiers) {
+			synchronized (tier) {
+				if (tier.inFlight || now - tier.lastAnnounceAt < TimeUnit.SECONDS.toMillis(tier.minIntervalSeconds)) {
+					continue;
+				}
+			}
+			logger.info("Too few peers, announcing early to tier {}", tier.trackers);
+			announceTier(tier, AnnounceRequest.Event.NONE);
+		}
+	}
+
+	private CompletableFuture<Void> announceTier(Tier tier, AnnounceRequest.Event event) {
+		AnnounceRequest request = requestFactory.get();
+		request.setEvent(event);
+		List<String> trackers;
+		synchronized (tier) {
+			if (tier.next != null) {
+				tier.next.cancel(false);
+			}
+			tier.inFlight = true;
+			tier.lastAnnounceAt = System.currentTimeMillis();
+			trackers = new ArrayList<>(tier.trackers);
+		}
+		return tryTrackers(tier, trackers, 0, request).thenAccept(response -> scheduleNextAnnounce(tier, response));
+	}
+
+	// Completes with null when no tracker of the tier answered
+	private CompletableFuture<AnnounceResponse> tryTrackers(Tier tier, List<String> trackers, int index, AnnounceRequest request) {
+		if (index >= trackers.size()) {
+			logger.info("No tracker of tier {} answered", trackers);
+			return CompletableFuture.completedFuture(null);
+		}
+		String trackerUrl = trackers.get(index);
+		return announceTo(trackerUrl, request).handle((response, error) -> {
+			if (error != null) {
+				logger.info("Announce to {} failed: {}", trackerUrl, describe(error));
+				return tryTrackers(tier, trackers, index + 1, request);
+			}
+			synchronized (tier) {
+				tier.trackers.remove(trackerUrl);
+				tier.trackers.add(0, trackerUrl);
+			}
+			logger.info("Tracker {} returned {} peers", trackerUrl, response.getPeers().size());
+			try {
+				onResponse.accept(response);
+			} catch (RuntimeException e) {
+				logger.warn("Error handling the response of " + trackerUrl, e);
+			}
+			return CompletableFuture.completedFuture(response);
+		}).thenCompose(Function.identity());
+	}
+
+	// A tier that failed completely is retried with a doubling delay, capped at the default interval
+	private void scheduleNextAnnounce(Tier tier, AnnounceResponse response) {
+		synchronized (tier) {
+			tier.inFlight = false;
+			long delaySeconds;
+			if (response != null) {
+				tier.answered = true;
+				tier.failures = 0;
+				tier.intervalSeconds = response.getInterval() > 0 ? response.getInterval() : DEFAULT_INTERVAL_SECONDS;
+				tier.minIntervalSeconds = response.getMinInterval() > 0 ? response.getMinInterval()
+						: Math.min(DEFAULT_MIN_INTERVAL_SECONDS, tier.intervalSeconds);
+				delaySeconds = tier.intervalSeconds;
+			} else {
+				delaySeconds = Math.min((long) RETRY_SECONDS << Math.min(tier.failures, 5), DEFAULT_INTERVAL_SECONDS);
+				tier.failures++;
+			}
+			if (stopped) {
+				return;
+			}
+			try {
+				tier.next = scheduler.schedule(() -> announceTier(tier, AnnounceRequest.Event.NONE), delaySeconds, TimeUnit.SECONDS);
+			} catch (RejectedExecutionException e) {
+				logger.debug("Announcer stopped, not scheduling another announce");
+			}
+		}
+	}
+
+	public CompletableFuture<AnnounceResponse> announceTo(String trackerUrl, AnnounceRequest request) {
+		URI trackerUri;
+		try {
+			trackerUri = URI.create(trackerUrl);
+		} catch (IllegalArgumentException e) {
+			return CompletableFuture.failedFuture(new TrackerException("malformed tracker URL"));
+		}
+		String scheme = trackerUri.getScheme();
+		if ("http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme)) {
+			return announceHttp(trackerUrl, request);
+		}
+		if ("udp".equalsIgnoreCase(scheme)) {
+			return announceUdp(trackerUri, request);
+		}
+		return CompletableFuture.failedFuture(new TrackerException("unsupported tracker protocol " + scheme));
+	}
+
+	private CompletableFuture<AnnounceResponse> announceHttp(String trackerUrl, AnnounceRequest request) {
+		HttpRequest httpRequest = HttpRequest.newBuilder(URI.create(request.toUrl(trackerUrl)))
+				.timeout(trackerTimeout)
+				.GET()
+				.build();
+		return httpClient.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofByteArray()).thenApply(httpResponse -> {
+			try {
+				if (httpResponse.statusCode() != 200) {
+					throw new TrackerException("HTTP status " + httpResponse.statusCode());
+				}
+				return AnnounceResponse.fromBencode(httpResponse.body());
+			} catch (TrackerException e) {
+				throw new CompletionException(e);
+			}
+		});
+	}
+
+	private CompletableFuture<AnnounceResponse> announceUdp(URI trackerUri, AnnounceRequest request) {
+		UdpTrackerClient client;
+		try {
+			client = udpTrackerClient();
+		} catch (SocketException e) {
+			return CompletableFuture.failedFuture(new TrackerException("cannot open a UDP socket: " + e.getMessage()));
+		}
+		return client.announce(trackerUri, request).orTimeout(trackerTimeout.toMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	// Opened on first use; torrents with only HTTP trackers never need the socket
+	private synchronized UdpTrackerClient udpTrackerClient() throws SocketException {
+		if (udpTrackerClient == null) {
+			udpTrackerClient = new UdpTrackerClient();
+			udpTrackerClient.start();
+		}
+		return udpTrackerClient;
+	}
+
+	private static String describe(Throwable error) {
+		Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+		return cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName();
+	}
+
+	private static class Tier {
+
+		private final List<String> trackers;
+		private boolean inFlight;
+		private boolean answered;
+		private long lastAnnounceAt;
+		private int intervalSeconds = DEFAULT_INTERVAL_SECONDS;
+		private int minIntervalSeconds = DEFAULT_MIN_INTERVAL_SECONDS;
+		private int failures;
+		private ScheduledFuture<?> next;
+
+		Tier(List<String> trackers) {
+			this.trackers = new ArrayList<>(trackers);
+		}
+	}
+}
@@ -0,0 +1,288 @@
+package com.torrentclient;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.torrentclient.exceptions.TrackerException;
+
+// BEP 15 client. One socket serves every udp:// tracker; replies are matched to requests by transaction id
+public class UdpTrackerClient implements Runnable {
+
+	private static final long PROTOCOL_ID = 0x41727101980L;
+	private static final int ACTION_CONNECT = 0;
+	private static final int ACTION_ANNOUNCE = 1;
+	private static final int ACTION_SCRAPE = 2;
+	private static final int ACTION_ERROR = 3;
+	private static final long CONNECTION_ID_LIFETIME_MILLIS = 60_000;
+	// BEP 15 waits 15 * 2^n seconds; announces here are also bounded by the tracker timeout, so the backoff starts lower
+	private static final int RETRANSMIT_BASE_MILLIS = 1000;
+	private static final int MAX_RETRANSMISSIONS = 4;
+	private static final int MAX_PACKET_SIZE = 2048;
+	private static final Logger logger = LoggerFactory.getLogger(UdpTrackerClient.class);
+
+	private final DatagramSocket socket;
+	private final Thread thread;
+	// Only schedules retransmits, so a slow lookup can never hold back another tracker's timeout
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+	private final ExecutorService resolver = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "udp-tracker-resolver");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final Map<Integer, Transaction> transactions = new ConcurrentHashMap<>();
+	private final Map<InetSocketAddress, ConnectionId> connectionIds = new ConcurrentHashMap<>();
+	private final int key = ThreadLocalRandom.current().nextInt();
+	private volatile boolean running = true;
+
+	public UdpTrackerClient() throws SocketException {
+		this.socket = new DatagramSocket();
+		this.thread = new Thread(this, "udp-tracker");
+		this.thread.setDaemon(true);
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	public void stop() {
+		running = false;
+		socket.close();
+		timer.shutdownNow();
+		resolver.shutdownNow();
+		for (Transaction transaction : transactions.values()) {
+			transaction.result.completeExceptionally(new TrackerException("UDP tracker client stopped"));
+		}
+		transactions.clear();
+	}
+
+	public CompletableFuture<AnnounceResponse> announce(URI trackerUri, AnnounceRequest request) {
+		return resolve(trackerUri).thenCompose(address -> connect(address).thenCompose(connectionId -> {
+			ByteBuffer packet = ByteBuffer.allocate(98);
+			packet.putLong(connectionId);
+			packet.putInt(ACTION_ANNOUNCE);
+			packet.putInt(0);
+			packet.put(request.getInfoHash());
+			packet.put(request.getPeerId());
+			packet.putLong(request.getDownloaded());
+			packet.putLong(request.getLeft());
+			packet.putLong(request.getUploaded());
+			packet.putInt(eventCode(request.getEvent()));
+			packet.putInt(0);
+			packet.putInt(key);
+			packet.putInt(request.getNumWant());
+			packet.putShort((short) request.getPort());
+			return send(address, ACTION_ANNOUNCE, packet);
+		}).thenApply(reply -> {
+			int interval = reply.getInt();
+			reply.getInt(); // leechers
+			reply.getInt(); // seeders
+			byte[] compactPeers = new byte[reply.remaining()];
+			reply.get(compactPeers);
+			return new AnnounceResponse(Peer.fromCompact(compactPeers), interval, 0);
+		}).whenComplete((response, error) -> forgetConnectionOnFailure(address, error)));
+	}
+
+	public CompletableFuture<ScrapeResult> scrape(URI trackerUri, byte[] infoHash) {
+		return resolve(trackerUri).thenCompose(address -> connect(address).thenCompose(connectionId -> {
+			ByteBuffer packet = ByteBuffer.allocate(36);
+			packet.putLong(connectionId);
+			packet.putInt(ACTION_SCRAPE);
+			packet.putInt(0);
+			packet.put(infoHash);
+			return send(address, ACTION_SCRAPE, packet);
+		}).thenApply(reply -> {
+			if (reply.remaining() < 12) {
+				throw new CompletionException(new TrackerException("scrape reply too short"));
+			}
+			return new ScrapeResult(reply.getInt(), reply.getInt(), reply.getInt());
+		}).whenComplete((result, error) -> forgetConnectionOnFailure(address, error)));
+	}
+
+	// Hostname lookups block, so they run on their own threads rather than the caller's or the timer
+	private CompletableFuture<InetSocketAddress> resolve(URI trackerUri) {
+		if (trackerUri.getHost() == null || trackerUri.getPort() == -1) {
+			return CompletableFuture.failedFuture(new TrackerException("UDP tracker URL needs a host and port"));
+		}
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return new InetSocketAddress(InetAddress.getByName(trackerUri.getHost()), trackerUri.getPort());
+			} catch (IOException e) {
+				throw new CompletionException(new TrackerException("cannot resolve " + trackerUri.getHost()));
+			}
+		}, resolver);
+	}
+
+	// A connection id stays valid for a minute, so repeated announces to the same tracker skip the connect round trip
+	private CompletableFuture<Long> connect(InetSocketAddress address) {
+		ConnectionId cached = connectionIds.get(address);
+		if (cached != null && System.currentTimeMillis() - cached.obtainedAt < CONNECTION_ID_LIFETIME_MILLIS) {
+			return CompletableFuture.completedFuture(cached.id);
+		}
+		ByteBuffer packet = ByteBuffer.allocate(16);
+		packet.putLong(PROTOCOL_ID);
+		packet.putInt(ACTION_CONNECT);
+		packet.putInt(0);
+		return send(address, ACTION_CONNECT, packet).thenApply(reply -> {
+			long id = reply.getLong();
+			connectionIds.put(address, new ConnectionId(id, System.currentTimeMillis()));
+			return id;
+		});
+	}
+
+	private void forgetConnectionOnFailure(InetSocketAddress address, Throwable error) {
+		if (error != null) {
+			connectionIds.remove(address);
+		}
+	}
+
+	// The transaction id goes at offset 12 of every request; the reply future receives what follows the reply's header
+	private CompletableFuture<ByteBuffer> send(InetSocketAddress address, int action, ByteBuffer packet) {
+		int transactionId;
+		Transaction transaction;
+		do {
+			transactionId = ThreadLocalRandom.current().nextInt();
+			transaction = new Transaction(address, action, packet.array());
+		} while (transactions.putIfAbsent(transactionId, transaction) != null);
+		packet.putInt(12, transactionId);
+		transmit(transactionId, transaction);
+		return transaction.result;
+	}
+
+	private void transmit(int transactionId, Transaction transaction) {
+		if (transaction.result.isDone()) {
+			return;
+		}
+		if (transaction.attempts > MAX_RETRANSMISSIONS) {
+			transactions.remove(transactionId);
+			transaction.result.completeExceptionally(new TrackerException("no answer from " + transaction.address));
+			return;
+		}
+		try {
+			socket.send(new DatagramPacket(transaction.packet, transaction.packet.length, transaction.address));
+		} catch (IOException e) {
+			transactions.remove(transactionId);
+			transaction.result.completeExceptionally(new TrackerException("cannot send to " + transaction.address + ": " + e.getMessage()));
+			return;
+		}
+		long delay = (long) RETRANSMIT_BASE_MILLIS << transaction.attempts++;
+		try {
+			transaction.retransmit = timer.schedule(() -> transmit(transactionId, transaction), delay, TimeUnit.MILLISECONDS);
+		} catch (RuntimeException e) {
+			// stopped while the request was in flight, stop() fails the transaction
+		}
+	}
+
+	@Override
+	public void run() {
+		byte[] buffer = new byte[MAX_PACKET_SIZE];
+		DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+		while (running) {
+			try {
+				datagram.setLength(buffer.length);
+				socket.receive(datagram);
+				handleReply(datagram);
+			} catch (IOException e) {
+				if (running) {
+					logger.debug("UDP tracker receive error", e);
+				}
+			}
+		}
+	}
+
+	private void handleReply(DatagramPacket datagram) {
+		if (datagram.getLength() < 8) {
+			return;
+		}
+		ByteBuffer reply = ByteBuffer.wrap(datagram.getData(), 0, datagram.getLength());
+		int action = reply.getInt();
+		int transactionId = reply.getInt();
+		Transaction transaction = transactions.get(transactionId);
+		if (transaction == null || !transaction.address.equals(datagram.getSocketAddress())) {
+			return;
+		}
+		transactions.remove(transactionId);
+		if (transaction.retransmit != null) {
+			transaction.retransmit.cancel(false);
+		}
+		byte[] body = new byte[reply.remaining()];
+		reply.get(body);
+		if (action == ACTION_ERROR) {
+			transaction.result.completeExceptionally(new TrackerException("tracker error: " + new String(body, StandardCharsets.UTF_8)));
+		} else if (action != transaction.action || body.length < minimumReplyLength(action)) {
+			transaction.result.completeExceptionally(new TrackerException("unexpected reply to action " + transaction.action));
+		} else {
+			transaction.result.complete(ByteBuffer.wrap(body));
+		}
+	}
+
+	private static int minimumReplyLength(int action) {
+		switch (action) {
+		case ACTION_CONNECT:
+			return 8;
+		case ACTION_ANNOUNCE:
+			return 12;
+		default:
+			return 0;
+		}
+	}
+
+	private static int eventCode(AnnounceRequest.Event event) {
+		switch (event) {
+		case COMPLETED:
+			return 1;
+		case STARTED:
+			return 2;
+		case STOPPED:
+			return 3;
+		default:
+			return 0;
+		}
+	}
+
+	private static class Transaction {
+
+		private final InetSocketAddress address;
+		private final int action;
+		private final byte[] packet;
+		private final CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+		private volatile ScheduledFuture<?> retransmit;
+		private int attempts;
+
+		Transaction(InetSocketAddress address, int action, byte[] packet) {
+			this.address = address;
+			this.action = action;
+			this.packet = packet;
+		}
+	}
+
+	private static class ConnectionId {
+
+		private final long id;
+		private final long obtainedAt;
+
+		ConnectionId(long id, long obtainedAt) {
+			this.id = id;
+			this.obtainedAt = obtainedAt;
+		}
+	}
+}
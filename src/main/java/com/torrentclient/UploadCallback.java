@@ -0,0 +1,6 @@
+package com.torrentclient;
+
+public interface UploadCallback {
+	void onPeerInterestChanged(Client client);
+	boolean onBlockRequested(Client client, BlockRequest request);
+}
@@ -1,56 +1,93 @@
 package com.torrentclient;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.lang.reflect.Method;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.Collection;
 import java.util.List;
-import java.util.Optional;
-import java.util.Queue;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.torrentclient.dht.DhtNode;
 import com.torrentclient.exceptions.WrongMessageTypeException;
 import com.torrentclient.exceptions.WrongPayloadLengthException;
+import com.torrentclient.utp.UtpAcceptCallback;
+import com.torrentclient.utp.UtpConnection;
+import com.torrentclient.utp.UtpSocketManager;
+import com.torrentclient.utp.UtpTransport;
 
-public class UserClient implements PieceMessageCallback, ClientExceptionCallback {
+public class UserClient implements PieceMessageCallback, ClientExceptionCallback, ClientConnectionCallback, PeerDialerCallback, PeerListenerCallback, UtpAcceptCallback, DhtPortCallback, DiskWriteCallback {
 	
+    private final ClientSettings settings;
     private ExecutorService connectionThreadPool;
-    private PeriodicChecker periodicChecker;
+    private SelectorEngine selectorEngine;
+    private PeerDialer peerDialer;
+    private PeerListener peerListener;
+    private PeerExchange peerExchange;
+    private Choker choker;
+    private UtpSocketManager utpSocketManager;
+    private TrackerAnnouncer trackerAnnouncer;
+    private DhtNode dhtNode;
+    private final PeerPool peerPool = new PeerPool();
+    private Handshake handshake;
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final AtomicInteger inboundSessions = new AtomicInteger();
+    private final AtomicLong downloadedBytes = new AtomicLong();
     private SpeedLogger speedLogger;
+    private DiskWriter diskWriter;
+    private StreamWindow streamWindow;
+    private StreamServer streamServer;
     private static final int maxBlockSize = 16384;
+    private static final int CONNECT_TIMEOUT = 3000;
+    private static final int HANDSHAKE_TIMEOUT = 5000;
+    private static final int HANDSHAKE_LENGTH = 68;
+    private static final long PEERLESS_TIMEOUT_MILLIS = 300_000;
     private int numberOfPieces;
-	private int blocksPerPiece;
     private String path;
     private String storagePath;
     private Torrent torrent;
     private FileManager fileManager;
-	private ConcurrentHashMap<Integer,PieceState> pieceStates;
+    private Seeder seeder;
     private Bitfield downloadedPiecesBitfield;
-    private Queue<PieceState> pieceQueue;
-    private Set<Integer> piecesBeingDownloaded;
-    private final List<Client> activeClients = Collections.synchronizedList(new ArrayList<>());
-    private final ReentrantLock mergeLock = new ReentrantLock();
+    private PiecePicker piecePicker;
+    private BlockScheduler blockScheduler;
+    private final List<Client> activeClients = new CopyOnWriteArrayList<>();
+    // Counted down by the disk thread that stores the last piece
+    private final CountDownLatch downloadFinished = new CountDownLatch(1);
 
     
     private static final Logger logger = LoggerFactory.getLogger(UserClient.class);
     
     public UserClient(String torrentFilePath, String savePath) {
+        this(torrentFilePath, savePath, new ClientSettings());
+    }
+
+    public UserClient(String torrentFilePath, String savePath, ClientSettings settings) {
         this.path = torrentFilePath;
         this.storagePath = savePath;
+        this.settings = settings;
     }
     
     public void start() {
@@ -63,24 +100,78 @@ public class UserClient implements PieceMessageCallback, ClientExceptionCallback
     private void initialize() {
         torrent = Torrent.fromFile(path);
         setupConnectionThreadPool();
-        fileManager = new FileManager(storagePath, torrent.getName());
+        fileManager = new FileManager(storagePath, torrent, settings.getStorage());
         initializeDataStructures();
-        speedLogger = new SpeedLogger(numberOfPieces, downloadedPiecesBitfield, torrent.getLength());
+        diskWriter = new DiskWriter(fileManager, this, settings.getDiskThreads(), settings.getDiskQueueMb() * 1024L * 1024);
+        diskWriter.start();
+        choker = new Choker(activeClients, settings.getUploadSlots(), this::isDownloadComplete);
+        choker.start();
+        seeder = new Seeder(torrent, fileManager, downloadedPiecesBitfield, activeClients, choker);
+        speedLogger = new SpeedLogger(numberOfPieces, downloadedPiecesBitfield, torrent.getLength(), diskWriter);
         speedLogger.start();
-	    periodicChecker = new PeriodicChecker(activeClients, pieceQueue,
-			downloadedPiecesBitfield, this::isDownloadComplete, blocksPerPiece);
-	    periodicChecker.start();
+        if (settings.isStreaming()) {
+        	startStreaming();
+        }
+    }
+
+    // The start of the content is fetched first even before anyone reads it
+    private void startStreaming() {
+    	streamWindow = new StreamWindow(piecePicker, downloadedPiecesBitfield, numberOfPieces, settings.getStreamWindow());
+    	streamWindow.prefetch(0);
+    	try {
+    		streamServer = new StreamServer(settings.getStreamPort(), torrent, fileManager, streamWindow);
+    	} catch (IOException e) {
+    		logger.warn("Could not listen on port {}, streaming is disabled", settings.getStreamPort(), e);
+    		return;
+    	}
+    	streamServer.start();
+    	logger.info("Streaming {} on http://localhost:{}/", torrent.getName(), streamServer.getPort());
+    }
+
+    // Seeding and streaming both keep the client up after the download completes
+    private boolean keepsRunning() {
+    	return settings.isSeed() || streamServer != null;
     }
 
     private void process() {
-        List<Peer> peerList = getPeerList();
-        startDownloading(peerList);
+        if (!startNetworking()) {
+            return;
+        }
+        awaitPeerSessions(announceToTrackers());
     }
 
     private void cleanup() {
         logger.debug("Shutting down connections");
         disconnectActiveClients(); 
         connectionThreadPool.shutdown();
+        if (peerDialer != null) {
+            peerDialer.stop();
+        }
+        if (peerExchange != null) {
+            peerExchange.stop();
+        }
+        if (choker != null) {
+            choker.stop();
+        }
+        if (peerListener != null) {
+            peerListener.unregister(torrent.getInfoHash());
+            peerListener.stop();
+        }
+        if (utpSocketManager != null) {
+            utpSocketManager.stop();
+        }
+        if (trackerAnnouncer != null) {
+            trackerAnnouncer.stop();
+        }
+        if (dhtNode != null) {
+            dhtNode.stop();
+        }
+        if (selectorEngine != null) {
+            selectorEngine.stop();
+        }
+        if (streamServer != null) {
+            streamServer.stop();
+        }
         if (isDownloadComplete()) {
         	logger.debug("Download succesfull, closing app");
         	System.exit(0); // need to fix this to not have to rely on that
@@ -91,56 +182,512 @@ public class UserClient implements PieceMessageCallback, ClientExceptionCallback
         } catch (InterruptedException e) {
             logger.debug("Download threads interrupted", e);
         }
-        
+        diskWriter.stop();
+        fileManager.close();
     }
 
     private void finalizeDownload() {
-        try {
-            if (!isDownloadComplete()) {
-                logger.debug("Download was not completed successfully");
-                return;
-            }
-            mergeLock.lock();
-            try {
-                if (!fileManager.isFileMerged()) {
-                    speedLogger.stop();
-                    periodicChecker.stop();
-                    fileManager.mergeFiles(numberOfPieces, torrent.getLength());
-                }
-            } finally {
-                mergeLock.unlock();
-            }
-        } finally {
-            cleanup();
+        if (!isDownloadComplete()) {
+            logger.debug("Download was not completed successfully");
+            return;
+        }
+        mergeCompletedDownload();
+    }
+
+    // Only the main thread merges
+    private void mergeCompletedDownload() {
+        if (!fileManager.isFileMerged()) {
+            speedLogger.stop();
+            fileManager.mergeFiles();
         }
     }
 
     private void setupConnectionThreadPool() {
-        int numThreads = 8; 
-        connectionThreadPool = Executors.newFixedThreadPool(numThreads);
+        if (settings.getThreadMode() == ClientSettings.ThreadMode.VIRTUAL) {
+            connectionThreadPool = createVirtualThreadPerTaskExecutor();
+        } else {
+            int numThreads = settings.getConnectionThreads(); 
+            connectionThreadPool = Executors.newFixedThreadPool(numThreads);
+            logger.info("Peer connections run on a pool of {} platform threads", numThreads);
+        }
+    }
+
+    // Looked up reflectively so the build keeps targeting Java 17
+    private ExecutorService createVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            logger.info("Peer connections run on a virtual thread per peer");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Virtual threads are not available on this JVM, using a platform thread per peer");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    // Peers from each tracker are dialled as soon as it answers instead of waiting for the slowest one,
+    // and the announcer keeps re-announcing in the background for as long as we run
+    private CompletableFuture<Void> announceToTrackers() {
+        trackerAnnouncer = new TrackerAnnouncer(torrent.getAnnounceTiers(), Duration.ofSeconds(settings.getTrackerTimeout()),
+                this::createAnnounceRequest, response -> onPeersFound("Tracker", response.getPeers()), this::needsMorePeers);
+        return trackerAnnouncer.start();
     }
 
-    private List<Peer> getPeerList() {
-        List<String> requestUrls = torrent.createRequestURLs();
-        return Peer.fetchPeers(requestUrls);
+    private AnnounceRequest createAnnounceRequest() {
+        AnnounceRequest request = new AnnounceRequest(torrent.getInfoHash(), torrent.getPeerIdBytes(), announcedPort());
+        request.setUploaded(seeder.getUploadedBytes());
+        request.setDownloaded(downloadedBytes.get());
+        request.setLeft(bytesLeft());
+        request.setNumWant(isDownloadComplete() ? 0 : settings.getNumWant());
+        return request;
+    }
+
+    private long bytesLeft() {
+        long left = 0;
+        for (int pieceIndex = 0; pieceIndex < numberOfPieces; pieceIndex++) {
+            if (!downloadedPiecesBitfield.hasPiece(pieceIndex)) {
+                left += torrent.getPieceSize(pieceIndex);
+            }
+        }
+        return left;
+    }
+
+    private boolean needsMorePeers() {
+        return !isDownloadComplete() && activeSessions.get() < settings.getMinPeers();
     }
     
-    private void startDownloading(List<Peer> peerList) {
-    	Handshake handshake = new Handshake(torrent.getInfoHash(), torrent.getPeerIdBytes());
-    	for (Peer peer : peerList) {
-    		connectionThreadPool.submit(() -> {
-    			if (isDownloadComplete()) return;
-    			Client client = new Client(torrent, peer, handshake, this, this);
-    			logger.debug("new client");
-    			if (client.initializeConnection()) {
-    				activeClients.add(client);
-    				attemptDownloadPiece(client);
-    				activeClients.remove(client);
+    // The listener has to be up before we announce its port, and the engine before peers can arrive on it
+    private boolean startNetworking() {
+    	handshake = new Handshake(torrent.getInfoHash(), torrent.getPeerIdBytes());
+    	try {
+    		if (settings.getEngine() == ClientSettings.Engine.NIO) {
+    			selectorEngine = new SelectorEngine(settings.getIoThreads(), this);
+    			selectorEngine.start();
+    			speedLogger.setSelectorEngine(selectorEngine);
+    		}
+    		peerDialer = new PeerDialer(settings.getMaxPendingConnects(), CONNECT_TIMEOUT, HANDSHAKE_TIMEOUT, this);
+    	} catch (IOException e) {
+    		logger.error("Could not open selector", e);
+    		return false;
+    	}
+    	peerDialer.start();
+    	startListening();
+    	if (settings.isUtp()) {
+    		startUtp();
+    	}
+    	// BEP 27: private torrents only learn about peers from their trackers, as with the DHT below
+    	peerExchange = new PeerExchange(activeClients, announcedPort(), peers -> onPeersFound("Peer exchange", peers), !torrent.isPrivate());
+    	peerExchange.start();
+    	if (settings.isDht()) {
+    		startDht();
+    	}
+    	return true;
+    }
+
+    private int announcedPort() {
+    	return peerListener != null ? peerListener.getPort() : settings.getListenPort();
+    }
+
+    private void startListening() {
+    	try {
+    		peerListener = new PeerListener(settings.getListenPort(), settings.getListenBacklog(), HANDSHAKE_TIMEOUT);
+    	} catch (IOException e) {
+    		logger.warn("Could not listen on port {}, only outgoing connections will be made", settings.getListenPort(), e);
+    		return;
+    	}
+    	peerListener.register(torrent.getInfoHash(), this);
+    	peerListener.start();
+    }
+
+    // uTP shares the port number of the TCP listener so the one announced port reaches both
+    private void startUtp() {
+    	try {
+    		utpSocketManager = new UtpSocketManager(announcedPort(), this);
+    	} catch (IOException e) {
+    		logger.warn("Could not open UDP port {}, uTP is disabled", announcedPort(), e);
+    		return;
+    	}
+    	utpSocketManager.start();
+    }
+
+    // BEP 27 keeps private torrents off the DHT. The handshake bit has to be set before the first dial goes out
+    private void startDht() {
+    	if (torrent.isPrivate()) {
+    		logger.info("Torrent is private, not using the DHT");
+    		return;
+    	}
+    	try {
+    		dhtNode = new DhtNode(settings.getDhtPort(), Paths.get(settings.getDhtStateFile()));
+    	} catch (SocketException e) {
+    		logger.warn("Could not open UDP port {}, the DHT is disabled", settings.getDhtPort(), e);
+    		return;
+    	}
+    	handshake.enableDht();
+    	dhtNode.start();
+    	List<InetSocketAddress> bootstrapNodes = new ArrayList<>();
+    	for (String node : settings.getDhtBootstrapNodes()) {
+    		int colon = node.lastIndexOf(':');
+    		try {
+    			bootstrapNodes.add(InetSocketAddress.createUnresolved(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1))));
+    		} catch (RuntimeException e) {
+    			logger.warn("Ignoring DHT bootstrap node {}, expected host:port", node);
+    		}
+    	}
+    	dhtNode.bootstrap(bootstrapNodes);
+    	dhtNode.search(torrent.getInfoHash(), announcedPort(), peers -> onPeersFound("DHT", peers));
+    }
+
+    // Without peers we keep waiting for the announcer to find some, and give up after a while of finding none
+    private void awaitPeerSessions(CompletableFuture<Void> announce) {
+    	long lastActivity = System.currentTimeMillis();
+    	boolean merged = false;
+    	try {
+    		while (keepsRunning() || !isDownloadComplete()) {
+    			long now = System.currentTimeMillis();
+    			if (!announce.isDone() || peerDialer.isBusy() || activeSessions.get() > 0) {
+    				lastActivity = now;
+    			} else if (now - lastActivity > PEERLESS_TIMEOUT_MILLIS) {
+    				logger.info("No peers for {} seconds, giving up", PEERLESS_TIMEOUT_MILLIS / 1000);
+    				break;
+    			}
+    			dialCandidates();
+    			if (isDownloadComplete()) {
+    				// Seeding or streaming goes on from the files in their final form
+    				if (!merged) {
+    					mergeCompletedDownload();
+    					merged = true;
+    				}
+    				Thread.sleep(500);
+    			} else {
+    				downloadFinished.await(500, TimeUnit.MILLISECONDS);
     			}
-    		});
+    		}
+    	} catch (InterruptedException e) {
+    		logger.debug("Interrupted while waiting for peer connections", e);
+    		Thread.currentThread().interrupt();
+    	}
+    }
+
+    @Override
+    public ByteBuffer createOpeningBytes() {
+    	return createOpeningBytes(false);
+    }
+
+    @Override
+    public ByteBuffer createOpeningBytes(byte[] peerHandshake) {
+    	return createOpeningBytes(Handshake.fromBytes(peerHandshake).supportsFastExtension());
+    }
+
+    // Handshake, bitfield and INTERESTED go out together so setup costs a single round trip.
+    // Dialled peers get this before we see their reserved bits, so only accepted ones can be sent HAVE_ALL or HAVE_NONE;
+    // a fast peer requires one of those or a bitfield first, hence the bitfield even when it is empty
+    private ByteBuffer createOpeningBytes(boolean fastPeer) {
+    	byte[] handshakeBytes = handshake.createHandshake();
+    	Message interested = Message.createInterestedMessage();
+    	int piecesHeld = downloadedPiecesBitfield.cardinality();
+    	Message availability;
+    	if (fastPeer && piecesHeld == numberOfPieces) {
+    		availability = Message.createHaveAllMessage();
+    	} else if (fastPeer && piecesHeld == 0) {
+    		availability = Message.createHaveNoneMessage();
+    	} else {
+    		availability = Message.createBitfieldMessage(downloadedPiecesBitfield.toByteArray(numberOfPieces));
+    	}
+    	ByteBuffer openingBytes = ByteBuffer.allocate(handshakeBytes.length + availability.getFrameLength() + interested.getFrameLength());
+    	openingBytes.put(handshakeBytes);
+    	availability.encodeTo(openingBytes);
+    	interested.encodeTo(openingBytes);
+    	return openingBytes.flip();
+    }
+
+    private int connectionLimit() {
+    	boolean threadPerPeer = settings.getEngine() == ClientSettings.Engine.NIO
+    			|| settings.getThreadMode() == ClientSettings.ThreadMode.VIRTUAL;
+    	return threadPerPeer ? settings.getMaxConnections() : Math.min(settings.getMaxConnections(), settings.getConnectionThreads());
+    }
+
+    @Override
+    public boolean hasConnectionCapacity() {
+    	return !isDownloadComplete() && activeSessions.get() < connectionLimit();
+    }
+
+    @Override
+    public boolean hasInboundCapacity() {
+    	return (settings.isSeed() || !isDownloadComplete())
+    			&& inboundSessions.get() < settings.getMaxInboundConnections()
+    			&& activeSessions.get() < connectionLimit();
+    }
+
+    @Override
+    public void onPeerConnected(Peer peer, SocketChannel channel, byte[] handshakeResponse) {
+    	peerPool.onConnected(peer);
+    	startSession(peer, channel, handshakeResponse, false);
+    }
+
+    @Override
+    public void onDialCancelled(Peer peer) {
+    	peerPool.release(peer);
+    }
+
+    @Override
+    public void onInboundPeer(Peer peer, SocketChannel channel, byte[] handshake) {
+    	if (peerPool.isBanned(peer)) {
+    		closeChannel(channel);
+    		return;
+    	}
+    	logger.debug("Incoming connection from peer " + peer.getIpAddress() + ":" + peer.getPort());
+    	startSession(peer, channel, handshake, true);
+    }
+
+    // Dialled and accepted peers share everything from here on; both have already received our opening bytes
+    private void startSession(Peer peer, SocketChannel channel, byte[] handshakeResponse, boolean inbound) {
+    	reserveSession(inbound);
+    	Client client = createClient(peer, inbound);
+    	if (selectorEngine != null) {
+    		client.processHandshakeResponse(handshakeResponse);
+    		selectorEngine.adopt(client, channel);
+    		return;
+    	}
+    	connectionThreadPool.submit(() -> {
+    		StreamTransport transport;
+    		try {
+    			channel.configureBlocking(true);
+    			transport = new SocketTransport(channel.socket());
+    		} catch (IOException e) {
+    			logger.debug("Could not hand connection to peer " + peer.getIpAddress() + " to a worker", e);
+    			closeChannel(channel);
+    			onSessionFinished(client);
+    			return;
+    		}
+    		runBlockingSession(client, transport, handshakeResponse);
+    	});
+    }
+
+    private Client createClient(Peer peer, boolean inbound) {
+    	Client client = new Client(torrent, peer, handshake, this, this, seeder, peerExchange, this, piecePicker);
+    	client.setAmInterested(true);
+    	client.setInbound(inbound);
+    	logger.debug("new client");
+    	return client;
+    }
+
+    // Runs on a pool thread for as long as the peer stays; the session must already be reserved
+    private void runBlockingSession(Client client, StreamTransport transport, byte[] handshakeResponse) {
+    	try {
+    		if (client.initializeFromHandshake(transport, handshakeResponse)) {
+    			activeClients.add(client);
+    			attemptDownloadPiece(client);
+    			activeClients.remove(client);
+    		}
+    	} finally {
+    		client.closeConnection();
+    		activeClients.remove(client);
+    		seeder.onPeerDisconnected(client);
+    		onSessionFinished(client);
+    	}
+    }
+
+    private void closeChannel(SocketChannel channel) {
+    	try {
+    		channel.close();
+    	} catch (IOException e) {
+    		logger.debug("Error closing channel", e);
+    	}
+    }
+
+    // Addresses from trackers, the DHT and connected peers all land in the pool, each one once
+    private void onPeersFound(String source, List<Peer> peers) {
+    	if (isDownloadComplete() && !settings.isSeed()) {
+    		return;
+    	}
+    	int added = 0;
+    	for (Peer peer : peers) {
+    		if (!isOwnAddress(peer) && peerPool.add(peer)) {
+    			added++;
+    		}
+    	}
+    	if (added > 0) {
+    		logger.info("{} found {} new peers", source, added);
+    	}
+    	dialCandidates();
+    }
+
+    // Called whenever a slot may have opened up; the dialer only gets as many peers as it can start right away.
+    // Synchronized so two callers cannot both spend the same budget, dial counts each attempt before it returns
+    private synchronized void dialCandidates() {
+    	if (peerDialer == null || !hasConnectionCapacity()) {
+    		return;
+    	}
+    	int budget = Math.min(settings.getMaxPendingConnects() - peerDialer.getOutstandingAttempts(),
+    			connectionLimit() - activeSessions.get() - peerDialer.getOutstandingAttempts());
+    	if (budget <= 0) {
+    		return;
+    	}
+    	for (Peer peer : peerPool.nextCandidates(budget, this::isConnectedTo)) {
+    		peerDialer.dial(peer, torrent.getInfoHash());
+    	}
+    }
+
+    private boolean isOwnAddress(Peer peer) {
+    	if (peer.getPort() != announcedPort()) {
+    		return false;
+    	}
+    	try {
+    		InetAddress address = InetAddress.getByName(peer.getIpAddress());
+    		return address.isLoopbackAddress() || address.isAnyLocalAddress() || NetworkInterface.getByInetAddress(address) != null;
+    	} catch (IOException e) {
+    		return false;
     	}
     }
 
+    private boolean isConnectedTo(Peer peer) {
+    	for (Client client : activeClients) {
+    		if (peer.equals(client.getListenAddress())) {
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+
+    // Peers behind NAT or firewalls that drop TCP often still answer uTP, so a failed dial gets a second try over UDP
+    @Override
+    public void onDialFailed(Peer peer) {
+    	if (utpSocketManager == null || !hasConnectionCapacity()) {
+    		logger.debug("Could not establish a session with peer " + peer.getIpAddress() + ":" + peer.getPort());
+    		peerPool.onConnectFailed(peer);
+    		dialCandidates();
+    		return;
+    	}
+    	reserveSession(false);
+    	connectionThreadPool.submit(() -> dialUtp(peer));
+    }
+
+    private void dialUtp(Peer peer) {
+    	UtpTransport transport = null;
+    	byte[] handshakeResponse;
+    	try {
+    		transport = UtpTransport.connect(utpSocketManager, peer, CONNECT_TIMEOUT);
+    		transport.write(createOpeningBytes(false));
+    		transport.setReadTimeout(HANDSHAKE_TIMEOUT);
+    		handshakeResponse = readHandshake(transport);
+    	} catch (IOException e) {
+    		logger.debug("Could not establish a session with peer " + peer.getIpAddress() + ":" + peer.getPort() + " over TCP or uTP");
+    		if (transport != null) {
+    			transport.close();
+    		}
+    		peerPool.onConnectFailed(peer);
+    		releaseSession(false);
+    		return;
+    	}
+    	logger.debug("Connected to peer " + peer.getIpAddress() + ":" + peer.getPort() + " over uTP");
+    	peerPool.onConnected(peer);
+    	runBlockingSession(createClient(peer, false), transport, handshakeResponse);
+    }
+
+    @Override
+    public void onUtpConnection(UtpConnection connection) {
+    	if (!hasInboundCapacity() || peerPool.isBanned(new Peer(connection.getRemoteAddress().getAddress().getHostAddress(), 0))) {
+    		connection.close();
+    		return;
+    	}
+    	reserveSession(true);
+    	connectionThreadPool.submit(() -> acceptUtp(new UtpTransport(connection)));
+    }
+
+    // Same order as the TCP listener: our handshake goes out once the peer has named our torrent
+    private void acceptUtp(UtpTransport transport) {
+    	InetSocketAddress remoteAddress = transport.getRemoteAddress();
+    	Peer peer = new Peer(remoteAddress.getAddress().getHostAddress(), remoteAddress.getPort());
+    	byte[] peerHandshake;
+    	try {
+    		transport.setReadTimeout(HANDSHAKE_TIMEOUT);
+    		peerHandshake = readHandshake(transport);
+    		transport.write(createOpeningBytes(peerHandshake));
+    	} catch (IOException e) {
+    		logger.debug("Dropping incoming uTP connection from " + remoteAddress + ": " + e.getMessage());
+    		transport.close();
+    		releaseSession(true);
+    		return;
+    	}
+    	logger.debug("Incoming uTP connection from peer " + peer.getIpAddress() + ":" + peer.getPort());
+    	runBlockingSession(createClient(peer, true), transport, peerHandshake);
+    }
+
+    private byte[] readHandshake(StreamTransport transport) throws IOException {
+    	InputStream inputStream = transport.getInputStream();
+    	byte[] response = inputStream.readNBytes(HANDSHAKE_LENGTH);
+    	if (response.length < HANDSHAKE_LENGTH || !Handshake.isHandshake(response)) {
+    		throw new IOException("peer did not send a BitTorrent handshake");
+    	}
+    	if (!Arrays.equals(Arrays.copyOfRange(response, 28, 48), torrent.getInfoHash())) {
+    		throw new IOException("peer sent a different info hash");
+    	}
+    	return response;
+    }
+
+    private void reserveSession(boolean inbound) {
+    	activeSessions.incrementAndGet();
+    	if (inbound) {
+    		inboundSessions.incrementAndGet();
+    	}
+    }
+
+    private void onSessionFinished(Client client) {
+    	releaseRequests(client);
+    	piecePicker.onPeerGone(client);
+    	if (!client.isInbound()) {
+    		peerPool.onDisconnected(client.getPeer(), client.getBytesDownloaded());
+    	}
+    	releaseSession(client.isInbound());
+    }
+
+    private void releaseSession(boolean inbound) {
+    	activeSessions.decrementAndGet();
+    	if (inbound) {
+    		inboundSessions.decrementAndGet();
+    	}
+    	if (peerDialer != null) {
+    		peerDialer.wakeup();
+    	}
+    	dialCandidates();
+    }
+
+    @Override
+    public void onClientReady(Client client) {
+    	if (isDownloadComplete() && !settings.isSeed()) {
+    		client.closeConnection();
+    		return;
+    	}
+    	activeClients.add(client);
+    	try {
+    		setupDownload(client);
+    		requestBlocks(client);
+    	} catch (IOException e) {
+    		onException(client, e);
+    	}
+    }
+
+    @Override
+    public void onClientMessage(Client client) {
+    	try {
+    		if (!hasRemainingWork(client) && !isSeedingTo(client)) {
+    			client.closeConnection();
+    			return;
+    		}
+    		requestBlocks(client);
+    		seeder.serviceUploads(client);
+    	} catch (IOException e) {
+    		onException(client, e);
+    	}
+    }
+
+    @Override
+    public void onClientClosed(Client client) {
+    	if (activeClients.remove(client)) {
+    		onConnectionClosed(client);
+    	}
+    	onSessionFinished(client);
+    }
+
     private void attemptDownloadPiece(Client client) {
         try {
             setupDownload(client);
@@ -153,70 +700,87 @@ public class UserClient implements PieceMessageCallback, ClientExceptionCallback
     }
 
     private void setupDownload(Client client) throws IOException {
-    	if (isDownloadComplete()) finalizeDownload();
-        client.sendInterestedMessage();
+    	if (!client.isAmInterested()) {
+    		client.queueInterestedMessage();
+    	}
+    	seeder.onPeerReady(client);
+    	peerExchange.onPeerReady(client);
+    	if (dhtNode != null && client.isDht()) {
+    		client.queueMessage(Message.createPortMessage(dhtNode.getPort()));
+    	}
         logger.debug("Sending interested message");
     }
+
+    // The peer runs a DHT node too; it joins our routing table if it answers a ping
+    @Override
+    public void onDhtPort(Client client, int port) {
+    	if (dhtNode != null && port > 0) {
+    		dhtNode.addNode(new InetSocketAddress(client.getPeer().getIpAddress(), port));
+    	}
+    }
     
     private void processPieces(Client client) throws InterruptedException, IOException {
-    	while ((!pieceQueue.isEmpty() || !piecesBeingDownloaded.isEmpty() || !client.workQueue.isEmpty()) && client.isSocketOpen()) {
-            if (!client.isChoked()) {
-            	logger.debug("Inside loop: pieceQueue size: " + pieceQueue.size() + ", piecesBeingDownloaded size: " + piecesBeingDownloaded.size());
-                if (client.workQueue.size() < blocksPerPiece) {
-                    // If workQueue has less blocks than a typical piece, get a new piece and add its blocks
-                    Optional<PieceState> optionalPieceState = chooseRandomPiece(client);
-                    if (optionalPieceState.isPresent()) {
-                        PieceState currentPieceState = optionalPieceState.get();
-                        int pieceIndex = currentPieceState.getPieceIndex();
-                        piecesBeingDownloaded.add(pieceIndex);
-                        populateWorkQueueIfNeeded(client, pieceIndex);
-                    }
-                }
-                sendBlockRequests(client);
-            }
+    	while ((hasRemainingWork(client) || isSeedingTo(client)) && client.isSocketOpen()) {
+            requestBlocks(client);
+            seeder.serviceUploads(client);
             handleIncomingMessages(client);
         }
     }
-    
-    
-    private void populateWorkQueueIfNeeded(Client client, int pieceIndex) {
-        if (!needsMoreBlocks(client)) {
-        	logger.debug("Doesnt need more blocks, returning");
-        	return; 
-        }
-        populateWorkQueue(client, pieceIndex, torrent.getPieceSize(pieceIndex));
+
+    private boolean hasRemainingWork(Client client) {
+        return piecePicker.hasUnfinishedPieces() || !client.outstandingRequests.isEmpty();
     }
-    
-    void populateWorkQueue(Client client, int pieceIndex, int pieceSize) {
-        int blocks = pieceSize / maxBlockSize;
-        logger.debug("Number of blocks {} for piece index {}", blocks, pieceIndex);
-        for (int i = 0; i < blocks; i++) {
-            BlockRequest request = new BlockRequest(pieceIndex, i * maxBlockSize, maxBlockSize);
-            client.workQueue.offer(request);
+
+    private boolean isSeedingTo(Client client) {
+        return settings.isSeed() && client.isPeerInterested();
+    }
+
+    // Keeps the peer's pipeline full with whatever blocks the scheduler can give it
+    private void requestBlocks(Client client) throws IOException {
+        int room = client.getMaxOutstandingRequests() - client.outstandingRequests.size();
+        if (room > 0 && (!client.isChoked() || !client.getAllowedFastPieces().isEmpty())) {
+            for (BlockRequest request : blockScheduler.request(client, room, () -> choosePiece(client))) {
+                client.queueRequestMessage(request);
+                client.getRequestPipeline().onRequestSent(request);
+                client.outstandingRequests.add(request);
+                // A copy from another peer may have arrived before this request was listed, when nobody could cancel it
+                if (blockScheduler.hasDuplicateRequests() && !blockScheduler.isNeeded(request)) {
+                    cancelRequest(client, request);
+                }
+            }
+            logger.debug("Finished queueing block requests. Total outstanding requests: " + client.outstandingRequests.size());
         }
-        // Handling the last block, which might be smaller than maxBlockSize
-        if (pieceSize % maxBlockSize != 0) {
-            int begin = blocks * maxBlockSize;
-            BlockRequest request = new BlockRequest(pieceIndex, begin, pieceSize - begin);
-            client.workQueue.offer(request);
+        client.flush();
+    }
+
+    // The first copy of a block asked of several peers arrived; the others are called off now rather than when
+    // their own session comes round, which is usually when that peer delivers the very block
+    private void cancelDuplicates(Client receiver, BlockRequest block) {
+        for (Client other : activeClients) {
+            if (other != receiver && cancelRequest(other, block)) {
+                try {
+                    other.flush();
+                } catch (IOException e) {
+                    logger.debug("Could not send a cancel to {}", other.getPeer().getIpAddress());
+                }
+            }
         }
     }
 
-    private void sendBlockRequests(Client client) throws IOException {
-        while (client.currentOutstandingRequests < Client.MAX_OUTSTANDING_REQUESTS && !client.workQueue.isEmpty()) {
-            BlockRequest request = client.workQueue.poll();
-            client.sendRequestMessage(request);
-            client.outstandingRequests.add(request);
-            client.currentOutstandingRequests++;
+    // Whoever takes the request out of the peer's outstanding set sends the one cancel for it
+    private boolean cancelRequest(Client client, BlockRequest request) {
+        if (!client.outstandingRequests.remove(request)) {
+            return false;
         }
-        logger.debug("Finished sending block requests. Total outstanding requests: " + client.currentOutstandingRequests);
+        client.getRequestPipeline().onRequestRejected(request);
+        client.queueMessage(Message.createCancelMessage(request));
+        return true;
     }
 
 
     private void handleIncomingMessages(Client client)  {
         try {
-            Message message = client.receiveAndParseMessage();
-            client.handleMessage(message);
+            client.receiveAndHandleMessage();
         } catch (SocketTimeoutException e) {
             logger.debug("Client timed out");
             client.closeConnection();
@@ -226,70 +790,103 @@ public class UserClient implements PieceMessageCallback, ClientExceptionCallback
         }
     }
 
+    // Only blocks we asked this peer for are read, and only until some peer delivered them
+    @Override
+    public boolean isBlockWanted(Client client, BlockRequest block) {
+        return client.outstandingRequests.contains(block) && blockScheduler.isNeeded(block);
+    }
+
     @Override
-    public void onPieceMessageReceived(Message message, Client client) {
+    public void onBlockReceived(Client client, PieceMessageInfo info, ByteBuffer data) {
         try {
-            int pieceIndex = extractPieceIndex(message);
-            ByteBuffer buf = retrieveOrCreateBuffer(client, pieceIndex);
-            PieceMessageInfo info = Message.parsePieceMessage(pieceIndex, buf, message); //buffer updated here
-            int blockIndex = info.getBegin() / maxBlockSize;
-            PieceState pieceState = getPieceStateByIndex(pieceIndex);
-            pieceState.markBlockReceived(blockIndex);
-            client.currentOutstandingRequests--;
-            BlockRequest blockRequestToRemove = new BlockRequest(pieceIndex, info.getBegin(), maxBlockSize); // Adjusted here
-            client.outstandingRequests.remove(blockRequestToRemove);
-            
-            if (pieceState != null) {
-                pieceState.markBlockReceived(blockIndex);
-                logger.debug("Piece {} Block {} received. Total blocks received for this piece: {}", pieceIndex, blockIndex, pieceState.getBlocksReceived());
+            BlockRequest block = new BlockRequest(info.getPieceIndex(), info.getBegin(), info.getBlockLength());
+            if (!client.outstandingRequests.remove(block)) {
+                // A late copy of a block that was cancelled, or one we never asked this peer for
+                logger.debug("Ignoring unrequested block at {} of piece {}", info.getBegin(), info.getPieceIndex());
+                return;
+            }
+            client.getRequestPipeline().onBlockReceived(block, info.getBlockLength());
+            PieceState piece = blockScheduler.onBlockReceived(client, block, data);
+            if (blockScheduler.hasDuplicateRequests()) {
+                cancelDuplicates(client, block);
             }
-            if (!buf.hasRemaining()) {
-            	logger.debug("Buffer for Piece {} is full",pieceIndex);
-                handleFullPiece(pieceIndex, buf, client);
+            if (piece != null) {
+            	logger.debug("Buffer for Piece {} is full", piece.getPieceIndex());
+                handleFullPiece(client, piece);
             }
         } catch (Exception e) {
             logger.debug("Caught exception on pieceMessage");;
         }
     }
 
-    private PieceState getPieceStateByIndex(int pieceIndex) {
-    	return pieceStates.get(pieceIndex);
-	}
-	private int extractPieceIndex(Message message) {
-        return ByteBuffer.wrap(message.getPayload(), 0, 4).getInt();
-    }
-	
-
-    private ByteBuffer retrieveOrCreateBuffer(Client client, int pieceIndex) {
-        return client.pieceBuffers.computeIfAbsent(pieceIndex, k -> {
-            int pieceSize = torrent.getPieceSize(pieceIndex);
-            return ByteBuffer.allocate(pieceSize);
-        });
+    @Override
+    public void onRequestsRejected(Client client, Collection<BlockRequest> requests) {
+        List<BlockRequest> returned = new ArrayList<>();
+        for (BlockRequest request : requests) {
+            if (client.outstandingRequests.remove(request)) {
+                client.getRequestPipeline().onRequestRejected(request);
+                returned.add(request);
+            }
+        }
+        blockScheduler.returnRequests(returned);
+        logger.debug("{} requests to peer {} were rejected", requests.size(), client.getPeer().getIpAddress());
     }
 
-    private void handleFullPiece(int pieceIndex, ByteBuffer buf, Client client) {
-        byte[] pieceData = buf.array();
+    private void handleFullPiece(Client client, PieceState piece) {
+        int pieceIndex = piece.getPieceIndex();
+        // The scheduler let go of the piece as it completed, nothing writes to this array any more
+        byte[] pieceData = piece.getBuffer().array();
         if (verifyPieceIntegrity(pieceData,pieceIndex)) {
         	logger.debug("piece is verified!");
-            fileManager.savePieceToDisk(pieceIndex, pieceData);
-            speedLogger.addBytesDownloaded(torrent.getPieceLength());
-            downloadedPiecesBitfield.setPiece(pieceIndex);
-            client.pieceBuffers.remove(pieceIndex);
-            piecesBeingDownloaded.remove(pieceIndex);
-            if (isDownloadComplete()) {
-            	finalizeDownload();
-            }
+        	// The piece stays in progress until it is on disk, nobody is told we have it before it can be read back
+        	try {
+        		if (!handOff(client, pieceIndex, pieceData)) {
+        			piecePicker.release(pieceIndex);
+        		}
+        	} catch (InterruptedException e) {
+        		piecePicker.release(pieceIndex);
+        		Thread.currentThread().interrupt();
+        	}
         } else {
-            handleCorruptPiece(buf, pieceIndex);
+            piecePicker.release(pieceIndex);
+            // Any peer that supplied a block of a bad piece is a suspect
+            for (Client supplier : piece.getDistinctSuppliers()) {
+                if (peerPool.onHashFailure(supplier.getPeer())) {
+                    supplier.closeConnection();
+                }
+            }
         }
     }
 
-    private void handleCorruptPiece(ByteBuffer buf, int pieceIndex) {
-        buf.clear();
-        pieceQueue.offer(new PieceState(blocksPerPiece, pieceIndex));
-        piecesBeingDownloaded.remove(pieceIndex);
+
+    // An nio thread serves every peer of its loop and must not wait for the disk, only this peer stops being read
+    private boolean handOff(Client client, int pieceIndex, byte[] pieceData) throws InterruptedException {
+        if (client.getTransport() instanceof ChannelTransport) {
+            return diskWriter.offer(pieceIndex, pieceData, (ChannelTransport) client.getTransport());
+        }
+        return diskWriter.submit(pieceIndex, pieceData);
     }
 
+    @Override
+    public void onPieceWritten(int pieceIndex, boolean written) {
+        if (!written) {
+            piecePicker.release(pieceIndex);
+            return;
+        }
+        speedLogger.addBytesDownloaded(torrent.getPieceLength());
+        downloadedBytes.addAndGet(torrent.getPieceSize(pieceIndex));
+        downloadedPiecesBitfield.setPiece(pieceIndex);
+        piecePicker.complete(pieceIndex);
+        seeder.broadcastHave(pieceIndex);
+        if (streamWindow != null) {
+        	streamWindow.onPieceVerified(pieceIndex);
+        }
+        if (isDownloadComplete()) {
+        	trackerAnnouncer.announceCompleted();
+        	// The main thread merges the files and, unless it keeps running, shuts down
+        	downloadFinished.countDown();
+        }
+    }
 
     private boolean verifyPieceIntegrity(byte[] pieceData, int pieceIndex) {
     	byte[] expectedHash = torrent.getPieceHash(pieceIndex);
@@ -298,45 +895,32 @@ public class UserClient implements PieceMessageCallback, ClientExceptionCallback
     }
     
     
-    private boolean shouldDownloadPiece(Client client, int pieceIndex) {
-        return client.getBitfield().hasPiece(pieceIndex);
-    }
-    
-    private boolean needsMoreBlocks(Client client) {
-        return client.workQueue.size() < blocksPerPiece;
-    }
-    
-    private Optional<PieceState> chooseRandomPiece(Client client) {
-    	logger.debug("Choosing a random piece");
-        int piecesChecked = 0;
-        int queueSize = pieceQueue.size();
-        while (piecesChecked < queueSize && !pieceQueue.isEmpty()) {
-            PieceState piece = pieceQueue.poll();
-            int pieceIndex = piece.getPieceIndex();
-            logger.debug("PiecesBeingDownloaded contains pieceIndex {} : {}",pieceIndex, piecesBeingDownloaded.contains(pieceIndex));
-            logger.debug("Does client have that piece? : " + client.getBitfield().hasPiece(pieceIndex));
-            if (shouldDownloadPiece(client, pieceIndex)) {
-            	logger.debug("Chosen piece index: " + pieceIndex);
-                return Optional.of(piece);
-            } else {
-            	logger.debug("returning Piece index " + pieceIndex);
-                pieceQueue.offer(piece);
-                logger.debug("current PieceQueue size " + pieceQueue.size());
+    // Pieces the peer suggested or lets us fetch while choked come first; while choked they are all we can ask for
+    private int choosePiece(Client client) {
+        for (int pieceIndex : client.getAllowedFastPieces()) {
+            if (piecePicker.pick(pieceIndex, client.getBitfield())) {
+                return pieceIndex;
             }
-            piecesChecked++;
         }
-        return Optional.empty();
+        if (client.isChoked()) {
+            return -1;
+        }
+        for (int pieceIndex : client.getSuggestedPieces()) {
+            if (piecePicker.pick(pieceIndex, client.getBitfield())) {
+                return pieceIndex;
+            }
+        }
+        return piecePicker.pick(client.getBitfield());
     }
 	
-	private synchronized boolean isDownloadComplete() {
-	    return downloadedPiecesBitfield.cardinality() == numberOfPieces;
+	// Skipped pieces are never fetched, so the download is complete once every other piece is
+	private boolean isDownloadComplete() {
+	    return !piecePicker.hasUnfinishedPieces();
 	}
 	
     private void initializeDataStructures() {
     	initializeBitfield();
-    	initializePieceQueue();
-    	initializePiecesBeingDownloadedSet();
-    	initializePieceStatesMap();
+    	initializePiecePicker();
     }
     private void initializeBitfield() {
         this.numberOfPieces = torrent.getPieces().length / 20;
@@ -349,32 +933,15 @@ public class UserClient implements PieceMessageCallback, ClientExceptionCallback
         }
     }
     
-    private void initializePieceQueue() {
-    	pieceQueue = new ConcurrentLinkedQueue<>();
-        this.blocksPerPiece = (int) torrent.getPieceLength() / maxBlockSize;
-        List<PieceState> pieceList = new ArrayList<>();
-        for (int i = 0; i < numberOfPieces; i++) {
-            if (!downloadedPiecesBitfield.hasPiece(i)) {
-                pieceList.add(new PieceState(blocksPerPiece, i));
-            }
-        }
-        Collections.shuffle(pieceList);
-        pieceQueue.addAll(pieceList); 
-    }
-    
-    private void initializePiecesBeingDownloadedSet() {
-    	piecesBeingDownloaded = ConcurrentHashMap.newKeySet();
-    }
-    
-    private void initializePieceStatesMap() {
-        pieceStates = new ConcurrentHashMap<>();
-        for (int i = 0; i < numberOfPieces; i++) {
-            PieceState pieceState = new PieceState(blocksPerPiece, i);
-            if (downloadedPiecesBitfield.hasPiece(i)) {
-                pieceState.markComplete();
+    private void initializePiecePicker() {
+        FilePriority[] filePriorities = FilePriority.forFiles(torrent.getFiles(), settings.getFilePriorities());
+        if (torrent.isMultiFile()) {
+            for (TorrentFile file : torrent.getFiles()) {
+                logger.info("{} ({} bytes): {}", file.getPath(), file.getLength(), filePriorities[file.getIndex()]);
             }
-            pieceStates.put(i, pieceState);
         }
+        piecePicker = new PiecePicker(numberOfPieces, downloadedPiecesBitfield, FilePriority.forPieces(torrent, filePriorities));
+        blockScheduler = new BlockScheduler(torrent, maxBlockSize, piecePicker);
     }
     
     private byte[] computeSHA1(byte[] data) {
@@ -405,29 +972,31 @@ public class UserClient implements PieceMessageCallback, ClientExceptionCallback
     
     public void onConnectionClosed(Client client) {
         logger.warn("Connection closed for client " + client);
-        Set<Integer> distinctPieceIndexes = new HashSet<>();
-        while (!client.workQueue.isEmpty()) {
-            BlockRequest request = client.workQueue.poll();
-            distinctPieceIndexes.add(request.getPieceIndex());
-        }
-        for (Integer pieceIndex : distinctPieceIndexes) {
-            pieceQueue.offer(new PieceState(blocksPerPiece, pieceIndex));
-            piecesBeingDownloaded.remove(pieceIndex);
+        seeder.onPeerDisconnected(client);
+        releaseRequests(client);
+    }
+
+    // Whatever the peer still owed us goes back to the scheduler for other peers
+    private void releaseRequests(Client client) {
+        List<BlockRequest> owed = new ArrayList<>();
+        for (BlockRequest request : client.outstandingRequests) {
+            if (client.outstandingRequests.remove(request)) {
+                owed.add(request);
+            }
         }
+        blockScheduler.returnRequests(owed);
     }
     
     private void disconnectActiveClients() {
         logger.debug("Disconnecting all active clients...");
-        synchronized (activeClients) {
-            for (Client client : activeClients) {
-                try {
-                    client.closeConnection();
-                } catch (Exception e) {
-                    logger.debug("Error disconnecting client: " + client.toString(), e);
-                }
+        for (Client client : activeClients) {
+            try {
+                client.closeConnection();
+            } catch (Exception e) {
+                logger.debug("Error disconnecting client: " + client.toString(), e);
             }
-            activeClients.clear();
         }
+        activeClients.clear();
         logger.debug("All active clients disconnected.");
     }
 }
@@ -0,0 +1,660 @@
+package com.torrentclient.dht;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.torrentclient.Peer;
+
+import unet.bencode.variables.BencodeArray;
+import unet.bencode.variables.BencodeObject;
+
+// BEP 5 node. One socket carries our queries and the queries of other nodes; replies are matched to
+// queries by transaction id, the same way the UDP tracker client does it
+public class DhtNode implements Runnable {
+
+	private static final int ALPHA = 3;
+	private static final int QUERY_TIMEOUT_MILLIS = 2000;
+	private static final int MAX_PACKET_SIZE = 2048;
+	private static final long MAINTENANCE_MINUTES = 5;
+	private static final long SEARCH_INTERVAL_MINUTES = 15;
+	private static final long STORED_PEER_TTL_MILLIS = TimeUnit.MINUTES.toMillis(30);
+	private static final int MAX_STORED_TORRENTS = 1000;
+	private static final int MAX_PEERS_PER_TORRENT = 200;
+	private static final int MAX_VALUES_PER_REPLY = 50;
+	private static final int TOKEN_LENGTH = 8;
+	private static final int ERROR_PROTOCOL = 203;
+	private static final int ERROR_METHOD_UNKNOWN = 204;
+	private static final Logger logger = LoggerFactory.getLogger(DhtNode.class);
+
+	private final DatagramSocket socket;
+	private final Thread thread;
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+	private final RoutingTable routingTable;
+	private final Path stateFile;
+	private final Map<Integer, Transaction> transactions = new ConcurrentHashMap<>();
+	private final AtomicInteger nextTransactionId = new AtomicInteger(ThreadLocalRandom.current().nextInt(0x10000));
+	private final Map<NodeId, Map<Peer, Long>> storedPeers = new ConcurrentHashMap<>();
+	private final Map<NodeId, ScheduledFuture<?>> searches = new ConcurrentHashMap<>();
+	private final List<InetSocketAddress> bootstrapAddresses = new ArrayList<>();
+	private volatile CompletableFuture<Void> bootstrapped = CompletableFuture.completedFuture(null);
+	// Tokens handed out are keyed on the current secret; the previous one is still accepted after a rotation
+	private volatile byte[] tokenSecret = randomSecret();
+	private volatile byte[] previousTokenSecret = tokenSecret;
+	private volatile boolean running = true;
+
+	// stateFile may be null; when it holds a saved table we come back with the same id and the nodes we knew
+	public DhtNode(int port, Path stateFile) throws SocketException {
+		RoutingTable saved = RoutingTable.load(stateFile);
+		this.routingTable = saved != null ? saved : new RoutingTable(NodeId.random());
+		this.stateFile = stateFile;
+		this.socket = new DatagramSocket(port);
+		this.thread = new Thread(this, "dht-" + socket.getLocalPort());
+		this.thread.setDaemon(true);
+	}
+
+	public void start() {
+		thread.start();
+		timer.scheduleWithFixedDelay(this::maintain, MAINTENANCE_MINUTES, MAINTENANCE_MINUTES, TimeUnit.MINUTES);
+	}
+
+	public void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		saveState();
+		timer.shutdownNow();
+		socket.close();
+		for (Transaction transaction : transactions.values()) {
+			transaction.reply.completeExceptionally(new SocketException("DHT node stopped"));
+		}
+		transactions.clear();
+	}
+
+	public int getPort() {
+		return socket.getLocalPort();
+	}
+
+	public NodeId getNodeId() {
+		return routingTable.getLocalId();
+	}
+
+	public RoutingTable getRoutingTable() {
+		return routingTable;
+	}
+
+	// Asks the given nodes for our own neighbourhood, then walks towards our id to fill the table.
+	// Unresolved addresses are looked up off the caller's thread
+	public CompletableFuture<Void> bootstrap(Collection<InetSocketAddress> addresses) {
+		synchronized (bootstrapAddresses) {
+			bootstrapAddresses.clear();
+			bootstrapAddresses.addAll(addresses);
+		}
+		CompletableFuture<Void> bootstrap = CompletableFuture.supplyAsync(() -> resolve(addresses), timer)
+				.thenCompose(resolved -> {
+					List<CompletableFuture<?>> queries = new ArrayList<>();
+					for (InetSocketAddress address : resolved) {
+						queries.add(query(address, null, "find_node", findNodeArguments(getNodeId())).handle((r, e) -> null));
+					}
+					return CompletableFuture.allOf(queries.toArray(new CompletableFuture<?>[0]));
+				})
+				.thenCompose(ignored -> new Lookup(getNodeId(), false, null).run())
+				.thenAccept(lookup -> logger.info("DHT bootstrapped, {} nodes in the routing table", routingTable.size()));
+		bootstrapped = bootstrap.exceptionally(error -> null);
+		return bootstrap;
+	}
+
+	// Pings a node we heard of elsewhere, such as from a peer's PORT message; it joins the table once it answers
+	public void addNode(InetSocketAddress address) {
+		BencodeObject arguments = new BencodeObject();
+		arguments.put("id", getNodeId().getBytes());
+		query(address, null, "ping", arguments);
+	}
+
+	// Peers are passed to onPeers as the lookup finds them; the future completes with all of them
+	public CompletableFuture<List<Peer>> getPeers(byte[] infoHash, Consumer<List<Peer>> onPeers) {
+		Lookup lookup = new Lookup(new NodeId(infoHash), true, onPeers);
+		return bootstrapped.thenCompose(ignored -> lookup.run()).thenApply(done -> new ArrayList<>(done.peers));
+	}
+
+	// Looks the torrent up and then announces our port to the closest nodes that gave us a token.
+	// Completes with the number of nodes that accepted the announce
+	public CompletableFuture<Integer> announce(byte[] infoHash, int port, Consumer<List<Peer>> onPeers) {
+		Lookup lookup = new Lookup(new NodeId(infoHash), true, onPeers);
+		return bootstrapped.thenCompose(ignored -> lookup.run()).thenCompose(done -> {
+			List<CompletableFuture<Boolean>> announces = new ArrayList<>();
+			for (Candidate candidate : done.closestResponded()) {
+				if (candidate.token == null) {
+					continue;
+				}
+				BencodeObject arguments = new BencodeObject();
+				arguments.put("id", getNodeId().getBytes());
+				arguments.put("info_hash", infoHash);
+				arguments.put("port", port);
+				arguments.put("token", candidate.token);
+				arguments.put("implied_port", 0);
+				announces.add(query(candidate.node.getAddress(), candidate.node.getId(), "announce_peer", arguments)
+						.handle((reply, error) -> error == null));
+			}
+			return CompletableFuture.allOf(announces.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+				int accepted = 0;
+				for (CompletableFuture<Boolean> announce : announces) {
+					if (announce.join()) {
+						accepted++;
+					}
+				}
+				return accepted;
+			});
+		});
+	}
+
+	// Announces now and again every SEARCH_INTERVAL_MINUTES until the search is cancelled or the node stops
+	public void search(byte[] infoHash, int port, Consumer<List<Peer>> onPeers) {
+		NodeId target = new NodeId(infoHash);
+		ScheduledFuture<?> search = timer.scheduleWithFixedDelay(() -> announce(infoHash, port, onPeers).whenComplete((accepted, error) -> {
+			if (error != null) {
+				logger.debug("DHT announce failed: {}", error.getMessage());
+			} else {
+				logger.info("Announced to {} DHT nodes", accepted);
+			}
+		}), 0, SEARCH_INTERVAL_MINUTES, TimeUnit.MINUTES);
+		ScheduledFuture<?> previous = searches.put(target, search);
+		if (previous != null) {
+			previous.cancel(false);
+		}
+	}
+
+	public void cancelSearch(byte[] infoHash) {
+		ScheduledFuture<?> search = searches.remove(new NodeId(infoHash));
+		if (search != null) {
+			search.cancel(false);
+		}
+	}
+
+	@Override
+	public void run() {
+		byte[] buffer = new byte[MAX_PACKET_SIZE];
+		DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+		while (running) {
+			try {
+				datagram.setLength(buffer.length);
+				socket.receive(datagram);
+				handlePacket((InetSocketAddress) datagram.getSocketAddress(), Arrays.copyOf(datagram.getData(), datagram.getLength()));
+			} catch (IOException e) {
+				if (running) {
+					logger.debug("DHT receive error", e);
+				}
+			}
+		}
+	}
+
+	private void handlePacket(InetSocketAddress from, byte[] data) {
+		BencodeObject message;
+		String type;
+		byte[] transactionId;
+		try {
+			message = new BencodeObject(data);
+			type = message.getString("y");
+			transactionId = message.getBytes("t");
+		} catch (RuntimeException e) {
+			logger.debug("Dropping malformed DHT packet from {}", from);
+			return;
+		}
+		if (type == null || transactionId == null) {
+			return;
+		}
+		try {
+			switch (type) {
+				case "q":
+					handleQuery(from, transactionId, message);
+					break;
+				case "r":
+				case "e":
+					handleReply(from, transactionId, message, type.equals("e"));
+					break;
+				default:
+					break;
+			}
+		} catch (RuntimeException e) {
+			logger.debug("Malformed DHT message from " + from, e);
+			if (type.equals("q")) {
+				sendError(from, transactionId, ERROR_PROTOCOL, "Protocol Error");
+			}
+		}
+	}
+
+	private void handleReply(InetSocketAddress from, byte[] transactionId, BencodeObject message, boolean error) {
+		if (transactionId.length != 2) {
+			return;
+		}
+		Transaction transaction = transactions.get(transactionKey(transactionId));
+		if (transaction == null || !transaction.address.equals(from)) {
+			return;
+		}
+		transactions.remove(transactionKey(transactionId));
+		transaction.timeout.cancel(false);
+		if (error) {
+			transaction.reply.completeExceptionally(new IOException("DHT error reply from " + from));
+			return;
+		}
+		// The transaction is already gone, so a reply we cannot read has to fail it here or the caller waits forever
+		BencodeObject reply;
+		NodeId id;
+		try {
+			reply = message.getBencodeObject("r");
+			id = new NodeId(reply.getBytes("id"));
+		} catch (RuntimeException e) {
+			transaction.reply.completeExceptionally(new IOException("Malformed DHT reply from " + from, e));
+			return;
+		}
+		routingTable.onSeen(id, from);
+		transaction.reply.complete(reply);
+	}
+
+	private void handleQuery(InetSocketAddress from, byte[] transactionId, BencodeObject message) {
+		String method = message.getString("q");
+		BencodeObject arguments = message.getBencodeObject("a");
+		NodeId senderId = new NodeId(arguments.getBytes("id"));
+		BencodeObject reply = new BencodeObject();
+		reply.put("id", getNodeId().getBytes());
+		switch (method) {
+			case "ping":
+				break;
+			case "find_node":
+				reply.put("nodes", Node.toCompact(routingTable.closest(new NodeId(arguments.getBytes("target")), RoutingTable.K)));
+				break;
+			case "get_peers":
+				NodeId infoHash = new NodeId(arguments.getBytes("info_hash"));
+				reply.put("token", token(from, tokenSecret));
+				reply.put("nodes", Node.toCompact(routingTable.closest(infoHash, RoutingTable.K)));
+				BencodeArray values = storedValues(infoHash);
+				if (values.size() > 0) {
+					reply.put("values", values);
+				}
+				break;
+			case "announce_peer":
+				if (!isValidToken(from, arguments.getBytes("token"))) {
+					sendError(from, transactionId, ERROR_PROTOCOL, "Bad token");
+					return;
+				}
+				boolean impliedPort = arguments.containsKey("implied_port") && arguments.getInteger("implied_port") != 0;
+				int port = impliedPort ? from.getPort() : arguments.getInteger("port");
+				storePeer(new NodeId(arguments.getBytes("info_hash")), new Peer(from.getAddress().getHostAddress(), port));
+				break;
+			default:
+				sendError(from, transactionId, ERROR_METHOD_UNKNOWN, "Method Unknown");
+				return;
+		}
+		routingTable.onSeen(senderId, from);
+		BencodeObject response = new BencodeObject();
+		response.put("t", transactionId);
+		response.put("y", "r");
+		response.put("r", reply);
+		send(from, response);
+	}
+
+	// expectedId is the node we think lives at the address, it is charged with the failure if the query times out
+	private CompletableFuture<BencodeObject> query(InetSocketAddress address, NodeId expectedId, String method, BencodeObject arguments) {
+		CompletableFuture<BencodeObject> reply = new CompletableFuture<>();
+		if (!running) {
+			reply.completeExceptionally(new SocketException("DHT node stopped"));
+			return reply;
+		}
+		int key;
+		Transaction transaction = new Transaction(address, reply);
+		do {
+			key = nextTransactionId.getAndIncrement() & 0xFFFF;
+		} while (transactions.putIfAbsent(key, transaction) != null);
+		int transactionKey = key;
+		try {
+			transaction.timeout = timer.schedule(() -> {
+				if (transactions.remove(transactionKey, transaction)) {
+					if (expectedId != null) {
+						routingTable.onFailure(expectedId);
+					}
+					reply.completeExceptionally(new TimeoutException(method + " to " + address + " timed out"));
+				}
+			}, QUERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			transactions.remove(transactionKey);
+			reply.completeExceptionally(new SocketException("DHT node stopped"));
+			return reply;
+		}
+		BencodeObject message = new BencodeObject();
+		message.put("t", new byte[] { (byte) (key >> 8), (byte) key });
+		message.put("y", "q");
+		message.put("q", method);
+		message.put("a", arguments);
+		if (!send(address, message) && transactions.remove(transactionKey, transaction)) {
+			transaction.timeout.cancel(false);
+			reply.completeExceptionally(new IOException("could not send " + method + " to " + address));
+		}
+		return reply;
+	}
+
+	private void sendError(InetSocketAddress to, byte[] transactionId, int code, String text) {
+		BencodeArray error = new BencodeArray();
+		error.add(code);
+		error.add(text);
+		BencodeObject message = new BencodeObject();
+		message.put("t", transactionId);
+		message.put("y", "e");
+		message.put("e", error);
+		send(to, message);
+	}
+
+	private boolean send(InetSocketAddress to, BencodeObject message) {
+		byte[] encoded = message.encode();
+		try {
+			socket.send(new DatagramPacket(encoded, encoded.length, to));
+			return true;
+		} catch (IOException | IllegalArgumentException e) {
+			logger.debug("Could not send DHT packet to {}: {}", to, e.getMessage());
+			return false;
+		}
+	}
+
+	private BencodeObject findNodeArguments(NodeId target) {
+		BencodeObject arguments = new BencodeObject();
+		arguments.put("id", getNodeId().getBytes());
+		arguments.put("target", target.getBytes());
+		return arguments;
+	}
+
+	private BencodeArray storedValues(NodeId infoHash) {
+		BencodeArray values = new BencodeArray();
+		Map<Peer, Long> peers = storedPeers.get(infoHash);
+		if (peers == null) {
+			return values;
+		}
+		long now = System.currentTimeMillis();
+		for (Map.Entry<Peer, Long> entry : peers.entrySet()) {
+			if (values.size() >= MAX_VALUES_PER_REPLY) {
+				break;
+			}
+			if (entry.getValue() > now) {
+				values.add(Peer.toCompact(List.of(entry.getKey())));
+			}
+		}
+		return values;
+	}
+
+	// Announces beyond the caps are dropped rather than evicting what we already store
+	private void storePeer(NodeId infoHash, Peer peer) {
+		if (!storedPeers.containsKey(infoHash) && storedPeers.size() >= MAX_STORED_TORRENTS) {
+			return;
+		}
+		Map<Peer, Long> peers = storedPeers.computeIfAbsent(infoHash, key -> new ConcurrentHashMap<>());
+		if (peers.containsKey(peer) || peers.size() < MAX_PEERS_PER_TORRENT) {
+			peers.put(peer, System.currentTimeMillis() + STORED_PEER_TTL_MILLIS);
+		}
+	}
+
+	private boolean isValidToken(InetSocketAddress from, byte[] token) {
+		return token != null && (Arrays.equals(token, token(from, tokenSecret)) || Arrays.equals(token, token(from, previousTokenSecret)));
+	}
+
+	// BEP 5 leaves the token format open; a hash of the querier's IP and a rotating secret needs no per-node state
+	private static byte[] token(InetSocketAddress address, byte[] secret) {
+		try {
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			sha1.update(secret);
+			sha1.update(address.getAddress().getAddress());
+			return Arrays.copyOf(sha1.digest(), TOKEN_LENGTH);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 not available", e);
+		}
+	}
+
+	private static byte[] randomSecret() {
+		byte[] secret = new byte[16];
+		ThreadLocalRandom.current().nextBytes(secret);
+		return secret;
+	}
+
+	// Rotates the token secret, forgets expired peers, saves the table, and refills it when it ran low
+	private void maintain() {
+		previousTokenSecret = tokenSecret;
+		tokenSecret = randomSecret();
+		long now = System.currentTimeMillis();
+		Iterator<Map<Peer, Long>> torrents = storedPeers.values().iterator();
+		while (torrents.hasNext()) {
+			Map<Peer, Long> peers = torrents.next();
+			peers.values().removeIf(expiry -> expiry <= now);
+			if (peers.isEmpty()) {
+				torrents.remove();
+			}
+		}
+		saveState();
+		if (routingTable.size() < RoutingTable.K) {
+			List<InetSocketAddress> addresses;
+			synchronized (bootstrapAddresses) {
+				addresses = new ArrayList<>(bootstrapAddresses);
+			}
+			if (!addresses.isEmpty()) {
+				bootstrap(addresses);
+			}
+		} else {
+			new Lookup(getNodeId(), false, null).run();
+		}
+	}
+
+	private void saveState() {
+		if (stateFile == null) {
+			return;
+		}
+		try {
+			routingTable.save(stateFile);
+		} catch (IOException e) {
+			logger.warn("Could not save the DHT routing table to {}: {}", stateFile, e.getMessage());
+		}
+	}
+
+	private static List<InetSocketAddress> resolve(Collection<InetSocketAddress> addresses) {
+		List<InetSocketAddress> resolved = new ArrayList<>();
+		for (InetSocketAddress address : addresses) {
+			InetSocketAddress candidate = address.isUnresolved() ? new InetSocketAddress(address.getHostString(), address.getPort()) : address;
+			if (candidate.isUnresolved()) {
+				logger.info("Could not resolve DHT bootstrap node {}", address.getHostString());
+			} else {
+				resolved.add(candidate);
+			}
+		}
+		return resolved;
+	}
+
+	private static int transactionKey(byte[] transactionId) {
+		return ((transactionId[0] & 0xFF) << 8) | (transactionId[1] & 0xFF);
+	}
+
+	private static class Transaction {
+
+		private final InetSocketAddress address;
+		private final CompletableFuture<BencodeObject> reply;
+		private ScheduledFuture<?> timeout;
+
+		Transaction(InetSocketAddress address, CompletableFuture<BencodeObject> reply) {
+			this.address = address;
+			this.reply = reply;
+		}
+	}
+
+	private enum CandidateState {
+		NEW,
+		QUERIED,
+		RESPONDED,
+		FAILED
+	}
+
+	private static class Candidate {
+
+		private final Node node;
+		private CandidateState state = CandidateState.NEW;
+		private byte[] token;
+
+		Candidate(Node node) {
+			this.node = node;
+		}
+	}
+
+	// Iterative Kademlia lookup: keeps ALPHA queries in flight to the closest nodes not yet asked,
+	// and finishes once the K closest nodes that did not fail have all answered
+	private class Lookup {
+
+		private final NodeId target;
+		private final boolean getPeers;
+		private final Consumer<List<Peer>> onPeers;
+		private final TreeMap<NodeId, Candidate> candidates;
+		private final Set<Peer> peers = new LinkedHashSet<>();
+		private final CompletableFuture<Lookup> done = new CompletableFuture<>();
+		private int inFlight;
+
+		Lookup(NodeId target, boolean getPeers, Consumer<List<Peer>> onPeers) {
+			this.target = target;
+			this.getPeers = getPeers;
+			this.onPeers = onPeers;
+			this.candidates = new TreeMap<>(NodeId.byDistanceTo(target));
+		}
+
+		CompletableFuture<Lookup> run() {
+			synchronized (this) {
+				for (Node node : routingTable.closest(target, RoutingTable.K * 2)) {
+					candidates.put(node.getId(), new Candidate(node));
+				}
+			}
+			step();
+			return done;
+		}
+
+		synchronized List<Candidate> closestResponded() {
+			List<Candidate> closest = new ArrayList<>();
+			for (Candidate candidate : candidates.values()) {
+				if (candidate.state == CandidateState.RESPONDED) {
+					closest.add(candidate);
+					if (closest.size() == RoutingTable.K) {
+						break;
+					}
+				}
+			}
+			return closest;
+		}
+
+		private void step() {
+			List<Candidate> toQuery = new ArrayList<>();
+			synchronized (this) {
+				if (done.isDone()) {
+					return;
+				}
+				int considered = 0;
+				boolean pending = false;
+				for (Candidate candidate : candidates.values()) {
+					if (candidate.state == CandidateState.FAILED) {
+						continue;
+					}
+					if (considered++ == RoutingTable.K) {
+						break;
+					}
+					if (candidate.state == CandidateState.NEW && inFlight < ALPHA) {
+						candidate.state = CandidateState.QUERIED;
+						inFlight++;
+						toQuery.add(candidate);
+					}
+					pending |= candidate.state == CandidateState.QUERIED;
+				}
+				if (!pending) {
+					done.complete(this);
+					return;
+				}
+			}
+			for (Candidate candidate : toQuery) {
+				BencodeObject arguments;
+				if (getPeers) {
+					arguments = new BencodeObject();
+					arguments.put("id", getNodeId().getBytes());
+					arguments.put("info_hash", target.getBytes());
+				} else {
+					arguments = findNodeArguments(target);
+				}
+				query(candidate.node.getAddress(), candidate.node.getId(), getPeers ? "get_peers" : "find_node", arguments)
+						.whenComplete((reply, error) -> onReply(candidate, reply, error));
+			}
+		}
+
+		private void onReply(Candidate candidate, BencodeObject reply, Throwable error) {
+			List<Peer> newPeers = new ArrayList<>();
+			synchronized (this) {
+				inFlight--;
+				if (error != null) {
+					candidate.state = CandidateState.FAILED;
+				} else {
+					candidate.state = CandidateState.RESPONDED;
+					try {
+						readReply(reply, candidate, newPeers);
+					} catch (RuntimeException e) {
+						logger.debug("Malformed DHT reply from {}", candidate.node.getAddress());
+					}
+				}
+			}
+			if (!newPeers.isEmpty() && onPeers != null) {
+				try {
+					onPeers.accept(newPeers);
+				} catch (RuntimeException e) {
+					logger.warn("Error handling peers found on the DHT", e);
+				}
+			}
+			step();
+		}
+
+		private void readReply(BencodeObject reply, Candidate candidate, List<Peer> newPeers) {
+			if (reply.containsKey("token")) {
+				candidate.token = reply.getBytes("token");
+			}
+			if (reply.containsKey("nodes")) {
+				for (Node node : Node.fromCompact(reply.getBytes("nodes"))) {
+					if (!node.getId().equals(getNodeId())) {
+						candidates.putIfAbsent(node.getId(), new Candidate(node));
+					}
+				}
+			}
+			if (getPeers && reply.containsKey("values")) {
+				BencodeArray values = reply.getBencodeArray("values");
+				for (int i = 0; i < values.size(); i++) {
+					for (Peer peer : Peer.fromCompact(values.getBytes(i))) {
+						if (peers.add(peer)) {
+							newPeers.add(peer);
+						}
+					}
+				}
+			}
+		}
+	}
+}
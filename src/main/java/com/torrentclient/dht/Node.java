@@ -0,0 +1,58 @@
+package com.torrentclient.dht;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import lombok.Data;
+
+@Data
+public class Node {
+
+	// BEP 5 compact node info: id, IPv4 address, port
+	public static final int COMPACT_LENGTH = NodeId.LENGTH + 6;
+
+	private final NodeId id;
+	private final InetSocketAddress address;
+	private long lastSeen;
+	private int failures;
+
+	public static List<Node> fromCompact(byte[] compactNodes) {
+		List<Node> nodes = new ArrayList<>();
+		ByteBuffer buffer = ByteBuffer.wrap(compactNodes);
+		while (buffer.remaining() >= COMPACT_LENGTH) {
+			byte[] id = new byte[NodeId.LENGTH];
+			byte[] ip = new byte[4];
+			buffer.get(id);
+			buffer.get(ip);
+			int port = buffer.getShort() & 0xFFFF;
+			try {
+				nodes.add(new Node(new NodeId(id), new InetSocketAddress(InetAddress.getByAddress(ip), port)));
+			} catch (UnknownHostException e) {
+				// four bytes always make an address
+			}
+		}
+		return nodes;
+	}
+
+	// Nodes without an IPv4 address are left out, compact node info has no room for them
+	public static byte[] toCompact(Collection<Node> nodes) {
+		ByteBuffer buffer = ByteBuffer.allocate(nodes.size() * COMPACT_LENGTH);
+		for (Node node : nodes) {
+			byte[] ip = node.getAddress().getAddress().getAddress();
+			if (ip.length != 4) {
+				continue;
+			}
+			buffer.put(node.getId().getBytes());
+			buffer.put(ip);
+			buffer.putShort((short) node.getAddress().getPort());
+		}
+		byte[] compact = new byte[buffer.position()];
+		buffer.flip().get(compact);
+		return compact;
+	}
+}
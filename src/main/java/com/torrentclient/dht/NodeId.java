@@ -0,0 +1,75 @@
+package com.torrentclient.dht;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+
+// 160-bit node id or info hash; closeness is the XOR of two ids read as an unsigned number
+public final class NodeId {
+
+	public static final int LENGTH = 20;
+	public static final int BITS = LENGTH * 8;
+
+	private final byte[] bytes;
+
+	public NodeId(byte[] bytes) {
+		if (bytes == null || bytes.length != LENGTH) {
+			throw new IllegalArgumentException("A node id is " + LENGTH + " bytes");
+		}
+		this.bytes = bytes.clone();
+	}
+
+	public static NodeId random() {
+		byte[] bytes = new byte[LENGTH];
+		ThreadLocalRandom.current().nextBytes(bytes);
+		return new NodeId(bytes);
+	}
+
+	public byte[] getBytes() {
+		return bytes.clone();
+	}
+
+	// Number of leading bits this id shares with the other one, BITS for the same id
+	public int sharedPrefixLength(NodeId other) {
+		for (int i = 0; i < LENGTH; i++) {
+			int xor = (bytes[i] ^ other.bytes[i]) & 0xFF;
+			if (xor != 0) {
+				return i * 8 + Integer.numberOfLeadingZeros(xor) - 24;
+			}
+		}
+		return BITS;
+	}
+
+	// Orders ids by their XOR distance to the target, nearest first
+	public static Comparator<NodeId> byDistanceTo(NodeId target) {
+		return (a, b) -> {
+			for (int i = 0; i < LENGTH; i++) {
+				int distanceA = (a.bytes[i] ^ target.bytes[i]) & 0xFF;
+				int distanceB = (b.bytes[i] ^ target.bytes[i]) & 0xFF;
+				if (distanceA != distanceB) {
+					return Integer.compare(distanceA, distanceB);
+				}
+			}
+			return 0;
+		};
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof NodeId && Arrays.equals(bytes, ((NodeId) o).bytes);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(bytes);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+}
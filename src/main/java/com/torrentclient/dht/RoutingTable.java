@@ -0,0 +1,149 @@
+package com.torrentclient.dht;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import unet.bencode.variables.BencodeObject;
+
+// Kademlia buckets indexed by how many leading bits a node shares with our id, K nodes each,
+// least recently seen first
+public class RoutingTable {
+
+	public static final int K = 8;
+	private static final int MAX_FAILURES = 3;
+	private static final long STALE_MILLIS = TimeUnit.MINUTES.toMillis(15);
+	private static final Logger logger = LoggerFactory.getLogger(RoutingTable.class);
+
+	private final NodeId localId;
+	private final List<LinkedList<Node>> buckets = new ArrayList<>();
+
+	public RoutingTable(NodeId localId) {
+		this.localId = localId;
+		for (int i = 0; i < NodeId.BITS; i++) {
+			buckets.add(new LinkedList<>());
+		}
+	}
+
+	public NodeId getLocalId() {
+		return localId;
+	}
+
+	// A full bucket only takes the newcomer in place of a head that stopped answering or went quiet
+	public synchronized void onSeen(NodeId id, InetSocketAddress address) {
+		if (id.equals(localId)) {
+			return;
+		}
+		LinkedList<Node> bucket = bucketFor(id);
+		long now = System.currentTimeMillis();
+		Iterator<Node> iterator = bucket.iterator();
+		while (iterator.hasNext()) {
+			Node node = iterator.next();
+			if (node.getId().equals(id)) {
+				iterator.remove();
+				if (!node.getAddress().equals(address)) {
+					node = new Node(id, address);
+				}
+				node.setLastSeen(now);
+				node.setFailures(0);
+				bucket.addLast(node);
+				return;
+			}
+		}
+		if (bucket.size() >= K) {
+			Node head = bucket.getFirst();
+			if (head.getFailures() == 0 && now - head.getLastSeen() < STALE_MILLIS) {
+				return;
+			}
+			bucket.removeFirst();
+		}
+		Node node = new Node(id, address);
+		node.setLastSeen(now);
+		bucket.addLast(node);
+	}
+
+	public synchronized void onFailure(NodeId id) {
+		Iterator<Node> iterator = bucketFor(id).iterator();
+		while (iterator.hasNext()) {
+			Node node = iterator.next();
+			if (node.getId().equals(id)) {
+				node.setFailures(node.getFailures() + 1);
+				if (node.getFailures() >= MAX_FAILURES) {
+					iterator.remove();
+				}
+				return;
+			}
+		}
+	}
+
+	public synchronized List<Node> closest(NodeId target, int count) {
+		List<Node> nodes = allNodes();
+		nodes.sort((a, b) -> NodeId.byDistanceTo(target).compare(a.getId(), b.getId()));
+		return new ArrayList<>(nodes.subList(0, Math.min(count, nodes.size())));
+	}
+
+	public synchronized List<Node> allNodes() {
+		List<Node> nodes = new ArrayList<>();
+		for (LinkedList<Node> bucket : buckets) {
+			nodes.addAll(bucket);
+		}
+		return nodes;
+	}
+
+	public synchronized int size() {
+		int size = 0;
+		for (LinkedList<Node> bucket : buckets) {
+			size += bucket.size();
+		}
+		return size;
+	}
+
+	// Written to a temporary file first so a crash mid-write leaves the previous table intact
+	public void save(Path file) throws IOException {
+		BencodeObject state = new BencodeObject();
+		state.put("id", localId.getBytes());
+		state.put("nodes", Node.toCompact(allNodes()));
+		Path parent = file.toAbsolutePath().getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		Files.write(temporary, state.encode());
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	// Restores our id and the nodes we knew; they count as unconfirmed until they answer again
+	public static RoutingTable load(Path file) {
+		if (file == null || !Files.isRegularFile(file)) {
+			return null;
+		}
+		try {
+			BencodeObject state = new BencodeObject(Files.readAllBytes(file));
+			RoutingTable table = new RoutingTable(new NodeId(state.getBytes("id")));
+			for (Node node : Node.fromCompact(state.getBytes("nodes"))) {
+				table.onSeen(node.getId(), node.getAddress());
+			}
+			for (Node node : table.allNodes()) {
+				node.setLastSeen(0);
+			}
+			return table;
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Ignoring unreadable DHT state in {}: {}", file, e.getMessage());
+			return null;
+		}
+	}
+
+	private LinkedList<Node> bucketFor(NodeId id) {
+		return buckets.get(Math.min(localId.sharedPrefixLength(id), NodeId.BITS - 1));
+	}
+}
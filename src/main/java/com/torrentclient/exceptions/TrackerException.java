@@ -0,0 +1,7 @@
+package com.torrentclient.exceptions;
+
+public class TrackerException extends Exception {
+    public TrackerException(String message) {
+        super(message);
+    }
+}
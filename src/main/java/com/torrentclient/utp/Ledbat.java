@@ -0,0 +1,79 @@
+package com.torrentclient.utp;
+
+import lombok.Getter;
+
+// LEDBAT as used by uTP: grow while the one-way queuing delay is under target, back off as it rises
+class Ledbat {
+
+	static final long TARGET_DELAY_MICROS = 100_000;
+	private static final double GAIN = 1.0;
+	private static final long BASE_DELAY_WINDOW_NANOS = 60_000_000_000L;
+
+	private final int segmentSize;
+	private final long maxWindow;
+	@Getter
+	private long congestionWindow;
+	@Getter
+	private long queuingDelayMicros;
+	// Base delay is the minimum over the current and the previous minute, so a route change ages out
+	private long currentMinimum = -1;
+	private long previousMinimum = -1;
+	private long windowStartNanos = System.nanoTime();
+	private boolean slowStart = true;
+
+	Ledbat(int segmentSize, long maxWindow) {
+		this.segmentSize = segmentSize;
+		this.maxWindow = maxWindow;
+		this.congestionWindow = 2L * segmentSize;
+	}
+
+	void onAck(long bytesAcked, long delaySampleMicros) {
+		if (bytesAcked <= 0) {
+			return;
+		}
+		long baseDelay = updateBaseDelay(delaySampleMicros);
+		queuingDelayMicros = Math.max(0, wrappedDistance(baseDelay, delaySampleMicros));
+		if (slowStart && queuingDelayMicros < TARGET_DELAY_MICROS / 2) {
+			// doubles per round trip until the queue starts to build or a packet is lost
+			congestionWindow = Math.min(maxWindow, congestionWindow + bytesAcked);
+			return;
+		}
+		slowStart = false;
+		double offTarget = (TARGET_DELAY_MICROS - queuingDelayMicros) / (double) TARGET_DELAY_MICROS;
+		offTarget = Math.max(-1.0, Math.min(1.0, offTarget));
+		double windowFactor = bytesAcked / (double) Math.max(congestionWindow, bytesAcked);
+		long change = (long) (GAIN * offTarget * windowFactor * segmentSize);
+		congestionWindow = Math.max(segmentSize, Math.min(maxWindow, congestionWindow + change));
+	}
+
+	void onLoss() {
+		slowStart = false;
+		congestionWindow = Math.max(segmentSize, congestionWindow / 2);
+	}
+
+	void onTimeout() {
+		slowStart = false;
+		congestionWindow = segmentSize;
+	}
+
+	private long updateBaseDelay(long sample) {
+		long now = System.nanoTime();
+		if (now - windowStartNanos > BASE_DELAY_WINDOW_NANOS) {
+			previousMinimum = currentMinimum;
+			currentMinimum = -1;
+			windowStartNanos = now;
+		}
+		if (currentMinimum < 0 || wrappedDistance(currentMinimum, sample) < 0) {
+			currentMinimum = sample;
+		}
+		if (previousMinimum >= 0 && wrappedDistance(previousMinimum, currentMinimum) > 0) {
+			return previousMinimum;
+		}
+		return currentMinimum;
+	}
+
+	// Delay samples are 32-bit microsecond differences between unsynchronised clocks
+	private static long wrappedDistance(long from, long to) {
+		return (int) (to - from);
+	}
+}
@@ -0,0 +1,6 @@
+package com.torrentclient.utp;
+
+// Runs on the uTP manager thread, so implementations must hand anything blocking to another thread
+public interface UtpAcceptCallback {
+	void onUtpConnection(UtpConnection connection);
+}
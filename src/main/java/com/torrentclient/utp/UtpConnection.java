@@ -0,0 +1,604 @@
+package com.torrentclient.utp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import lombok.Getter;
+
+// One uTP stream. The manager thread feeds it packets and timer ticks, application threads read and write.
+public class UtpConnection {
+
+	enum State {
+		SYN_SENT,
+		CONNECTED,
+		CLOSING,
+		CLOSED
+	}
+
+	static final int PACKET_SIZE = 1400;
+	static final int MAX_PAYLOAD = PACKET_SIZE - UtpPacket.HEADER_LENGTH;
+	static final int RECEIVE_BUFFER_SIZE = 1024 * 1024;
+	private static final int MAX_SEND_WINDOW = 1024 * 1024;
+	private static final int INITIAL_TIMEOUT_MILLIS = 1000;
+	private static final int MIN_TIMEOUT_MILLIS = 500;
+	private static final int MAX_TIMEOUT_MILLIS = 16000;
+	private static final int MAX_TRANSMISSIONS = 8;
+	private static final int MAX_SACK_BYTES = 32;
+	private static final int DUPLICATE_ACK_THRESHOLD = 3;
+	private static final long LINGER_NANOS = TimeUnit.MILLISECONDS.toNanos(2 * MAX_TIMEOUT_MILLIS);
+
+	private final UtpSocketManager manager;
+	@Getter
+	private final InetSocketAddress remoteAddress;
+	@Getter
+	private final int receiveId;
+	private final int sendId;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition stateChanged = lock.newCondition();
+	private final Ledbat ledbat = new Ledbat(MAX_PAYLOAD, MAX_SEND_WINDOW);
+	// Insertion order is send order, so the first entry is always the oldest unacknowledged packet
+	private final LinkedHashMap<Integer, OutgoingPacket> unacked = new LinkedHashMap<>();
+	private final Map<Integer, UtpPacket> reorderBuffer = new HashMap<>();
+	private final ArrayDeque<ByteBuffer> received = new ArrayDeque<>();
+	@Getter
+	private final InputStream inputStream = new UtpInputStream();
+
+	private State state;
+	private IOException failure;
+	private int seqNr;
+	private int ackNr;
+	private long bytesInFlight;
+	private long peerWindow = MAX_PAYLOAD;
+	private int bufferedBytes;
+	private int reorderBytes;
+	private boolean endOfStream;
+	private long replyMicros;
+	private double rttMillis;
+	private double rttVarianceMillis;
+	private long timeoutMillis = INITIAL_TIMEOUT_MILLIS;
+	private long retransmitAt;
+	private int lastAckNr = -1;
+	private int duplicateAcks;
+	private int lossRecoverySeq;
+	private long closeDeadline;
+	@Getter
+	private volatile int readTimeout;
+
+	private UtpConnection(UtpSocketManager manager, InetSocketAddress remoteAddress, int receiveId, int sendId, State state) {
+		this.manager = manager;
+		this.remoteAddress = remoteAddress;
+		this.receiveId = receiveId;
+		this.sendId = sendId;
+		this.state = state;
+	}
+
+	static UtpConnection outgoing(UtpSocketManager manager, InetSocketAddress remoteAddress, int receiveId) {
+		UtpConnection connection = new UtpConnection(manager, remoteAddress, receiveId, (receiveId + 1) & 0xFFFF, State.SYN_SENT);
+		connection.seqNr = 1;
+		connection.lossRecoverySeq = 1;
+		return connection;
+	}
+
+	static UtpConnection incoming(UtpSocketManager manager, InetSocketAddress remoteAddress, UtpPacket syn) {
+		UtpConnection connection = new UtpConnection(manager, remoteAddress, (syn.getConnectionId() + 1) & 0xFFFF, syn.getConnectionId(), State.CONNECTED);
+		connection.seqNr = ThreadLocalRandom.current().nextInt(0x10000);
+		connection.lossRecoverySeq = connection.seqNr;
+		connection.ackNr = syn.getSeqNr();
+		connection.replyMicros = (UtpSocketManager.nowMicros() - syn.getTimestampMicros()) & 0xFFFFFFFFL;
+		return connection;
+	}
+
+	void sendSyn() {
+		lock.lock();
+		try {
+			// The SYN carries the id we receive on, everything after it the id the peer receives on
+			UtpPacket syn = new UtpPacket(UtpPacket.ST_SYN, receiveId, seqNr, 0);
+			send(new OutgoingPacket(syn));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void awaitConnected(int timeoutMillis) throws IOException {
+		lock.lock();
+		try {
+			long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+			while (state == State.SYN_SENT) {
+				if (remaining <= 0) {
+					fail(new SocketTimeoutException("uTP connect timed out"));
+					throw failure;
+				}
+				remaining = stateChanged.awaitNanos(remaining);
+			}
+			checkWritable();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while connecting");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void onPacket(UtpPacket packet) {
+		lock.lock();
+		try {
+			if (state == State.CLOSED) {
+				return;
+			}
+			replyMicros = (UtpSocketManager.nowMicros() - packet.getTimestampMicros()) & 0xFFFFFFFFL;
+			if (packet.getType() == UtpPacket.ST_RESET) {
+				fail(new SocketException("Connection reset by peer"));
+				return;
+			}
+			if (packet.getType() == UtpPacket.ST_SYN) {
+				// our answer to the SYN was lost
+				sendStateAck();
+				return;
+			}
+			if (state == State.SYN_SENT) {
+				if (packet.getType() != UtpPacket.ST_STATE) {
+					return;
+				}
+				ackNr = (packet.getSeqNr() - 1) & 0xFFFF;
+				state = State.CONNECTED;
+			}
+			if (state == State.CLOSING) {
+				closeDeadline = System.nanoTime() + LINGER_NANOS;
+			}
+			peerWindow = packet.getWindowSize();
+			processAck(packet);
+			if (packet.getType() == UtpPacket.ST_DATA || packet.getType() == UtpPacket.ST_FIN) {
+				processIncoming(packet);
+			}
+		} finally {
+			stateChanged.signalAll();
+			lock.unlock();
+		}
+	}
+
+	private void processAck(UtpPacket packet) {
+		long now = System.nanoTime();
+		long acked = 0;
+		Iterator<OutgoingPacket> iterator = unacked.values().iterator();
+		while (iterator.hasNext()) {
+			OutgoingPacket outgoing = iterator.next();
+			if (UtpPacket.seqDistance(outgoing.seqNr(), packet.getAckNr()) < 0) {
+				break;
+			}
+			iterator.remove();
+			acked += onDelivered(outgoing, now);
+		}
+		if (packet.getSelectiveAck() != null) {
+			acked += processSelectiveAck(packet, now);
+		}
+		if (acked > 0) {
+			// progress ends any timeout backoff
+			duplicateAcks = 0;
+			resetTimeout();
+			restartTimer();
+			ledbat.onAck(acked, packet.getTimestampDifferenceMicros());
+		} else if (packet.getType() == UtpPacket.ST_STATE && packet.getAckNr() == lastAckNr && !unacked.isEmpty()) {
+			if (++duplicateAcks == DUPLICATE_ACK_THRESHOLD) {
+				retransmitLost(unacked.values().iterator().next());
+			}
+		}
+		lastAckNr = packet.getAckNr();
+	}
+
+	// Bit i of the mask acknowledges ack_nr + 2 + i; a packet with three acknowledged packets after it is lost
+	private long processSelectiveAck(UtpPacket packet, long now) {
+		byte[] mask = packet.getSelectiveAck();
+		int base = (packet.getAckNr() + 2) & 0xFFFF;
+		List<Integer> ackedOffsets = new ArrayList<>();
+		long acked = 0;
+		for (int i = 0; i < mask.length * 8; i++) {
+			if ((mask[i / 8] & (1 << (i % 8))) == 0) {
+				continue;
+			}
+			ackedOffsets.add(i);
+			OutgoingPacket outgoing = unacked.remove((base + i) & 0xFFFF);
+			if (outgoing != null) {
+				acked += onDelivered(outgoing, now);
+			}
+		}
+		int next = 0;
+		List<OutgoingPacket> lost = new ArrayList<>();
+		for (OutgoingPacket outgoing : unacked.values()) {
+			int offset = UtpPacket.seqDistance(base, outgoing.seqNr());
+			while (next < ackedOffsets.size() && ackedOffsets.get(next) <= offset) {
+				next++;
+			}
+			if (ackedOffsets.size() - next < DUPLICATE_ACK_THRESHOLD) {
+				break;
+			}
+			if (!outgoing.fastRetransmitted) {
+				lost.add(outgoing);
+			}
+		}
+		for (OutgoingPacket outgoing : lost) {
+			retransmitLost(outgoing);
+		}
+		return acked;
+	}
+
+	private long onDelivered(OutgoingPacket outgoing, long now) {
+		bytesInFlight -= outgoing.payloadLength();
+		if (outgoing.transmissions == 1) {
+			updateRtt((now - outgoing.sentAtNanos) / 1_000_000.0);
+		}
+		return outgoing.payloadLength();
+	}
+
+	private void updateRtt(double sampleMillis) {
+		if (rttMillis == 0) {
+			rttMillis = sampleMillis;
+			rttVarianceMillis = sampleMillis / 2;
+		} else {
+			rttVarianceMillis += (Math.abs(rttMillis - sampleMillis) - rttVarianceMillis) / 4;
+			rttMillis += (sampleMillis - rttMillis) / 8;
+		}
+		resetTimeout();
+	}
+
+	private void resetTimeout() {
+		if (rttMillis > 0) {
+			timeoutMillis = Math.max(MIN_TIMEOUT_MILLIS, (long) (rttMillis + 4 * rttVarianceMillis));
+		}
+	}
+
+	private void retransmitLost(OutgoingPacket outgoing) {
+		// one window cut per round trip, however many packets of it were lost
+		if (UtpPacket.seqDistance(lossRecoverySeq, outgoing.seqNr()) >= 0) {
+			ledbat.onLoss();
+			lossRecoverySeq = seqNr;
+		}
+		outgoing.fastRetransmitted = true;
+		transmit(outgoing);
+	}
+
+	private void processIncoming(UtpPacket packet) {
+		int distance = UtpPacket.seqDistance(ackNr, packet.getSeqNr());
+		int length = packet.getPayload().length;
+		// Anything that fits is kept even past the reach of the selective ack, the cumulative ack covers it once the gap fills
+		if (distance > 1 && !endOfStream
+				&& !reorderBuffer.containsKey(packet.getSeqNr()) && advertisedWindow() >= length) {
+			reorderBuffer.put(packet.getSeqNr(), packet);
+			reorderBytes += length;
+		} else if (distance == 1 && !endOfStream && advertisedWindow() >= length) {
+			deliver(packet);
+			UtpPacket next;
+			while ((next = reorderBuffer.remove((ackNr + 1) & 0xFFFF)) != null) {
+				reorderBytes -= next.getPayload().length;
+				deliver(next);
+			}
+		}
+		sendStateAck();
+	}
+
+	private void deliver(UtpPacket packet) {
+		ackNr = packet.getSeqNr();
+		if (packet.getType() == UtpPacket.ST_FIN) {
+			endOfStream = true;
+			reorderBuffer.clear();
+			reorderBytes = 0;
+		} else if (packet.getPayload().length > 0) {
+			received.add(ByteBuffer.wrap(packet.getPayload()));
+			bufferedBytes += packet.getPayload().length;
+		}
+	}
+
+	private void sendStateAck() {
+		UtpPacket ack = new UtpPacket(UtpPacket.ST_STATE, sendId, seqNr, ackNr);
+		ack.setSelectiveAck(buildSelectiveAck());
+		stamp(ack);
+		manager.send(remoteAddress, ack);
+	}
+
+	private byte[] buildSelectiveAck() {
+		if (reorderBuffer.isEmpty()) {
+			return null;
+		}
+		int base = (ackNr + 2) & 0xFFFF;
+		int highest = 0;
+		for (int seq : reorderBuffer.keySet()) {
+			highest = Math.max(highest, UtpPacket.seqDistance(base, seq));
+		}
+		byte[] mask = new byte[Math.min(MAX_SACK_BYTES, (highest / 32 + 1) * 4)];
+		for (int seq : reorderBuffer.keySet()) {
+			int offset = UtpPacket.seqDistance(base, seq);
+			if (offset >= 0 && offset < mask.length * 8) {
+				mask[offset / 8] |= 1 << (offset % 8);
+			}
+		}
+		return mask;
+	}
+
+	public void write(ByteBuffer source) throws IOException {
+		lock.lock();
+		try {
+			while (source.hasRemaining()) {
+				int length = Math.min(source.remaining(), MAX_PAYLOAD);
+				awaitSendWindow(length);
+				byte[] payload = new byte[length];
+				source.get(payload);
+				UtpPacket packet = new UtpPacket(UtpPacket.ST_DATA, sendId, seqNr, ackNr);
+				packet.setPayload(payload);
+				bytesInFlight += length;
+				send(new OutgoingPacket(packet));
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Sends once the packet fits both the LEDBAT window and the peer's receive window; one packet may always be in flight
+	private void awaitSendWindow(int length) throws IOException {
+		try {
+			while (true) {
+				checkWritable();
+				long window = Math.min(ledbat.getCongestionWindow(), peerWindow);
+				if (bytesInFlight == 0 || bytesInFlight + length <= window) {
+					return;
+				}
+				stateChanged.await(timeoutMillis, TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the send window");
+		}
+	}
+
+	private void checkWritable() throws IOException {
+		if (failure != null) {
+			throw new IOException(failure.getMessage(), failure);
+		}
+		if (state != State.CONNECTED) {
+			throw new SocketException("Socket closed");
+		}
+	}
+
+	private void send(OutgoingPacket outgoing) {
+		unacked.put(seqNr, outgoing);
+		seqNr = (seqNr + 1) & 0xFFFF;
+		if (unacked.size() == 1) {
+			restartTimer();
+		}
+		transmit(outgoing);
+	}
+
+	// One timer for the whole connection, as in TCP, restarted whenever the peer acknowledges something new
+	private void restartTimer() {
+		retransmitAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+	}
+
+	private void transmit(OutgoingPacket outgoing) {
+		outgoing.packet.setAckNr(ackNr);
+		stamp(outgoing.packet);
+		outgoing.sentAtNanos = System.nanoTime();
+		outgoing.transmissions++;
+		manager.send(remoteAddress, outgoing.packet);
+	}
+
+	private void stamp(UtpPacket packet) {
+		packet.setTimestampMicros(UtpSocketManager.nowMicros());
+		packet.setTimestampDifferenceMicros(replyMicros);
+		packet.setWindowSize(advertisedWindow());
+	}
+
+	private int advertisedWindow() {
+		return Math.max(0, RECEIVE_BUFFER_SIZE - bufferedBytes - reorderBytes);
+	}
+
+	// Returns true once the connection is finished and can be forgotten
+	boolean onTick(long now) {
+		lock.lock();
+		try {
+			if (state == State.CLOSED) {
+				return true;
+			}
+			if (state == State.CLOSING && ((unacked.isEmpty() && endOfStream) || now > closeDeadline)) {
+				state = State.CLOSED;
+				stateChanged.signalAll();
+				return true;
+			}
+			if (unacked.isEmpty()) {
+				return false;
+			}
+			if (now < retransmitAt) {
+				return false;
+			}
+			OutgoingPacket oldest = unacked.values().iterator().next();
+			if (oldest.transmissions >= MAX_TRANSMISSIONS) {
+				fail(new SocketTimeoutException("uTP peer stopped acknowledging"));
+				return true;
+			}
+			ledbat.onTimeout();
+			lossRecoverySeq = seqNr;
+			timeoutMillis = Math.min(MAX_TIMEOUT_MILLIS, timeoutMillis * 2);
+			oldest.fastRetransmitted = false;
+			transmit(oldest);
+			restartTimer();
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void fail(IOException cause) {
+		failure = cause;
+		state = State.CLOSED;
+		unacked.clear();
+		bytesInFlight = 0;
+		stateChanged.signalAll();
+	}
+
+	public void setReadTimeout(int timeoutMillis) {
+		this.readTimeout = timeoutMillis;
+	}
+
+	public boolean isOpen() {
+		lock.lock();
+		try {
+			return state == State.CONNECTED;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getCongestionWindow() {
+		lock.lock();
+		try {
+			return ledbat.getCongestionWindow();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Half close like TCP: queued data and the FIN still go out and reading continues until the peer's FIN.
+	// The manager forgets the connection once both sides are done, or after it has been idle for the linger time.
+	public void close() {
+		lock.lock();
+		try {
+			if (state == State.CONNECTED) {
+				send(new OutgoingPacket(new UtpPacket(UtpPacket.ST_FIN, sendId, seqNr, ackNr)));
+				state = State.CLOSING;
+				closeDeadline = System.nanoTime() + LINGER_NANOS;
+			} else if (state == State.SYN_SENT) {
+				state = State.CLOSED;
+			}
+			stateChanged.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void abort(IOException cause) {
+		lock.lock();
+		try {
+			if (state != State.CLOSED) {
+				fail(cause);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "UtpConnection[" + remoteAddress + ", id=" + receiveId + "]";
+	}
+
+	private static class OutgoingPacket {
+
+		private final UtpPacket packet;
+		private long sentAtNanos;
+		private int transmissions;
+		private boolean fastRetransmitted;
+
+		OutgoingPacket(UtpPacket packet) {
+			this.packet = packet;
+		}
+
+		int seqNr() {
+			return packet.getSeqNr();
+		}
+
+		int payloadLength() {
+			return packet.getPayload().length;
+		}
+	}
+
+	private class UtpInputStream extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (length == 0) {
+				return 0;
+			}
+			lock.lock();
+			try {
+				awaitReadable();
+				if (received.isEmpty()) {
+					return -1;
+				}
+				int copied = 0;
+				while (copied < length && !received.isEmpty()) {
+					ByteBuffer head = received.peek();
+					int chunk = Math.min(length - copied, head.remaining());
+					head.get(buffer, offset + copied, chunk);
+					copied += chunk;
+					if (!head.hasRemaining()) {
+						received.poll();
+					}
+				}
+				int windowBefore = advertisedWindow();
+				bufferedBytes -= copied;
+				if (windowBefore < RECEIVE_BUFFER_SIZE / 4 && advertisedWindow() >= RECEIVE_BUFFER_SIZE / 4 && state != State.CLOSED) {
+					// the sender may be stalled on our window, tell it there is room again
+					sendStateAck();
+				}
+				return copied;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void awaitReadable() throws IOException {
+			long deadline = readTimeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(readTimeout) : 0;
+			try {
+				while (received.isEmpty() && !endOfStream) {
+					if (failure != null) {
+						throw new IOException(failure.getMessage(), failure);
+					}
+					if (state == State.CLOSED) {
+						throw new SocketException("Socket closed");
+					}
+					if (deadline == 0) {
+						stateChanged.await();
+						continue;
+					}
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						throw new SocketTimeoutException("Read timed out");
+					}
+					stateChanged.awaitNanos(remaining);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while reading");
+			}
+		}
+
+		@Override
+		public int available() {
+			lock.lock();
+			try {
+				return bufferedBytes;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
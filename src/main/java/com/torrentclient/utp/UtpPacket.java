@@ -0,0 +1,104 @@
+package com.torrentclient.utp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import lombok.Data;
+
+// BEP 29 packet: 20-byte header, optional extension chain, payload
+@Data
+class UtpPacket {
+
+	static final int ST_DATA = 0;
+	static final int ST_FIN = 1;
+	static final int ST_STATE = 2;
+	static final int ST_RESET = 3;
+	static final int ST_SYN = 4;
+	static final int VERSION = 1;
+	static final int HEADER_LENGTH = 20;
+	static final int EXTENSION_NONE = 0;
+	static final int EXTENSION_SACK = 1;
+
+	private int type;
+	private int connectionId;
+	private long timestampMicros;
+	private long timestampDifferenceMicros;
+	private long windowSize;
+	private int seqNr;
+	private int ackNr;
+	private byte[] selectiveAck;
+	private byte[] payload = new byte[0];
+
+	UtpPacket(int type, int connectionId, int seqNr, int ackNr) {
+		this.type = type;
+		this.connectionId = connectionId;
+		this.seqNr = seqNr;
+		this.ackNr = ackNr;
+	}
+
+	int getEncodedLength() {
+		int length = HEADER_LENGTH + payload.length;
+		if (selectiveAck != null) {
+			length += 2 + selectiveAck.length;
+		}
+		return length;
+	}
+
+	void encodeTo(ByteBuffer buffer) {
+		buffer.put((byte) ((type << 4) | VERSION));
+		buffer.put((byte) (selectiveAck != null ? EXTENSION_SACK : EXTENSION_NONE));
+		buffer.putShort((short) connectionId);
+		buffer.putInt((int) timestampMicros);
+		buffer.putInt((int) timestampDifferenceMicros);
+		buffer.putInt((int) windowSize);
+		buffer.putShort((short) seqNr);
+		buffer.putShort((short) ackNr);
+		if (selectiveAck != null) {
+			buffer.put((byte) EXTENSION_NONE);
+			buffer.put((byte) selectiveAck.length);
+			buffer.put(selectiveAck);
+		}
+		buffer.put(payload);
+	}
+
+	static UtpPacket decode(ByteBuffer buffer) throws IOException {
+		if (buffer.remaining() < HEADER_LENGTH) {
+			throw new IOException("uTP packet shorter than its header: " + buffer.remaining());
+		}
+		int typeAndVersion = buffer.get() & 0xFF;
+		if ((typeAndVersion & 0x0F) != VERSION || (typeAndVersion >> 4) > ST_SYN) {
+			throw new IOException("Not a uTP version 1 packet");
+		}
+		int extension = buffer.get() & 0xFF;
+		UtpPacket packet = new UtpPacket(typeAndVersion >> 4, buffer.getShort() & 0xFFFF, 0, 0);
+		packet.timestampMicros = buffer.getInt() & 0xFFFFFFFFL;
+		packet.timestampDifferenceMicros = buffer.getInt() & 0xFFFFFFFFL;
+		packet.windowSize = buffer.getInt() & 0xFFFFFFFFL;
+		packet.seqNr = buffer.getShort() & 0xFFFF;
+		packet.ackNr = buffer.getShort() & 0xFFFF;
+		while (extension != EXTENSION_NONE) {
+			if (buffer.remaining() < 2) {
+				throw new IOException("Truncated uTP extension header");
+			}
+			int next = buffer.get() & 0xFF;
+			int length = buffer.get() & 0xFF;
+			if (buffer.remaining() < length) {
+				throw new IOException("Truncated uTP extension");
+			}
+			byte[] data = new byte[length];
+			buffer.get(data);
+			if (extension == EXTENSION_SACK) {
+				packet.selectiveAck = data;
+			}
+			extension = next;
+		}
+		packet.payload = new byte[buffer.remaining()];
+		buffer.get(packet.payload);
+		return packet;
+	}
+
+	// Sequence and ack numbers are 16 bits and wrap, compare them through their signed distance
+	static int seqDistance(int from, int to) {
+		return (short) (to - from);
+	}
+}
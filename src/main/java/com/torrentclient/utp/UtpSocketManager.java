@@ -0,0 +1,174 @@
+package com.torrentclient.utp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Owns the UDP socket all uTP connections share, routes packets to them and drives their timers
+public class UtpSocketManager implements Runnable {
+
+	private static final int TICK_MILLIS = 50;
+	private static final int MAX_DATAGRAM_SIZE = 64 * 1024;
+	private static final int SOCKET_BUFFER_SIZE = 2 * 1024 * 1024;
+	private static final Logger logger = LoggerFactory.getLogger(UtpSocketManager.class);
+
+	private final DatagramSocket socket;
+	private final UtpAcceptCallback acceptCallback;
+	private final Map<String, UtpConnection> connections = new ConcurrentHashMap<>();
+	private final Thread thread;
+	private volatile boolean running = true;
+	// Fraction of outgoing packets silently dropped, only ever set by tests
+	private volatile double lossRate;
+
+	public UtpSocketManager(int port, UtpAcceptCallback acceptCallback) throws IOException {
+		this.socket = new DatagramSocket(port);
+		this.socket.setSoTimeout(TICK_MILLIS);
+		this.socket.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+		this.socket.setSendBufferSize(SOCKET_BUFFER_SIZE);
+		this.acceptCallback = acceptCallback;
+		this.thread = new Thread(this, "utp-" + socket.getLocalPort());
+		this.thread.setDaemon(true);
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	public int getPort() {
+		return socket.getLocalPort();
+	}
+
+	public UtpConnection connect(InetSocketAddress remoteAddress, int timeoutMillis) throws IOException {
+		UtpConnection connection;
+		do {
+			int receiveId = ThreadLocalRandom.current().nextInt(0x10000);
+			connection = UtpConnection.outgoing(this, remoteAddress, receiveId);
+		} while (connections.putIfAbsent(key(remoteAddress, connection.getReceiveId()), connection) != null);
+		connection.sendSyn();
+		try {
+			connection.awaitConnected(timeoutMillis);
+		} catch (IOException e) {
+			connections.remove(key(remoteAddress, connection.getReceiveId()));
+			throw e;
+		}
+		return connection;
+	}
+
+	public void stop() {
+		running = false;
+		for (UtpConnection connection : connections.values()) {
+			connection.abort(new SocketException("uTP socket shut down"));
+		}
+		connections.clear();
+		socket.close();
+	}
+
+	void setLossRate(double lossRate) {
+		this.lossRate = lossRate;
+	}
+
+	@Override
+	public void run() {
+		byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+		DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+		long nextTick = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+		while (running) {
+			try {
+				datagram.setLength(buffer.length);
+				socket.receive(datagram);
+				dispatch(datagram);
+			} catch (SocketTimeoutException e) {
+				// no traffic, fall through to the timers
+			} catch (IOException e) {
+				if (running) {
+					logger.debug("uTP receive error", e);
+				}
+			}
+			long now = System.nanoTime();
+			if (now >= nextTick) {
+				tick(now);
+				nextTick = now + TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+			}
+		}
+	}
+
+	private void dispatch(DatagramPacket datagram) {
+		UtpPacket packet;
+		try {
+			packet = UtpPacket.decode(ByteBuffer.wrap(datagram.getData(), datagram.getOffset(), datagram.getLength()));
+		} catch (IOException e) {
+			logger.debug("Dropping malformed uTP packet from " + datagram.getSocketAddress() + ": " + e.getMessage());
+			return;
+		}
+		InetSocketAddress from = (InetSocketAddress) datagram.getSocketAddress();
+		if (packet.getType() == UtpPacket.ST_SYN) {
+			acceptConnection(from, packet);
+			return;
+		}
+		UtpConnection connection = connections.get(key(from, packet.getConnectionId()));
+		if (connection != null) {
+			connection.onPacket(packet);
+		} else if (packet.getType() != UtpPacket.ST_RESET) {
+			send(from, new UtpPacket(UtpPacket.ST_RESET, packet.getConnectionId(), 0, packet.getSeqNr()));
+		}
+	}
+
+	private void acceptConnection(InetSocketAddress from, UtpPacket syn) {
+		String key = key(from, (syn.getConnectionId() + 1) & 0xFFFF);
+		UtpConnection existing = connections.get(key);
+		if (existing != null) {
+			existing.onPacket(syn);
+			return;
+		}
+		if (acceptCallback == null) {
+			send(from, new UtpPacket(UtpPacket.ST_RESET, syn.getConnectionId(), 0, syn.getSeqNr()));
+			return;
+		}
+		UtpConnection connection = UtpConnection.incoming(this, from, syn);
+		connections.put(key, connection);
+		connection.onPacket(syn);
+		acceptCallback.onUtpConnection(connection);
+	}
+
+	private void tick(long now) {
+		Iterator<Map.Entry<String, UtpConnection>> iterator = connections.entrySet().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().getValue().onTick(now)) {
+				iterator.remove();
+			}
+		}
+	}
+
+	void send(InetSocketAddress remoteAddress, UtpPacket packet) {
+		if (lossRate > 0 && ThreadLocalRandom.current().nextDouble() < lossRate) {
+			return;
+		}
+		ByteBuffer encoded = ByteBuffer.allocate(packet.getEncodedLength());
+		packet.encodeTo(encoded);
+		try {
+			socket.send(new DatagramPacket(encoded.array(), encoded.position(), remoteAddress));
+		} catch (IOException e) {
+			logger.debug("Could not send uTP packet to " + remoteAddress + ": " + e.getMessage());
+		}
+	}
+
+	static long nowMicros() {
+		return (System.nanoTime() / 1000) & 0xFFFFFFFFL;
+	}
+
+	private static String key(InetSocketAddress address, int connectionId) {
+		return address.getAddress().getHostAddress() + ":" + address.getPort() + "/" + connectionId;
+	}
+}
@@ -0,0 +1,78 @@
+package com.torrentclient.utp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.torrentclient.Peer;
+import com.torrentclient.StreamTransport;
+
+public class UtpTransport implements StreamTransport {
+
+	private final UtpConnection connection;
+
+	public UtpTransport(UtpConnection connection) {
+		this.connection = connection;
+	}
+
+	public static UtpTransport connect(UtpSocketManager manager, Peer peer, int timeoutMillis) throws IOException {
+		return new UtpTransport(manager.connect(new InetSocketAddress(peer.getIpAddress(), peer.getPort()), timeoutMillis));
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return connection.getInputStream();
+	}
+
+	@Override
+	public void write(ByteBuffer... buffers) throws IOException {
+		for (ByteBuffer buffer : buffers) {
+			connection.write(buffer);
+		}
+	}
+
+	// uTP packets are assembled in user space, so the block goes through a heap buffer rather than transferTo
+	@Override
+	public void transferFrom(FileChannel source, long position, long count) throws IOException {
+		ByteBuffer block = ByteBuffer.allocate((int) count);
+		while (block.hasRemaining()) {
+			if (source.read(block, position + block.position()) == -1) {
+				throw new EOFException("Source ended after " + block.position() + " of " + count + " bytes");
+			}
+		}
+		block.flip();
+		connection.write(block);
+	}
+
+	@Override
+	public void setReadTimeout(int timeoutMillis) {
+		connection.setReadTimeout(timeoutMillis);
+	}
+
+	@Override
+	public int getReadTimeout() {
+		return connection.getReadTimeout();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return connection.isOpen();
+	}
+
+	@Override
+	public void close() {
+		connection.close();
+	}
+
+	public InetSocketAddress getRemoteAddress() {
+		return connection.getRemoteAddress();
+	}
+
+	@Override
+	public String toString() {
+		return "uTP " + connection.getRemoteAddress();
+	}
+}
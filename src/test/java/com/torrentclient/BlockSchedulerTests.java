@@ -0,0 +1,104 @@
+package com.torrentclient;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import unet.bencode.variables.BencodeObject;
+
+class BlockSchedulerTests {
+
+	private static final int BLOCK_SIZE = 16384;
+	private static final int PIECE_LENGTH = 2 * BLOCK_SIZE;
+
+	private final byte[] content = new byte[PIECE_LENGTH];
+	private final Torrent torrent = createTorrent();
+	private final PiecePicker picker = new PiecePicker(1, new Bitfield(new byte[1]));
+	private final BlockScheduler scheduler = new BlockScheduler(torrent, BLOCK_SIZE, picker);
+
+	@Test
+	void endgameAsksAnotherPeerAndKeepsTheFirstCopy() {
+		Client first = seed();
+		Client second = seed();
+		List<BlockRequest> firstRequests = request(first);
+		assertEquals(2, firstRequests.size());
+		assertFalse(scheduler.hasDuplicateRequests());
+
+		// Nothing is left unrequested, so the second peer is asked for the same blocks
+		List<BlockRequest> secondRequests = request(second);
+		assertEquals(firstRequests, secondRequests);
+		assertTrue(scheduler.hasDuplicateRequests());
+		assertTrue(request(second).isEmpty());
+
+		BlockRequest block = secondRequests.get(0);
+		assertNull(scheduler.onBlockReceived(second, block, blockData(block)));
+		// The first peer's copy is no longer needed, UserClient cancels it from here
+		assertFalse(scheduler.isNeeded(block));
+		assertNull(scheduler.onBlockReceived(first, block, ByteBuffer.allocate(BLOCK_SIZE)));
+
+		BlockRequest last = firstRequests.get(1);
+		PieceState piece = scheduler.onBlockReceived(first, last, blockData(last));
+		assertNotNull(piece);
+		assertArrayEquals(content, piece.getBuffer().array());
+		assertEquals(2, piece.getDistinctSuppliers().size());
+		assertNull(scheduler.onBlockReceived(second, last, blockData(last)));
+		assertFalse(scheduler.isNeeded(last));
+	}
+
+	@Test
+	void returnedBlocksGoToTheNextPeer() {
+		Client choked = seed();
+		List<BlockRequest> owed = request(choked);
+		choked.outstandingRequests.removeAll(owed);
+		scheduler.returnRequests(owed);
+		// Nothing of the piece arrived, so it went back to the picker
+		assertTrue(picker.hasWantedPieces());
+
+		Client next = seed();
+		assertEquals(owed, request(next));
+		assertFalse(scheduler.hasDuplicateRequests());
+	}
+
+	private List<BlockRequest> request(Client client) {
+		List<BlockRequest> requests = scheduler.request(client, 10, () -> picker.pick(client.getBitfield()));
+		client.outstandingRequests.addAll(requests);
+		return requests;
+	}
+
+	private ByteBuffer blockData(BlockRequest block) {
+		return ByteBuffer.wrap(Arrays.copyOfRange(content, block.getBegin(), block.getBegin() + block.getBlockLength()));
+	}
+
+	private static Client seed() {
+		Client client = new Client(null, new Peer("127.0.0.1", 6881), null, null, null, null, null, null, null);
+		client.setBitfield(Bitfield.withAllPieces(1));
+		client.setChoked(false);
+		return client;
+	}
+
+	private Torrent createTorrent() {
+		new Random(7).nextBytes(content);
+		BencodeObject info = new BencodeObject();
+		info.put("length", (long) PIECE_LENGTH);
+		info.put("name", "single");
+		info.put("piece length", PIECE_LENGTH);
+		info.put("pieces", new byte[20]);
+		BencodeObject metainfo = new BencodeObject();
+		metainfo.put("announce", "http://127.0.0.1/announce");
+		metainfo.put("comment", "");
+		metainfo.put("created by", "");
+		metainfo.put("creation date", 0L);
+		metainfo.put("info", info);
+		return new Torrent(metainfo);
+	}
+}
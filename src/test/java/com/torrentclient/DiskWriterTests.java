@@ -0,0 +1,93 @@
+package com.torrentclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import unet.bencode.variables.BencodeObject;
+
+class DiskWriterTests {
+
+	private static final int PIECE_LENGTH = 16384;
+
+	private final CountDownLatch diskFree = new CountDownLatch(1);
+	private final CountDownLatch written = new CountDownLatch(2);
+	private final List<String> events = new CopyOnWriteArrayList<>();
+	private final DiskWriter writer = new DiskWriter(new SlowDisk(), (pieceIndex, ok) -> written.countDown(), 1, PIECE_LENGTH);
+
+	@Test
+	void offerPausesReadsInsteadOfWaiting() throws Exception {
+		writer.start();
+		ReadThrottle throttle = new ReadThrottle() {
+			@Override
+			public void pauseReads() {
+				events.add("pause");
+			}
+
+			@Override
+			public void resumeReads() {
+				events.add("resume");
+			}
+		};
+
+		assertTrue(writer.offer(0, new byte[PIECE_LENGTH], throttle));
+		assertTrue(events.isEmpty());
+		// Past the budget the piece is still taken, the peer just stops being read
+		assertTrue(writer.offer(1, new byte[PIECE_LENGTH], throttle));
+		assertEquals(List.of("pause"), events);
+
+		diskFree.countDown();
+		assertTrue(written.await(5, TimeUnit.SECONDS));
+		assertEquals(List.of("pause", "resume"), events);
+		writer.stop();
+	}
+
+	@Test
+	void piecesAreRefusedOnceStopped() throws Exception {
+		writer.start();
+		diskFree.countDown();
+		writer.stop();
+
+		assertFalse(writer.submit(0, new byte[PIECE_LENGTH]));
+		assertFalse(writer.offer(0, new byte[PIECE_LENGTH], null));
+	}
+
+	private class SlowDisk extends FileManager {
+
+		SlowDisk() {
+			super(null, createTorrent(), ClientSettings.Storage.MEMORY);
+		}
+
+		@Override
+		public void savePieceToDisk(int pieceIndex, byte[] pieceData) throws IOException {
+			try {
+				diskFree.await();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+		}
+	}
+
+	private static Torrent createTorrent() {
+		BencodeObject info = new BencodeObject();
+		info.put("length", (long) 2 * PIECE_LENGTH);
+		info.put("name", "single");
+		info.put("piece length", PIECE_LENGTH);
+		info.put("pieces", new byte[40]);
+		BencodeObject metainfo = new BencodeObject();
+		metainfo.put("announce", "http://127.0.0.1/announce");
+		metainfo.put("comment", "");
+		metainfo.put("created by", "");
+		metainfo.put("creation date", 0L);
+		metainfo.put("info", info);
+		return new Torrent(metainfo);
+	}
+}
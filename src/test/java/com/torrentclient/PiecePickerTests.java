@@ -0,0 +1,79 @@
+package com.torrentclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+class PiecePickerTests {
+
+	private static final int PIECES = 4;
+
+	private final PiecePicker picker = new PiecePicker(PIECES, new Bitfield(new byte[1]));
+
+	@Test
+	void picksRarestPiecesFirst() {
+		Client everything = peerWith(0, 1, 2, 3);
+		picker.onPeerBitfield(everything, everything.getBitfield());
+		Client most = peerWith(0, 1, 2);
+		picker.onPeerBitfield(most, most.getBitfield());
+		Client some = peerWith(0, 1);
+		picker.onPeerBitfield(some, some.getBitfield());
+
+		assertEquals(3, picker.pick(everything.getBitfield()));
+		assertEquals(2, picker.pick(everything.getBitfield()));
+		assertEquals(Set.of(0, 1), Set.of(picker.pick(everything.getBitfield()), picker.pick(everything.getBitfield())));
+		assertEquals(-1, picker.pick(everything.getBitfield()));
+	}
+
+	@Test
+	void countsHavesAndForgetsPeersThatLeave() {
+		Client seed = peerWith(0, 1, 2, 3);
+		picker.onPeerBitfield(seed, seed.getBitfield());
+		Client leecher = peerWith(0, 1, 2);
+		picker.onPeerBitfield(leecher, leecher.getBitfield());
+		picker.onPeerHave(leecher, 3);
+		picker.onPeerHave(leecher, 3);
+
+		assertEquals(2, picker.getAvailability(3));
+		picker.onPeerGone(leecher);
+		assertEquals(1, picker.getAvailability(0));
+		picker.onPeerHave(leecher, 0);
+
+		Bitfield offered = peerWith(0, 3).getBitfield();
+		assertEquals(3, picker.pick(offered));
+		picker.release(3);
+		assertEquals(3, picker.pick(offered));
+		assertEquals(0, picker.pick(offered));
+	}
+
+	@Test
+	void piecesWithDeadlinesGoBeforeRarerOnes() {
+		Client seed = peerWith(0, 1, 2, 3);
+		picker.onPeerBitfield(seed, seed.getBitfield());
+		Client other = peerWith(0, 1, 2);
+		picker.onPeerBitfield(other, other.getBitfield());
+		long now = System.currentTimeMillis();
+		picker.setDeadline(1, now + 2000);
+		picker.setDeadline(0, now + 1000);
+
+		assertEquals(0, picker.pick(seed.getBitfield()));
+		assertEquals(1, picker.pick(seed.getBitfield()));
+		assertEquals(3, picker.pick(seed.getBitfield()));
+		picker.complete(0);
+		picker.complete(1);
+		assertFalse(picker.hasDeadlines());
+	}
+
+	private static Client peerWith(int... pieces) {
+		Bitfield bitfield = new Bitfield(new byte[1]);
+		for (int piece : pieces) {
+			bitfield.setPiece(piece);
+		}
+		Client client = new Client(null, new Peer("127.0.0.1", 6881), null, null, null, null, null, null, null);
+		client.setBitfield(bitfield);
+		return client;
+	}
+}
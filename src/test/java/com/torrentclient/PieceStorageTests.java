@@ -0,0 +1,144 @@
+package com.torrentclient;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import unet.bencode.variables.BencodeArray;
+import unet.bencode.variables.BencodeObject;
+
+class PieceStorageTests {
+
+	private static final int PIECE_LENGTH = 16384;
+	private static final String[][] PATHS = { { "a.txt" }, { "empty" }, { "sub", "b.bin" }, { "c.nfo" } };
+	private static final long[] LENGTHS = { 10000, 0, 30000, 777 };
+
+	@TempDir
+	Path storage;
+
+	private final byte[] content = new byte[(int) Arrays.stream(LENGTHS).sum()];
+	private final Torrent torrent = createTorrent();
+
+	@Test
+	void memoryStorageReadsBackPieces() throws Exception {
+		PieceStorage memory = new MemoryStorage(torrent);
+		assertFalse(memory.hasPiece(0));
+		writeAll(memory);
+		assertReadsBack(memory);
+		assertNull(memory.getRegion(0, 0, 100));
+	}
+
+	@Test
+	void fileChannelStorageWritesFilesInPlace() throws Exception {
+		PieceStorage files = new FileChannelStorage(storage.toString(), torrent);
+		writeAll(files);
+		assertReadsBack(files);
+		files.finish();
+		files.close();
+		assertFilesWritten();
+		assertTrue(new FileChannelStorage(storage.toString(), torrent).hasPiece(1));
+	}
+
+	@Test
+	void mappedStorageWritesAcrossWindows() throws Exception {
+		// Windows smaller than a piece, so blocks cross windows as well as files
+		PieceStorage mapped = new MappedStorage(storage.toString(), torrent, 4096);
+		writeAll(mapped);
+		assertReadsBack(mapped);
+		mapped.finish();
+		mapped.close();
+		assertFilesWritten();
+		assertTrue(new MappedStorage(storage.toString(), torrent, 4096).hasPiece(2));
+	}
+
+	@Test
+	void fragmentStorageMergesFiles() throws Exception {
+		PieceStorage fragments = new FragmentStorage(storage.toString(), torrent);
+		writeAll(fragments);
+		assertReadsBack(fragments);
+		fragments.finish();
+		assertReadsBack(fragments);
+		fragments.close();
+		assertFilesWritten();
+	}
+
+	private void writeAll(PieceStorage pieceStorage) throws Exception {
+		for (int piece = 0; piece < torrent.getPieceHashes().length; piece++) {
+			int size = torrent.getPieceSize(piece);
+			// Two writes per piece, the second one starting mid-piece
+			int half = size / 2;
+			pieceStorage.write(piece, 0, ByteBuffer.wrap(content, piece * PIECE_LENGTH, half));
+			pieceStorage.write(piece, half, ByteBuffer.wrap(content, piece * PIECE_LENGTH + half, size - half));
+		}
+		pieceStorage.flush();
+	}
+
+	private void assertReadsBack(PieceStorage pieceStorage) throws Exception {
+		for (int piece = 0; piece < torrent.getPieceHashes().length; piece++) {
+			ByteBuffer read = ByteBuffer.allocate(torrent.getPieceSize(piece));
+			pieceStorage.read(piece, 0, read);
+			assertArrayEquals(Arrays.copyOfRange(content, piece * PIECE_LENGTH, piece * PIECE_LENGTH + read.capacity()), read.array());
+		}
+		// Piece 0 ends inside b.bin, a block across the end of a.txt and the empty file
+		ByteBuffer block = ByteBuffer.allocate(1000);
+		pieceStorage.read(0, 9500, block);
+		assertArrayEquals(Arrays.copyOfRange(content, 9500, 10500), block.array());
+	}
+
+	private void assertFilesWritten() throws Exception {
+		long offset = 0;
+		for (int i = 0; i < PATHS.length; i++) {
+			Path file = storage.resolve(torrent.getName()).resolve(String.join("/", PATHS[i]));
+			assertArrayEquals(Arrays.copyOfRange(content, (int) offset, (int) (offset + LENGTHS[i])), Files.readAllBytes(file));
+			offset += LENGTHS[i];
+		}
+	}
+
+	private Torrent createTorrent() {
+		new Random(7).nextBytes(content);
+		try {
+			BencodeArray files = new BencodeArray();
+			for (int i = 0; i < PATHS.length; i++) {
+				BencodeArray path = new BencodeArray();
+				for (String element : PATHS[i]) {
+					path.add(element);
+				}
+				BencodeObject file = new BencodeObject();
+				file.put("length", LENGTHS[i]);
+				file.put("path", path);
+				files.add(file);
+			}
+			byte[] hashes = new byte[(content.length + PIECE_LENGTH - 1) / PIECE_LENGTH * 20];
+			for (int piece = 0; piece * PIECE_LENGTH < content.length; piece++) {
+				MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+				sha1.update(content, piece * PIECE_LENGTH, Math.min(PIECE_LENGTH, content.length - piece * PIECE_LENGTH));
+				System.arraycopy(sha1.digest(), 0, hashes, piece * 20, 20);
+			}
+			BencodeObject info = new BencodeObject();
+			info.put("files", files);
+			info.put("name", "multi");
+			info.put("piece length", PIECE_LENGTH);
+			info.put("pieces", hashes);
+			BencodeObject metainfo = new BencodeObject();
+			metainfo.put("announce", "http://127.0.0.1/announce");
+			metainfo.put("comment", "");
+			metainfo.put("created by", "");
+			metainfo.put("creation date", 0L);
+			metainfo.put("info", info);
+			return new Torrent(metainfo);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
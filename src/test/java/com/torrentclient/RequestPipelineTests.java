@@ -0,0 +1,88 @@
+package com.torrentclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.junit.jupiter.api.Test;
+
+class RequestPipelineTests {
+
+	private static final int BLOCK_SIZE = 16384;
+
+	private long now;
+
+	@Test
+	void depthSettlesAtTheBandwidthDelayProduct() {
+		// 20 blocks a second with 50 ms each way, so a second of queue is 20 requests
+		RequestPipeline pipeline = new RequestPipeline(BLOCK_SIZE, () -> now);
+		SimulatedPeer peer = new SimulatedPeer(pipeline, 50, 50);
+
+		peer.run(30_000);
+		int settled = pipeline.getDepth();
+		peer.run(30_000);
+
+		assertTrue(settled < RequestPipeline.MAX_DEPTH, "depth " + settled);
+		assertTrue(settled >= 20 && settled <= 30, "depth " + settled);
+		assertEquals(settled, pipeline.getDepth(), 3);
+	}
+
+	@Test
+	void depthShrinksWhenThePeerSlowsDown() {
+		RequestPipeline pipeline = new RequestPipeline(BLOCK_SIZE, () -> now);
+		SimulatedPeer peer = new SimulatedPeer(pipeline, 50, 10);
+		peer.run(30_000);
+		int fast = pipeline.getDepth();
+
+		// 4 blocks a second
+		peer.millisPerBlock = 250;
+		peer.run(60_000);
+
+		assertTrue(pipeline.getDepth() < fast, fast + " -> " + pipeline.getDepth());
+		assertTrue(pipeline.getDepth() <= 6, "depth " + pipeline.getDepth());
+	}
+
+	// Serves requests one at a time in the order they arrive, each block taking millisPerBlock to send
+	private class SimulatedPeer {
+
+		private final RequestPipeline pipeline;
+		private final long oneWayMillis;
+		private long millisPerBlock;
+		private final Deque<long[]> inFlight = new ArrayDeque<>();
+		private long peerFreeAt;
+		private int nextBlock;
+
+		SimulatedPeer(RequestPipeline pipeline, long oneWayMillis, long millisPerBlock) {
+			this.pipeline = pipeline;
+			this.oneWayMillis = oneWayMillis;
+			this.millisPerBlock = millisPerBlock;
+		}
+
+		void run(long millis) {
+			long end = now + millis;
+			topUp();
+			while (now < end) {
+				long[] delivery = inFlight.poll();
+				now = Math.max(now, delivery[1]);
+				pipeline.onBlockReceived(block((int) delivery[0]), BLOCK_SIZE);
+				topUp();
+			}
+		}
+
+		private void topUp() {
+			while (inFlight.size() < pipeline.getDepth()) {
+				int index = nextBlock++;
+				pipeline.onRequestSent(block(index));
+				long served = Math.max(now + oneWayMillis, peerFreeAt) + millisPerBlock;
+				peerFreeAt = served;
+				inFlight.add(new long[] { index, served + oneWayMillis });
+			}
+		}
+
+		private BlockRequest block(int index) {
+			return new BlockRequest(index, 0, BLOCK_SIZE);
+		}
+	}
+}
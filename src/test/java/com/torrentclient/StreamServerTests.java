@@ -0,0 +1,57 @@
+package com.torrentclient;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+class StreamServerTests {
+
+	private static final long LENGTH = 1000;
+
+	@Test
+	void servesTheWholeFileWithoutAUsableRange() {
+		assertRange(0, 999, null);
+		assertRange(0, 999, "items=0-10");
+		assertRange(0, 999, "bytes=abc");
+		assertRange(0, 999, "bytes=10");
+		// Backwards ranges are invalid, so the header is ignored
+		assertRange(0, 999, "bytes=500-100");
+	}
+
+	@Test
+	void parsesClosedAndOpenEndedRanges() {
+		assertRange(0, 0, "bytes=0-0");
+		assertRange(100, 199, "bytes=100-199");
+		assertRange(100, 999, "bytes=100-");
+		assertRange(100, 199, "bytes= 100 - 199 ");
+		// Only the first of several ranges is served
+		assertRange(0, 9, "bytes=0-9,20-29");
+	}
+
+	@Test
+	void parsesSuffixRanges() {
+		assertRange(900, 999, "bytes=-100");
+		assertRange(0, 999, "bytes=-5000");
+		assertNull(StreamServer.parseRange("bytes=-0", LENGTH));
+	}
+
+	@Test
+	void clampsOrRejectsRangesPastTheEnd() {
+		assertRange(900, 999, "bytes=900-5000");
+		assertRange(999, 999, "bytes=999-");
+		assertNull(StreamServer.parseRange("bytes=1000-", LENGTH));
+		assertNull(StreamServer.parseRange("bytes=2000-3000", LENGTH));
+	}
+
+	@Test
+	void zeroLengthFilesOnlyServeTheWholeEmptyBody() {
+		assertArrayEquals(new long[] { 0, -1 }, StreamServer.parseRange(null, 0));
+		assertNull(StreamServer.parseRange("bytes=0-", 0));
+		assertNull(StreamServer.parseRange("bytes=-10", 0));
+	}
+
+	private static void assertRange(long start, long end, String header) {
+		assertArrayEquals(new long[] { start, end }, StreamServer.parseRange(header, LENGTH), String.valueOf(header));
+	}
+}
@@ -0,0 +1,151 @@
+package com.torrentclient;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.torrentclient.exceptions.TrackerException;
+
+class UdpTrackerClientTests {
+
+	private static final long PROTOCOL_ID = 0x41727101980L;
+	private static final long CONNECTION_ID = 0x1122334455667788L;
+
+	private final byte[] infoHash = filled(20, 0x11);
+	private final byte[] peerId = filled(20, 0x22);
+	private final AtomicInteger connects = new AtomicInteger();
+	private DatagramSocket tracker;
+	private UdpTrackerClient client;
+	private volatile ByteBuffer lastAnnounce;
+	private volatile String failure;
+
+	@BeforeEach
+	void start() throws IOException {
+		tracker = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		Thread thread = new Thread(this::serve, "fake-udp-tracker");
+		thread.setDaemon(true);
+		thread.start();
+		client = new UdpTrackerClient();
+		client.start();
+	}
+
+	@AfterEach
+	void stop() {
+		client.stop();
+		tracker.close();
+	}
+
+	@Test
+	void announceAndScrapeRoundTrip() throws Exception {
+		AnnounceRequest request = new AnnounceRequest(infoHash, peerId, 6881);
+		request.setDownloaded(1000);
+		request.setLeft(2000);
+		request.setUploaded(3000);
+		request.setEvent(AnnounceRequest.Event.STARTED);
+		request.setNumWant(50);
+
+		AnnounceResponse response = client.announce(trackerUri(), request).get(5, TimeUnit.SECONDS);
+
+		assertEquals(1800, response.getInterval());
+		assertEquals(List.of(new Peer("10.0.0.1", 6881), new Peer("192.168.1.2", 51413)), response.getPeers());
+		ByteBuffer sent = lastAnnounce;
+		assertEquals(CONNECTION_ID, sent.getLong(0));
+		assertArrayEquals(infoHash, slice(sent, 16, 20));
+		assertArrayEquals(peerId, slice(sent, 36, 20));
+		assertEquals(1000, sent.getLong(56));
+		assertEquals(2000, sent.getLong(64));
+		assertEquals(3000, sent.getLong(72));
+		assertEquals(2, sent.getInt(80));
+		assertEquals(50, sent.getInt(92));
+		assertEquals(6881, sent.getShort(96) & 0xFFFF);
+
+		ScrapeResult scrape = client.scrape(trackerUri(), infoHash).get(5, TimeUnit.SECONDS);
+
+		assertEquals(5, scrape.getSeeders());
+		assertEquals(6, scrape.getCompleted());
+		assertEquals(7, scrape.getLeechers());
+		// The connection id is reused within its minute
+		assertEquals(1, connects.get());
+		assertNull(failure);
+	}
+
+	@Test
+	void trackerErrorFailsTheAnnounce() {
+		AnnounceRequest request = new AnnounceRequest(filled(20, 0x33), peerId, 6881);
+
+		ExecutionException error = assertThrows(ExecutionException.class,
+				() -> client.announce(trackerUri(), request).get(5, TimeUnit.SECONDS));
+
+		assertInstanceOf(TrackerException.class, error.getCause());
+		assertEquals("tracker error: unregistered torrent", error.getCause().getMessage());
+	}
+
+	private URI trackerUri() {
+		return URI.create("udp://127.0.0.1:" + tracker.getLocalPort() + "/announce");
+	}
+
+	// Answers connects, announces for infoHash with two peers, scrapes, and anything else with an error
+	private void serve() {
+		byte[] buffer = new byte[2048];
+		while (!tracker.isClosed()) {
+			DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+			try {
+				tracker.receive(datagram);
+				ByteBuffer packet = ByteBuffer.wrap(datagram.getData(), 0, datagram.getLength());
+				long connectionId = packet.getLong(0);
+				int action = packet.getInt(8);
+				int transactionId = packet.getInt(12);
+				ByteBuffer reply = ByteBuffer.allocate(256);
+				if (action == 0 && connectionId == PROTOCOL_ID) {
+					connects.incrementAndGet();
+					reply.putInt(0).putInt(transactionId).putLong(CONNECTION_ID);
+				} else if (action == 1 && connectionId == CONNECTION_ID && Arrays.equals(slice(packet, 16, 20), infoHash)) {
+					lastAnnounce = ByteBuffer.wrap(packet.array().clone(), 0, packet.limit());
+					reply.putInt(1).putInt(transactionId).putInt(1800).putInt(3).putInt(4);
+					reply.put(new byte[] { 10, 0, 0, 1, 0x1A, (byte) 0xE1 });
+					reply.put(new byte[] { (byte) 192, (byte) 168, 1, 2, (byte) 0xC8, (byte) 0xD5 });
+				} else if (action == 2 && connectionId == CONNECTION_ID) {
+					reply.putInt(2).putInt(transactionId).putInt(5).putInt(6).putInt(7);
+				} else {
+					reply.putInt(3).putInt(transactionId).put("unregistered torrent".getBytes(StandardCharsets.UTF_8));
+				}
+				tracker.send(new DatagramPacket(reply.array(), reply.position(), datagram.getSocketAddress()));
+			} catch (IOException | RuntimeException e) {
+				if (!tracker.isClosed()) {
+					failure = e.toString();
+				}
+			}
+		}
+	}
+
+	private static byte[] slice(ByteBuffer buffer, int offset, int length) {
+		byte[] bytes = new byte[length];
+		buffer.get(offset, bytes);
+		return bytes;
+	}
+
+	private static byte[] filled(int length, int value) {
+		byte[] bytes = new byte[length];
+		Arrays.fill(bytes, (byte) value);
+		return bytes;
+	}
+}
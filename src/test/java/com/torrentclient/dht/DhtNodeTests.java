@@ -0,0 +1,80 @@
+package com.torrentclient.dht;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.torrentclient.Peer;
+
+class DhtNodeTests {
+
+	private static final int CLUSTER_SIZE = 10;
+
+	private final List<DhtNode> nodes = new ArrayList<>();
+
+	@AfterEach
+	void stop() {
+		for (DhtNode node : nodes) {
+			node.stop();
+		}
+	}
+
+	@Test
+	void findsAnnouncedPeer() throws Exception {
+		startCluster();
+		byte[] infoHash = NodeId.random().getBytes();
+
+		int accepted = nodes.get(3).announce(infoHash, 7000, peers -> {}).get(10, TimeUnit.SECONDS);
+		List<Peer> found = nodes.get(CLUSTER_SIZE - 1).getPeers(infoHash, peers -> {}).get(10, TimeUnit.SECONDS);
+
+		assertTrue(accepted > 0);
+		assertTrue(found.contains(new Peer("127.0.0.1", 7000)), "found " + found);
+	}
+
+	@Test
+	void restoresSavedRoutingTable(@TempDir Path directory) throws Exception {
+		startCluster();
+		Path stateFile = directory.resolve("dht.dat");
+		DhtNode node = startNode(stateFile);
+		node.bootstrap(List.of(loopback(nodes.get(0)))).get(10, TimeUnit.SECONDS);
+		NodeId id = node.getNodeId();
+		int known = node.getRoutingTable().size();
+		node.stop();
+
+		DhtNode restored = startNode(stateFile);
+
+		assertEquals(id, restored.getNodeId());
+		assertEquals(known, restored.getRoutingTable().size());
+	}
+
+	private void startCluster() throws Exception {
+		for (int i = 0; i < CLUSTER_SIZE; i++) {
+			startNode(null);
+		}
+		InetSocketAddress first = loopback(nodes.get(0));
+		for (DhtNode node : nodes.subList(1, CLUSTER_SIZE)) {
+			node.bootstrap(List.of(first)).get(10, TimeUnit.SECONDS);
+		}
+	}
+
+	private DhtNode startNode(Path stateFile) throws IOException {
+		DhtNode node = new DhtNode(0, stateFile);
+		node.start();
+		nodes.add(node);
+		return node;
+	}
+
+	private static InetSocketAddress loopback(DhtNode node) {
+		return new InetSocketAddress("127.0.0.1", node.getPort());
+	}
+}
@@ -0,0 +1,103 @@
+package com.torrentclient.utp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class UtpConnectionTests {
+
+	private static final int SIZE = 2 * 1024 * 1024;
+
+	private UtpSocketManager server;
+	private UtpSocketManager client;
+	private final CompletableFuture<UtpConnection> accepted = new CompletableFuture<>();
+
+	@BeforeEach
+	void start() throws IOException {
+		server = new UtpSocketManager(0, accepted::complete);
+		client = new UtpSocketManager(0, null);
+		server.start();
+		client.start();
+	}
+
+	@AfterEach
+	void stop() {
+		server.stop();
+		client.stop();
+	}
+
+	@Test
+	void transfersBothWays() throws Exception {
+		exchange();
+	}
+
+	@Test
+	void recoversFromPacketLoss() throws Exception {
+		server.setLossRate(0.05);
+		client.setLossRate(0.05);
+		exchange();
+	}
+
+	private void exchange() throws Exception {
+		UtpConnection outgoing = client.connect(new InetSocketAddress("127.0.0.1", server.getPort()), 5000);
+		UtpConnection incoming = accepted.get(5, TimeUnit.SECONDS);
+		outgoing.setReadTimeout(30000);
+		incoming.setReadTimeout(30000);
+
+		byte[] upload = randomBytes(1);
+		byte[] download = randomBytes(2);
+		CompletableFuture<byte[]> serverRead = CompletableFuture.supplyAsync(() -> readAll(incoming.getInputStream()));
+		CompletableFuture<byte[]> clientRead = CompletableFuture.supplyAsync(() -> readAll(outgoing.getInputStream()));
+		CompletableFuture<Void> serverWrite = CompletableFuture.runAsync(() -> writeAndClose(incoming, download));
+		writeAndClose(outgoing, upload);
+
+		assertArrayEquals(upload, serverRead.get(60, TimeUnit.SECONDS));
+		assertArrayEquals(download, clientRead.get(60, TimeUnit.SECONDS));
+		serverWrite.get(60, TimeUnit.SECONDS);
+	}
+
+	private static byte[] randomBytes(long seed) {
+		byte[] bytes = new byte[SIZE];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+
+	private static void writeAndClose(UtpConnection connection, byte[] bytes) {
+		try {
+			// odd-sized writes so payloads do not line up with packet boundaries
+			for (int offset = 0; offset < bytes.length; offset += 10000) {
+				connection.write(ByteBuffer.wrap(bytes, offset, Math.min(10000, bytes.length - offset)));
+			}
+			connection.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static byte[] readAll(InputStream in) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		try {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		assertEquals(SIZE, out.size());
+		return out.toByteArray();
+	}
+}